@@ -20,35 +20,43 @@ package org.apache.karaf.tooling.features;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
-
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.karaf.tooling.utils.FileCopier;
 import org.apache.karaf.tooling.utils.MojoSupport;
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.artifact.repository.ArtifactRepository;
 import org.apache.maven.artifact.resolver.ArtifactNotFoundException;
 import org.apache.maven.artifact.resolver.ArtifactResolutionException;
+import org.apache.maven.artifact.versioning.DefaultArtifactVersion;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
 /**
  * Generates the features XML file
@@ -119,7 +127,17 @@ public class AddToRepositoryMojo extends MojoSupport {
      */
     private boolean addTransitiveFeatures = true;
 
+    /**
+     * The number of threads used to resolve and copy bundles
+     *
+     * @parameter default-value="8"
+     */
+    private int resolverThreads = 8;
+
+    private FileCopier copier;
+
     public void execute() throws MojoExecutionException, MojoFailureException {
+        copier = createFileCopier();
         if (karafVersion == null) {
             Package p = Package.getPackage("org.apache.karaf.tooling.features");
             karafVersion = p.getImplementationVersion();
@@ -149,8 +167,9 @@ public class AddToRepositoryMojo extends MojoSupport {
         try {
             Set<String> bundles = new HashSet<String>();
             Map<String, Feature> featuresMap = new HashMap<String, Feature>();
+            Set<String> visitedDescriptors = new HashSet<String>();
             for (String uri : descriptors) {
-                retrieveDescriptorsRecursively(uri, bundles, featuresMap);
+                retrieveDescriptorsRecursively(uri, bundles, featuresMap, visitedDescriptors);
             }
 
             // no features specified, handle all of them
@@ -178,42 +197,22 @@ public class AddToRepositoryMojo extends MojoSupport {
                 }
             }
 
-            // bundles with explicitely specified remote repos. key -> bundle, value -> remote repo
-            List<Artifact> explicitRepoBundles = new ArrayList<Artifact>();
-
             getLog().info("Base repo: " + localRepo.getUrl());
-            int currentBundle = 0;
+            // each target file is only resolved and copied once, even if several bundle URLs point to it
+            Map<String, Artifact> artifacts = new LinkedHashMap<String, Artifact>();
             for (String bundle : bundles) {
                 Artifact artifact = resourceToArtifact(bundle, skipNonMavenProtocols);
-
-                // Maven ArtifactResolver leaves file handles around so need to clean up
-                // or we will run out of file descriptors
-                if (currentBundle++ % 100 == 0) {
-                    System.gc();
-                    System.runFinalization();
-                }
-
-                if (artifact == null) {
-                    continue;
-                }
-                if (artifact.getRepository() != null) {
-                    explicitRepoBundles.add(artifact);
-                } else {
-                    // bundle URL without repository information are resolved now
-                    resolveBundle(artifact, remoteRepos);
+                if (artifact != null && !artifacts.containsKey(getRepositoryPath(artifact))) {
+                    artifacts.put(getRepositoryPath(artifact), artifact);
                 }
             }
-            // resolving all bundles with explicitly specified remote repository
-            for (Artifact explicitBundle : explicitRepoBundles) {
-                resolveBundle(explicitBundle, Collections.singletonList(explicitBundle.getRepository()));
-            }
+            resolveBundles(artifacts.values());
+
             if (copyFileBasedDescriptors != null) {
                 for (CopyFileBasedDescriptor fileBasedDescriptor : copyFileBasedDescriptors) {
-                    copy(new FileInputStream(fileBasedDescriptor.getSourceFile()),
-                        repository,
-                        fileBasedDescriptor.getTargetFileName(),
-                        fileBasedDescriptor.getTargetDirectory(),
-                        new byte[8192]);
+                    copier.copy(fileBasedDescriptor.getSourceFile(),
+                        new File(getTargetDirectory(repository, fileBasedDescriptor.getTargetDirectory()),
+                            fileBasedDescriptor.getTargetFileName()));
                 }
             }
         } catch (MojoExecutionException e) {
@@ -223,10 +222,15 @@ public class AddToRepositoryMojo extends MojoSupport {
         } catch (Exception e) {
             throw new MojoExecutionException("Error populating repository", e);
         }
+        getLog().info("Repository " + repository + ": " + copier);
     }
 
-    private void retrieveDescriptorsRecursively(String uri, Set<String> bundles, Map<String, Feature> featuresMap)
-        throws Exception {
+    private void retrieveDescriptorsRecursively(String uri, Set<String> bundles, Map<String, Feature> featuresMap,
+        Set<String> visitedDescriptors) throws Exception {
+        // descriptors referenced several times, or by each other, are only read once
+        if (!visitedDescriptors.add(uri.trim())) {
+            return;
+        }
         // let's ensure a mvn: based url is sitting in the local repo before we try reading it
         Artifact descriptor = resourceToArtifact(uri, true);
         if (descriptor != null) {
@@ -241,30 +245,68 @@ public class AddToRepositoryMojo extends MojoSupport {
         }
         if (resolveDefinedRepositoriesRecursively) {
             for (String r : repo.getDefinedRepositories()) {
-                retrieveDescriptorsRecursively(r, bundles, featuresMap);
+                retrieveDescriptorsRecursively(r, bundles, featuresMap, visitedDescriptors);
+            }
+        }
+    }
+
+    // resolves and copies the bundles concurrently
+    private void resolveBundles(Collection<Artifact> bundles) throws Exception {
+        if (bundles.isEmpty()) {
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(resolverThreads, bundles.size())));
+        try {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>();
+            for (final Artifact bundle : bundles) {
+                futures.add(executor.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        if (bundle.getRepository() != null) {
+                            // bundle URL with an explicitly specified remote repository
+                            resolveBundle(bundle, Collections.singletonList(bundle.getRepository()));
+                        } else {
+                            resolveBundle(bundle, remoteRepos);
+                        }
+                        return null;
+                    }
+                }));
             }
+            for (Future<Object> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
         }
     }
 
+    // the path of a bundle in the repository directory
+    private static String getRepositoryPath(Artifact bundle) {
+        return getRepositoryDirectory(bundle) + getRepositoryName(bundle);
+    }
+
+    // TODO consider DefaultRepositoryLayout
+    private static String getRepositoryDirectory(Artifact bundle) {
+        return bundle.getGroupId().replace('.', '/') + "/" + bundle.getArtifactId() + "/" + bundle.getBaseVersion() + "/";
+    }
+
+    private static String getRepositoryName(Artifact bundle) {
+        return bundle.getArtifactId() + "-" + bundle.getBaseVersion()
+                + (bundle.getClassifier() != null ? "-" + bundle.getClassifier() : "") + "." + bundle.getType();
+    }
+
     // resolves the bundle in question
     // TODO neither remoteRepos nor bundle's Repository are used, only the local repo?????
     private void resolveBundle(Artifact bundle, List<ArtifactRepository> remoteRepos) throws IOException,
         MojoFailureException {
-        // TODO consider DefaultRepositoryLayout
-        String dir =
-            bundle.getGroupId().replace('.', '/') + "/" + bundle.getArtifactId() + "/" + bundle.getBaseVersion() + "/";
-        String name =
-            bundle.getArtifactId() + "-" + bundle.getBaseVersion()
-                    + (bundle.getClassifier() != null ? "-" + bundle.getClassifier() : "") + "." + bundle.getType();
-
         try {
             getLog().info("Copying bundle: " + bundle);
             resolver.resolve(bundle, remoteRepos, localRepo);
-            copy(new FileInputStream(bundle.getFile()),
-                repository,
-                name,
-                dir,
-                new byte[8192]);
+            copier.copy(bundle.getFile(), new File(getTargetDirectory(repository, getRepositoryDirectory(bundle)),
+                getRepositoryName(bundle)));
         } catch (ArtifactResolutionException e) {
             if (failOnArtifactResolutionError) {
                 throw new MojoFailureException("Can't resolve bundle " + bundle, e);
@@ -278,62 +320,106 @@ public class AddToRepositoryMojo extends MojoSupport {
         }
     }
 
-    private void addFeatures(List<String> features, Set<String> featuresBundles, Set<String> transitiveFeatures,
+    // adds the bundles of the features and collects their transitive features, visiting each feature only once
+    void addFeatures(List<String> features, Set<String> featuresBundles, Set<String> transitiveFeatures,
             Map<String, Feature> featuresMap) {
-        for (String feature : features) {
-
-            // feature could be only the name or name/version
-            int delimIndex = feature.indexOf('/');
-            String version = null;
-            if (delimIndex > 0) {
-                version = feature.substring(delimIndex + 1);
-                feature = feature.substring(0, delimIndex);
-            }
-
-            Feature f = null;
-            if (version != null) {
-                // looking for a specific feature with name and version
-                f = featuresMap.get(feature + "/" + version);
-            } else {
-                // looking for the first feature name (whatever the version is)
-                for (String key : featuresMap.keySet()) {
-                    String[] nameVersion = key.split("/");
-                    if (feature.equals(nameVersion[0])) {
-                        f = featuresMap.get(key);
-                        break;
-                    }
-                }
-            }
-            if (f == null) {
-                throw new IllegalArgumentException("Unable to find the feature '" + feature + "'");
+        long start = System.currentTimeMillis();
+        Map<String, List<Feature>> featuresByName = indexFeatures(featuresMap);
+        Set<String> configuredFeatures = new HashSet<String>(this.features);
+        Set<String> visited = new HashSet<String>();
+        LinkedList<String> pending = new LinkedList<String>(features);
+        while (!pending.isEmpty()) {
+            Feature f = findFeature(pending.removeFirst(), featuresMap, featuresByName);
+            String key = f.getName() + "/" + f.getVersion();
+            if (!visited.add(key)) {
+                continue;
             }
             // only add the feature to transitives if it is not
             // listed in the features list defined by the config
-            if (!this.features.contains(f.getName() + "/" + f.getVersion())) {
-                transitiveFeatures.add(f.getName() + "/" + f.getVersion());
+            if (!configuredFeatures.contains(key)) {
+                transitiveFeatures.add(key);
             } else {
                 // add the bundles of the feature to the bundle set
-                getLog().info("Adding contents for feature: " + f.getName() + "/" + f.getVersion());
+                getLog().info("Adding contents for feature: " + key);
                 featuresBundles.addAll(f.getBundles());
                 // Treat the config files as bundles, since it is only copying
                 featuresBundles.addAll(f.getConfigFiles());
             }
-            addFeatures(f.getDependencies(), featuresBundles, transitiveFeatures, featuresMap);
+            pending.addAll(f.getDependencies());
+        }
+        getLog().info(String.format("Resolved %d features (%d transitive) from %d in %d ms",
+            visited.size(), transitiveFeatures.size(), features.size(), System.currentTimeMillis() - start));
+    }
+
+    // the versions of each feature name, highest first
+    static Map<String, List<Feature>> indexFeatures(Map<String, Feature> featuresMap) {
+        Map<String, List<Feature>> featuresByName = new HashMap<String, List<Feature>>();
+        for (Feature f : featuresMap.values()) {
+            List<Feature> versions = featuresByName.get(f.getName());
+            if (versions == null) {
+                versions = new ArrayList<Feature>();
+                featuresByName.put(f.getName(), versions);
+            }
+            versions.add(f);
+        }
+        Comparator<Feature> highestFirst = new Comparator<Feature>() {
+            public int compare(Feature f1, Feature f2) {
+                return new DefaultArtifactVersion(f2.getVersion()).compareTo(new DefaultArtifactVersion(f1.getVersion()));
+            }
+        };
+        for (List<Feature> versions : featuresByName.values()) {
+            Collections.sort(versions, highestFirst);
+        }
+        return featuresByName;
+    }
+
+    static Feature findFeature(String feature, Map<String, Feature> featuresMap,
+            Map<String, List<Feature>> featuresByName) {
+        // feature could be only the name or name/version
+        int delimIndex = feature.indexOf('/');
+        Feature f = null;
+        if (delimIndex > 0) {
+            // looking for a specific feature with name and version
+            f = featuresMap.get(feature);
+            feature = feature.substring(0, delimIndex);
+        } else {
+            // looking for the highest version of the feature
+            List<Feature> versions = featuresByName.get(feature);
+            if (versions != null) {
+                f = versions.get(0);
+            }
         }
+        if (f == null) {
+            throw new IllegalArgumentException("Unable to find the feature '" + feature + "'");
+        }
+        return f;
     }
 
     public static void copy(
             InputStream is, File dir, String destName, String destDir, byte[] buffer)
         throws IOException {
+        BufferedOutputStream bos = new BufferedOutputStream(
+            new FileOutputStream(new File(getTargetDirectory(dir, destDir), destName)));
+        try {
+            int count = 0;
+            while ((count = is.read(buffer)) > 0) {
+                bos.write(buffer, 0, count);
+            }
+        } finally {
+            bos.close();
+        }
+    }
+
+    // Make sure the target directory exists and
+    // that is actually a directory.
+    private static File getTargetDirectory(File dir, String destDir) throws IOException {
         if (destDir == null) {
             destDir = "";
         }
-
-        // Make sure the target directory exists and
-        // that is actually a directory.
         File targetDir = new File(dir, destDir);
         if (!targetDir.exists()) {
-            if (!targetDir.mkdirs()) {
+            // another thread may be creating the same directory
+            if (!targetDir.mkdirs() && !targetDir.isDirectory()) {
                 throw new IOException("Unable to create target directory: "
                         + targetDir);
             }
@@ -341,14 +427,7 @@ public class AddToRepositoryMojo extends MojoSupport {
             throw new IOException("Target is not a directory: "
                     + targetDir);
         }
-
-        BufferedOutputStream bos = new BufferedOutputStream(
-            new FileOutputStream(new File(targetDir, destName)));
-        int count = 0;
-        while ((count = is.read(buffer)) > 0) {
-            bos.write(buffer, 0, count);
-        }
-        bos.close();
+        return targetDir;
     }
 
     public static class Feature {
@@ -425,65 +504,72 @@ public class AddToRepositoryMojo extends MojoSupport {
 
         public Feature[] getFeatures() throws Exception {
             if (features == null) {
-                loadFeatures();
+                load();
             }
             return features.toArray(new Feature[features.size()]);
         }
 
         public String[] getDefinedRepositories() throws Exception {
             if (repositories == null) {
-                loadRepositories();
+                load();
             }
             return repositories.toArray(new String[repositories.size()]);
         }
 
-        private void loadRepositories() throws IOException {
+        /*
+         * Reads the features and the repositories of the descriptor in a single pass over the stream, only keeping
+         * the parts which are used
+         */
+        private void load() throws IOException {
+            List<Feature> features = new ArrayList<Feature>();
+            List<String> repositories = new ArrayList<String>();
+            InputStream is = uri.toURL().openStream();
             try {
-                repositories = new ArrayList<String>();
-                DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-                Document doc = factory.newDocumentBuilder().parse(uri.toURL().openStream());
-                NodeList nodes = doc.getDocumentElement().getChildNodes();
-                for (int i = 0; i < nodes.getLength(); i++) {
-                    org.w3c.dom.Node node = nodes.item(i);
-                    if (!(node instanceof Element) || !"repository".equals(node.getNodeName())) {
-                        continue;
+                XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(is);
+                try {
+                    // skip to the root element
+                    reader.nextTag();
+                    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                        String name = reader.getLocalName();
+                        if ("repository".equals(name)) {
+                            repositories.add(reader.getElementText().trim());
+                        } else if ("feature".equals(name)) {
+                            features.add(readFeature(reader));
+                        } else {
+                            skipElement(reader);
+                        }
                     }
-                    Element e = (Element) nodes.item(i);
-                    repositories.add(e.getTextContent().trim());
+                } finally {
+                    reader.close();
                 }
-            } catch (SAXException e) {
-                throw (IOException) new IOException().initCause(e);
-            } catch (ParserConfigurationException e) {
-                throw (IOException) new IOException().initCause(e);
+            } catch (XMLStreamException e) {
+                throw (IOException) new IOException("Unable to parse features descriptor " + uri).initCause(e);
+            } finally {
+                is.close();
             }
+            this.features = features;
+            this.repositories = repositories;
         }
 
-        private void loadFeatures() throws IOException {
-            try {
-                features = new ArrayList<Feature>();
-                DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-                Document doc = factory.newDocumentBuilder().parse(uri.toURL().openStream());
-                NodeList nodes = doc.getDocumentElement().getChildNodes();
-                for (int i = 0; i < nodes.getLength(); i++) {
-                    org.w3c.dom.Node node = nodes.item(i);
-                    if (!(node instanceof Element) || !"feature".equals(node.getNodeName())) {
-                        continue;
-                    }
-                    Element e = (Element) nodes.item(i);
-                    String name = e.getAttribute("name");
-                    String version = e.getAttribute("version");
-                    Feature f = new Feature(name);
-                    f.setVersion(version);
-                    NodeList featureNodes = e.getElementsByTagName("feature");
-                    for (int j = 0; j < featureNodes.getLength(); j++) {
-                        Element b = (Element) featureNodes.item(j);
-                        f.addDependency(b.getTextContent());
-                    }
-                    NodeList configNodes = e.getElementsByTagName("config");
-                    for (int j = 0; j < configNodes.getLength(); j++) {
-                        Element c = (Element) configNodes.item(j);
-                        String cfgName = c.getAttribute("name");
-                        String data = c.getTextContent();
+        /*
+         * Feature dependencies, bundles and configurations are picked up at any depth of the feature, including
+         * nested elements such as conditionals
+         */
+        private static Feature readFeature(XMLStreamReader reader) throws XMLStreamException, IOException {
+            Feature f = new Feature(getAttribute(reader, "name"));
+            f.setVersion(getAttribute(reader, "version"));
+            int depth = 1;
+            while (depth > 0) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                } else if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if ("feature".equals(name)) {
+                        f.addDependency(reader.getElementText());
+                    } else if ("config".equals(name)) {
+                        String cfgName = getAttribute(reader, "name");
+                        String data = reader.getElementText();
                         Properties properties = new Properties();
                         properties.load(new ByteArrayInputStream(data.getBytes()));
                         Map<String, String> hashtable = new Hashtable<String, String>();
@@ -492,23 +578,33 @@ public class AddToRepositoryMojo extends MojoSupport {
                             hashtable.put(n, properties.getProperty(n));
                         }
                         f.addConfig(cfgName, hashtable);
+                    } else if ("configfile".equals(name)) {
+                        f.addConfigFile(reader.getElementText());
+                    } else if ("bundle".equals(name)) {
+                        f.addBundle(reader.getElementText());
+                    } else {
+                        depth++;
                     }
-                    NodeList configFileNodes = e.getElementsByTagName("configfile");
-                    for (int j = 0; j < configFileNodes.getLength(); j++) {
-                        Element c = (Element) configFileNodes.item(j);
-                        f.addConfigFile(c.getTextContent());
-                    }
-                    NodeList bundleNodes = e.getElementsByTagName("bundle");
-                    for (int j = 0; j < bundleNodes.getLength(); j++) {
-                        Element b = (Element) bundleNodes.item(j);
-                        f.addBundle(b.getTextContent());
-                    }
-                    features.add(f);
                 }
-            } catch (SAXException e) {
-                throw (IOException) new IOException().initCause(e);
-            } catch (ParserConfigurationException e) {
-                throw (IOException) new IOException().initCause(e);
+            }
+            return f;
+        }
+
+        // an absent attribute is read as an empty string, like DOM does
+        private static String getAttribute(XMLStreamReader reader, String name) {
+            String value = reader.getAttributeValue(null, name);
+            return value != null ? value : "";
+        }
+
+        private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+            int depth = 1;
+            while (depth > 0) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                }
             }
         }
 
@@ -0,0 +1,110 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.tooling.features;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.felix.utils.manifest.Clause;
+import org.apache.felix.utils.version.VersionRange;
+
+/**
+ * Index of package exports by package name, with the version ranges parsed once, so that an import can be matched
+ * with a single lookup instead of comparing it with every export.
+ */
+public class ExportIndex {
+
+    private final Map<String, List<Export>> exports = new HashMap<String, List<Export>>();
+
+    private long evaluated;
+
+    public ExportIndex() {
+    }
+
+    public ExportIndex(Collection<Clause> exports) {
+        addAll(exports);
+    }
+
+    /**
+     * Add an export to the index.  Exports of a package with a version range which is already known are ignored.
+     *
+     * @param export the export clause
+     */
+    public void add(Clause export) {
+        List<Export> candidates = exports.get(export.getName());
+        if (candidates == null) {
+            candidates = new ArrayList<Export>(1);
+            exports.put(export.getName(), candidates);
+        }
+        VersionRange range = ManifestUtils.getVersionRange(export);
+        for (Export candidate : candidates) {
+            if (candidate.range.toString().equals(range.toString())) {
+                return;
+            }
+        }
+        candidates.add(new Export(export, range));
+    }
+
+    public void addAll(Collection<Clause> exports) {
+        for (Clause export : exports) {
+            add(export);
+        }
+    }
+
+    /**
+     * Find an export matching the given import, following the same rules as {@link ManifestUtils#matches(Clause, Clause)}.
+     *
+     * @param requirement the import clause
+     * @return the first matching export or <code>null</code> if the import can not be resolved
+     */
+    public Clause find(Clause requirement) {
+        List<Export> candidates = exports.get(requirement.getName());
+        if (candidates == null) {
+            return null;
+        }
+        VersionRange range = ManifestUtils.getVersionRange(requirement);
+        for (Export candidate : candidates) {
+            evaluated++;
+            if (range.intersect(candidate.range) != null) {
+                return candidate.clause;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of version range comparisons done by {@link #find(Clause)}
+     */
+    public long getEvaluated() {
+        return evaluated;
+    }
+
+    private static class Export {
+
+        private final Clause clause;
+        private final VersionRange range;
+
+        Export(Clause clause, VersionRange range) {
+            this.clause = clause;
+            this.range = range;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.tooling.features;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.felix.utils.manifest.Clause;
+
+/**
+ * The packages exported by a feature and, transitively, by the features it depends on.  The closure of the exports
+ * is computed once per feature, from the closures of its dependencies, so a feature shared by many others is only
+ * flattened once.
+ */
+class FeatureExports {
+
+    private final List<Clause> exports;
+    private final List<FeatureExports> dependencies;
+
+    private List<Clause> closure;
+    private ExportIndex index;
+
+    public FeatureExports(List<Clause> exports, List<FeatureExports> dependencies) {
+        this.exports = Collections.unmodifiableList(exports);
+        this.dependencies = Collections.unmodifiableList(dependencies);
+    }
+
+    /**
+     * Get the exports of the feature and of all the features it depends on, each export clause only once.
+     *
+     * @return the unmodifiable list of export clauses
+     */
+    public List<Clause> getClosure() {
+        if (closure == null) {
+            // the same clause is reached through every path of a diamond in the feature graph
+            Map<Clause, Boolean> seen = new IdentityHashMap<Clause, Boolean>();
+            List<Clause> all = new ArrayList<Clause>();
+            add(all, seen, exports);
+            for (FeatureExports dependency : dependencies) {
+                add(all, seen, dependency.getClosure());
+            }
+            closure = Collections.unmodifiableList(all);
+        }
+        return closure;
+    }
+
+    /**
+     * Get the index of all exports of the closure, built on the first call.
+     *
+     * @return the export index
+     */
+    public ExportIndex getIndex() {
+        if (index == null) {
+            index = new ExportIndex(getClosure());
+        }
+        return index;
+    }
+
+    private static void add(List<Clause> all, Map<Clause, Boolean> seen, List<Clause> clauses) {
+        for (Clause clause : clauses) {
+            if (seen.put(clause, Boolean.TRUE) == null) {
+                all.add(clause);
+            }
+        }
+    }
+}
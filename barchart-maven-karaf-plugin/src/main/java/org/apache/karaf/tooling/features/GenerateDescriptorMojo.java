@@ -24,7 +24,6 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
-import java.util.jar.JarInputStream;
 import java.util.jar.Manifest;
 
 import javax.xml.bind.JAXBException;
@@ -148,6 +147,13 @@ public class GenerateDescriptorMojo extends AbstractLogEnabled implements Mojo {
      */
     private Integer startLevel;
 
+    /**
+     * The directory of the cache of bundle manifest headers, shared by all builds using the same local repository
+     *
+     * @parameter default-value="${settings.localRepository}/.cache/karaf-tooling/manifests"
+     */
+    private File manifestCacheDirectory;
+
     /**
      * Installation mode. If present, generate "feature.install" attribute:
      *
@@ -353,7 +359,7 @@ public class GenerateDescriptorMojo extends AbstractLogEnabled implements Mojo {
                 File bundleFile = resolve(artifact);
                 Manifest manifest = getManifest(bundleFile);
 
-                if (manifest == null || !ManifestUtils.isBundle(getManifest(bundleFile))) {
+                if (manifest == null || !ManifestUtils.isBundle(manifest)) {
                     bundleName = "wrap:" + bundleName;
                 }
 
@@ -396,27 +402,17 @@ public class GenerateDescriptorMojo extends AbstractLogEnabled implements Mojo {
      */
 
     private Manifest getManifest(File file) throws IOException {
-        InputStream is = null;
+        Manifest m;
         try {
-            is = new BufferedInputStream(new FileInputStream(file));
+            m = ManifestCache.getInstance(manifestCacheDirectory).getManifest(file);
         } catch (Exception e) {
             getLogger().warn("Error while opening artifact", e);
             return null;
         }
-
-        try {
-            is.mark(256 * 1024);
-            JarInputStream jar = new JarInputStream(is);
-            Manifest m = jar.getManifest();
-            if (m == null) {
-                getLogger().warn("Manifest not present in the first entry of the zip - " + file.getName());
-            }
-            return m;
-        } finally {
-            if (is != null) { // just in case when we did not open bundle
-                is.close();
-            }
+        if (m == null) {
+            getLogger().warn("Manifest not present in the zip - " + file.getName());
         }
+        return m;
     }
 
     private File resolve(Artifact artifact) {
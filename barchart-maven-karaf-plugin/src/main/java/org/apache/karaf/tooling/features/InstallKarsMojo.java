@@ -20,7 +20,6 @@ package org.apache.karaf.tooling.features;
 
 import static java.lang.String.format;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -34,9 +33,15 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.xml.bind.JAXBException;
 import javax.xml.stream.XMLStreamException;
@@ -50,6 +55,7 @@ import org.apache.karaf.features.internal.model.Feature;
 import org.apache.karaf.features.internal.model.Features;
 import org.apache.karaf.features.internal.model.JaxbUtil;
 import org.apache.karaf.kar.internal.Kar;
+import org.apache.karaf.tooling.utils.FileCopier;
 import org.apache.karaf.tooling.utils.MojoSupport;
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.artifact.repository.layout.DefaultRepositoryLayout;
@@ -164,6 +170,13 @@ public class InstallKarsMojo extends MojoSupport {
      */
     private List<RemoteRepository> remoteRepos;
 
+    /**
+     * The number of threads used to resolve and copy bundles
+     *
+     * @parameter default-value="8"
+     */
+    private int resolverThreads = 8;
+
     private URI system;
     private CommentProperties startupProperties = new CommentProperties();
 
@@ -172,10 +185,13 @@ public class InstallKarsMojo extends MojoSupport {
      */
     private List<Feature> localRepoFeatures = new ArrayList<Feature>();
 
+    private FileCopier copier;
+
     @Override
     public void execute() throws MojoExecutionException, MojoFailureException {
         systemDirectory.mkdirs();
         system = systemDirectory.toURI();
+        copier = createFileCopier();
         if (startupPropertiesFile.exists()) {
             try {
                 InputStream in = new FileInputStream(startupPropertiesFile);
@@ -197,14 +213,15 @@ public class InstallKarsMojo extends MojoSupport {
         FeaturesService featuresService = new OfflineFeaturesService();
 
         Collection<Artifact> dependencies = project.getDependencyArtifacts();
+
+        // kars are extracted one after the other in dependency order, a later kar overwrites the files of an
+        // earlier one in the system directory
         StringBuilder buf = new StringBuilder();
-        byte[] buffer = new byte[4096];
         for (Artifact artifact : dependencies) {
             dontAddToStartup = "runtime".equals(artifact.getScope());
             if ("kar".equals(artifact.getType()) && acceptScope(artifact)) {
-                File file = artifact.getFile();
                 try {
-                    Kar kar = new Kar(file.toURI());
+                    Kar kar = new Kar(artifact.getFile().toURI());
                     kar.extract(new File(system.getPath()), new File(workDirectory));
                     for (URI repoUri : kar.getFeatureRepos()) {
                         featuresService.removeRepository(repoUri);
@@ -226,20 +243,14 @@ public class InstallKarsMojo extends MojoSupport {
                 artifact = factory.createArtifactWithClassifier(artifact.getGroupId(), artifact.getArtifactId(), artifact.getBaseVersion(), artifact.getType(), artifact.getClassifier());
                 File target = new File(system.resolve(layout.pathOf(artifact)));
 
-                if (!target.exists()) {
-                    target.getParentFile().mkdirs();
-                    try {
-                        InputStream is = new FileInputStream(source);
-                        BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(target));
-                        int count = 0;
-                        while ((count = is.read(buffer)) > 0) {
-                            bos.write(buffer, 0, count);
-                        }
-                        bos.close();
-                    } catch (IOException e) {
-                        getLog().error("Could not copy features " + uri + " from source file " + source, e);
-                    }
-
+                boolean copied = false;
+                try {
+                    // a features file from a previous run is only replaced when it has changed
+                    copied = copier.copy(source, target);
+                } catch (IOException e) {
+                    getLog().error("Could not copy features " + uri + " from source file " + source, e);
+                }
+                if (copied) {
                     // for snapshot, generate the repository metadata in order to avoid override of snapshot from remote repositories
                     if (artifact.isSnapshot()) {
                         getLog().debug("Feature " + uri + " is a SNAPSHOT, generate the maven-metadata-local.xml file");
@@ -262,14 +273,20 @@ public class InstallKarsMojo extends MojoSupport {
             }
         }
 
-        // install bundles listed in startup properties that weren't in kars into the system dir
-        Set keySet = startupProperties.keySet();
-        for (Object keyObject : keySet) {
-            String key = (String) keyObject;
-            String path = MavenUtil.pathFromMaven(key);
-            File target = new File(system.resolve(path));
-            if (!target.exists()) {
-                install(buffer, key, target);
+        // install bundles listed in startup properties that weren't in kars into the system dir, the copier skips
+        // targets which are unchanged and brings stale ones up to date
+        List<Callable<Object>> installations = new ArrayList<Callable<Object>>();
+        Set<File> targets = new HashSet<File>();
+        for (Object keyObject : startupProperties.keySet()) {
+            final String key = (String) keyObject;
+            final File target = new File(system.resolve(MavenUtil.pathFromMaven(key)));
+            if (targets.add(target)) {
+                installations.add(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        install(key, target);
+                        return null;
+                    }
+                });
             }
         }
 
@@ -277,37 +294,21 @@ public class InstallKarsMojo extends MojoSupport {
         for (Feature feature : localRepoFeatures) {
             for (Bundle bundle : feature.getBundle()) {
                 if (!bundle.isDependency()) {
-                    String key = bundle.getLocation();
-                    String path = MavenUtil.pathFromMaven(key);
-                    File test = new File(system.resolve(path));
-                    if (!test.exists()) {
-                        File target = new File(system.resolve(path));
-                        if (!target.exists()) {
-                            install(buffer, key, target);
-                            Artifact artifact = MavenUtil.mvnToArtifact(key);
-                            if (artifact.isSnapshot()) {
-                                // generate maven-metadata-local.xml for the artifact
-                                File metadataSource = new File(resolve(key).getParentFile(), "maven-metadata-local.xml");
-                                File metadataTarget = new File(target.getParentFile(), "maven-metadata-local.xml");
-                                metadataTarget.getParentFile().mkdirs();
-                                try {
-                                    if (!metadataSource.exists()) {
-                                        // the maven-metadata-local.xml doesn't exist in the local repo, generate one
-                                        MavenUtil.generateMavenMetadata(artifact, metadataTarget);
-                                    } else {
-                                        // copy the metadata to the target
-                                        copy(buffer, metadataSource, metadataTarget);
-                                    }
-                                } catch (IOException ioException) {
-                                    getLog().warn(ioException);
-                                    getLog().warn("Unable to copy the maven-metadata-local.xml, it means that this SNAPSHOT will be overwritten by a remote one (if exist)");
-                                }
+                    final String key = bundle.getLocation();
+                    final File target = new File(system.resolve(MavenUtil.pathFromMaven(key)));
+                    if (targets.add(target)) {
+                        installations.add(new Callable<Object>() {
+                            public Object call() throws Exception {
+                                File source = install(key, target);
+                                installMetadata(key, source, target);
+                                return null;
                             }
-                        }
+                        });
                     }
                 }
             }
         }
+        invokeAll(installations, resolverThreads);
 
         try {
             OutputStream out = new FileOutputStream(startupPropertiesFile);
@@ -319,30 +320,78 @@ public class InstallKarsMojo extends MojoSupport {
         } catch (IOException e) {
             throw new MojoFailureException("Could not write startup.properties file at " + startupPropertiesFile, e);
         }
+        getLog().info("System directory " + systemDirectory + ": " + copier);
         if (buf.length() > 0) {
             throw new MojoExecutionException("Could not unpack all dependencies:\n" + buf.toString());
         }
     }
 
-    private void install(byte[] buffer, String key, File target) throws MojoFailureException {
+    private File install(String key, File target) throws MojoFailureException {
         File source = resolve(key);
-        target.getParentFile().mkdirs();
         try {
-            copy(buffer, source, target);
+            copier.copy(source, target);
         } catch (IOException e) {
             getLog().error("Could not copy bundle " + key, e);
         }
+        return source;
     }
-    
-    private void copy(byte[] buffer, File source, File target) throws IOException {
-        target.getParentFile().mkdirs();
-        InputStream is = new FileInputStream(source);
-        BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(target));
-        int count = 0;
-        while ((count = is.read(buffer)) > 0) {
-            bos.write(buffer, 0, count);
-        }
-        bos.close();      
+
+    private void installMetadata(String key, File source, File target) {
+        Artifact artifact = MavenUtil.mvnToArtifact(key);
+        if (artifact.isSnapshot()) {
+            // generate maven-metadata-local.xml for the artifact
+            File metadataSource = new File(source.getParentFile(), "maven-metadata-local.xml");
+            File metadataTarget = new File(target.getParentFile(), "maven-metadata-local.xml");
+            metadataTarget.getParentFile().mkdirs();
+            try {
+                if (!metadataSource.exists()) {
+                    // the maven-metadata-local.xml doesn't exist in the local repo, generate one
+                    MavenUtil.generateMavenMetadata(artifact, metadataTarget);
+                } else {
+                    // copy the metadata to the target
+                    copier.copy(metadataSource, metadataTarget);
+                }
+            } catch (IOException ioException) {
+                getLog().warn(ioException);
+                getLog().warn("Unable to copy the maven-metadata-local.xml, it means that this SNAPSHOT will be overwritten by a remote one (if exist)");
+            }
+        }
+    }
+
+    /*
+     * Runs the tasks on a pool of at most the given number of threads and returns their results in the order of the
+     * tasks.  The first failure, in task order, is rethrown once all tasks are done.
+     */
+    static <T> List<T> invokeAll(List<Callable<T>> tasks, int threads)
+        throws MojoExecutionException, MojoFailureException {
+        List<T> results = new ArrayList<T>();
+        if (tasks.isEmpty()) {
+            return results;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, tasks.size())));
+        try {
+            for (Future<T> future : executor.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted while installing", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof MojoFailureException) {
+                throw (MojoFailureException) cause;
+            } else if (cause instanceof MojoExecutionException) {
+                throw (MojoExecutionException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new MojoExecutionException(cause.getMessage(), cause);
+        } finally {
+            executor.shutdownNow();
+        }
     }
 
     private boolean acceptScope(Artifact artifact) {
@@ -0,0 +1,251 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.tooling.features;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+import org.osgi.framework.Constants;
+
+/**
+ * On-disk cache of the OSGi headers of bundle manifests, shared by all builds using the same cache directory.  An entry
+ * is keyed by the absolute path of the jar and is only used while the size and modification time of the jar are
+ * unchanged, so released artifacts in the local repository are only opened once.
+ */
+public class ManifestCache {
+
+    /**
+     * The headers kept in the cache, enough for the bundle checks and the import/export validation
+     */
+    private static final String[] HEADERS = {
+        Constants.BUNDLE_MANIFESTVERSION,
+        Constants.BUNDLE_SYMBOLICNAME,
+        Constants.BUNDLE_VERSION,
+        Constants.IMPORT_PACKAGE,
+        Constants.EXPORT_PACKAGE
+    };
+
+    private static final String PATH = "path";
+    private static final String LENGTH = "length";
+    private static final String LAST_MODIFIED = "lastModified";
+    private static final String NO_MANIFEST = "noManifest";
+    private static final String HEADER_PREFIX = "header.";
+
+    private static final Map<File, ManifestCache> INSTANCES = new HashMap<File, ManifestCache>();
+
+    private final File directory;
+
+    private int hits;
+    private int misses;
+
+    private ManifestCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Get the cache for a directory.  A <code>null</code> directory disables caching.
+     *
+     * @param directory the cache directory
+     * @return the cache
+     */
+    public static synchronized ManifestCache getInstance(File directory) {
+        File key = directory != null ? directory.getAbsoluteFile() : null;
+        ManifestCache cache = INSTANCES.get(key);
+        if (cache == null) {
+            cache = new ManifestCache(key);
+            INSTANCES.put(key, cache);
+        }
+        return cache;
+    }
+
+    /**
+     * Get the manifest of a jar, limited to the OSGi headers.
+     *
+     * @param file the jar file
+     * @return the manifest or <code>null</code> if the jar does not have a manifest
+     * @throws IOException if the jar can not be read
+     */
+    public Manifest getManifest(File file) throws IOException {
+        file = file.getAbsoluteFile();
+        File entry = getEntry(file);
+        if (entry != null) {
+            Properties properties = load(entry);
+            if (properties != null
+                    && file.getPath().equals(properties.getProperty(PATH))
+                    && String.valueOf(file.length()).equals(properties.getProperty(LENGTH))
+                    && String.valueOf(file.lastModified()).equals(properties.getProperty(LAST_MODIFIED))) {
+                count(true);
+                return toManifest(properties);
+            }
+        }
+
+        count(false);
+        Manifest manifest = readManifest(file);
+        if (entry != null) {
+            store(entry, file, manifest);
+        }
+        return manifest;
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("manifest cache %s: %d hits, %d misses", directory, getHits(), getMisses());
+    }
+
+    private synchronized void count(boolean hit) {
+        if (hit) {
+            hits++;
+        } else {
+            misses++;
+        }
+    }
+
+    private Manifest readManifest(File file) throws IOException {
+        JarFile jar = new JarFile(file, false);
+        try {
+            return jar.getManifest();
+        } finally {
+            jar.close();
+        }
+    }
+
+    private Manifest toManifest(Properties properties) {
+        if (properties.getProperty(NO_MANIFEST) != null) {
+            return null;
+        }
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        for (String header : HEADERS) {
+            String value = properties.getProperty(HEADER_PREFIX + header);
+            if (value != null) {
+                attributes.putValue(header, value);
+            }
+        }
+        return manifest;
+    }
+
+    private File getEntry(File file) {
+        if (directory == null) {
+            return null;
+        }
+        String key = digest(file.getPath());
+        return new File(new File(directory, key.substring(0, 2)), key + ".properties");
+    }
+
+    private Properties load(File entry) {
+        if (!entry.isFile()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(entry);
+            properties.load(in);
+            return properties;
+        } catch (IOException e) {
+            // a broken entry is simply replaced
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+    private void store(File entry, File file, Manifest manifest) {
+        Properties properties = new Properties();
+        properties.setProperty(PATH, file.getPath());
+        properties.setProperty(LENGTH, String.valueOf(file.length()));
+        properties.setProperty(LAST_MODIFIED, String.valueOf(file.lastModified()));
+        if (manifest == null) {
+            properties.setProperty(NO_MANIFEST, "true");
+        } else {
+            for (String header : HEADERS) {
+                String value = manifest.getMainAttributes().getValue(header);
+                if (value != null) {
+                    properties.setProperty(HEADER_PREFIX + header, value);
+                }
+            }
+        }
+
+        // write to a temporary file first, other builds may read the same entry at the same time
+        entry.getParentFile().mkdirs();
+        File tmp = new File(entry.getPath() + "." + System.nanoTime() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            properties.store(out, null);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(entry)) {
+                entry.delete();
+                tmp.renameTo(entry);
+            }
+        } catch (IOException e) {
+            // the cache is only an optimization
+        } finally {
+            close(out);
+            tmp.delete();
+        }
+    }
+
+    private static String digest(String value) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest(value.getBytes("UTF-8"))) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
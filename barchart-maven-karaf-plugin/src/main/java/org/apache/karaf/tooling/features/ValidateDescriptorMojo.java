@@ -43,10 +43,14 @@ import java.io.*;
 import java.net.URI;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.jar.JarInputStream;
 import java.util.jar.Manifest;
 import java.util.zip.ZipException;
-import java.util.zip.ZipFile;
 
 import static org.apache.karaf.tooling.features.ManifestUtils.*;
 
@@ -128,6 +132,13 @@ public class ValidateDescriptorMojo extends MojoSupport {
      */
     private boolean skipNonMavenProtocols = false;
 
+    /**
+     * The number of threads used to resolve bundles and read their manifests
+     *
+     * @parameter default-value="8"
+     */
+    private int resolverThreads = 8;
+
     /*
     * A map to cache the mvn: uris and the artifacts that correspond with them if it's mvn protocol
     * or just uris itself if it's non mvn protocol
@@ -147,13 +158,29 @@ public class ValidateDescriptorMojo extends MojoSupport {
     /*
      * The packages exported by the features themselves -- useful when features depend on other features
      */
-    private Map<String, Set<Clause>> featureExports = new HashMap<String, Set<Clause>>();
+    private Map<String, FeatureExports> featureExports = new HashMap<String, FeatureExports>();
+
+    /*
+     * The features which are being validated, used to detect circular dependencies
+     */
+    private Set<String> validating = new HashSet<String>();
 
     /*
      * The set of packages exported by the system bundle and by Karaf itself
      */
     private Set<String> systemExports = new HashSet<String>();
 
+    /*
+     * The number of import/export version range comparisons done while validating
+     */
+    private long matchesEvaluated;
+
+    /*
+     * The original System.err while manifests are being read
+     */
+    private PrintStream systemErr;
+    private int hiddenSystemErr;
+
     /**
      * The Mojo's main method
      */
@@ -277,6 +304,8 @@ public class ValidateDescriptorMojo extends MojoSupport {
         info("    OK: all %d OSGi bundles have been found", bundles.size());
         info(" - step 2: Checking if all imports for bundles can be resolved");
         validateImportsExports(repository);
+        info("    %d import/export matches evaluated", matchesEvaluated);
+        debug("    %s", getManifestCache());
         info("== Done! ==========================");
     }
 
@@ -352,13 +381,8 @@ public class ValidateDescriptorMojo extends MojoSupport {
     private void analyzeExports(Repository repository) throws Exception {
         for (Feature feature : repository.getFeatures()) {
             info("    scanning feature %s for exports", feature.getName());
-            Set<Clause> exports = new HashSet<Clause>();
-            for (String bundle : getBundleLocations(feature)) {
-                exports.addAll(getExports(getManifest(bundle, bundles.get(bundle))));
-            }
-            // add the dependency feature exports
-            exports.addAll(getDependencyFeatureExports(feature));
-            featureExports.put(feature.getName(), exports);
+            featureExports.put(feature.getName(),
+                    new FeatureExports(getBundleExports(feature), getDependencyFeatureExports(feature)));
         }
     }
 
@@ -366,21 +390,68 @@ public class ValidateDescriptorMojo extends MojoSupport {
      * Check if all the bundles can be downloaded and are actually OSGi bundles and not plain JARs
      */
     private void validateBundlesAvailable(Repository repository) throws Exception {
+        // a bundle used by several features or repositories only needs to be resolved once
+        Set<String> locations = new LinkedHashSet<String>();
         for (Feature feature : repository.getFeatures()) {
             for (String bundle : getBundleLocations(feature)) {
                 if (!isMavenProtocol(bundle) && skipNonMavenProtocols) {
                     continue;
                 }
-                // this will throw an exception if the artifact can not be resolved
-                final Object artifact = resolve(bundle);
-                bundles.put(bundle, artifact);
-                if (isBundle(bundle, artifact)) {
-                    manifests.put(artifact, getManifest(bundle, artifact));
-                } else {
-                    throw new Exception(String.format("%s is not an OSGi bundle", bundle));
+                if (!bundles.containsKey(bundle)) {
+                    locations.add(bundle);
                 }
             }
         }
+        if (locations.isEmpty()) {
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(resolverThreads, locations.size())));
+        try {
+            Map<String, Future<ResolvedBundle>> futures = new LinkedHashMap<String, Future<ResolvedBundle>>();
+            for (final String bundle : locations) {
+                futures.put(bundle, executor.submit(new Callable<ResolvedBundle>() {
+                    public ResolvedBundle call() throws Exception {
+                        return resolveBundle(bundle);
+                    }
+                }));
+            }
+            for (Map.Entry<String, Future<ResolvedBundle>> entry : futures.entrySet()) {
+                ResolvedBundle resolved;
+                try {
+                    resolved = entry.getValue().get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+                bundles.put(entry.getKey(), resolved.artifact);
+                manifests.put(resolved.artifact, resolved.manifest);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /*
+     * Resolve a bundle and read its manifest, opening the archive only once
+     */
+    private ResolvedBundle resolveBundle(String bundle) throws Exception {
+        // this will throw an exception if the artifact can not be resolved
+        Object artifact = resolve(bundle);
+        boolean packaging = artifact instanceof Artifact
+                && "bundle".equals(((Artifact) artifact).getArtifactHandler().getPackaging());
+        Manifest manifest = null;
+        try {
+            manifest = getManifest(bundle, artifact);
+        } catch (Exception e) {
+            if (packaging) {
+                throw e;
+            }
+            getLog().debug("Unable to determine if " + artifact + " is a bundle; defaulting to false", e);
+        }
+        if (manifest == null || !(packaging || ManifestUtils.isBundle(manifest))) {
+            throw new Exception(String.format("%s is not an OSGi bundle", bundle));
+        }
+        return new ResolvedBundle(artifact, manifest);
     }
 
     /*
@@ -408,44 +479,64 @@ public class ValidateDescriptorMojo extends MojoSupport {
         }
     }
 
-    private Set<Clause> getDependencyFeatureExports(Feature feature) throws Exception {
-        Set<Clause> exports = new HashSet<Clause>();
-
+    /*
+     * Get the exports of the features a feature depends on, validating those features first when necessary
+     */
+    private List<FeatureExports> getDependencyFeatureExports(Feature feature) throws Exception {
+        List<FeatureExports> exports = new ArrayList<FeatureExports>();
         for (Dependency dependency : feature.getDependencies()) {
-            if (featureExports.containsKey(dependency.getName())) {
-                exports.addAll(featureExports.get(dependency.getName()));
-            } else {
+            if (validating.contains(dependency.getName())) {
+                throw new Exception(String.format("Circular dependency between features %s and %s",
+                        feature.getName(), dependency.getName()));
+            }
+            if (!featureExports.containsKey(dependency.getName())) {
                 validateImportsExports(features.get(dependency.getName(), dependency.getVersion()));
-                exports.addAll(featureExports.get(dependency.getName()));
             }
-            exports.addAll(getDependencyFeatureExports(features.get(dependency.getName(), dependency.getVersion())));
+            exports.add(featureExports.get(dependency.getName()));
         }
+        return exports;
+    }
 
-        // add the export of the feature
+    /*
+     * Get the packages exported by the bundles of a feature
+     */
+    private List<Clause> getBundleExports(Feature feature) throws Exception {
+        List<Clause> exports = new ArrayList<Clause>();
         for (String bundle : getBundleLocations(feature)) {
-            Manifest meta = manifests.get(bundles.get(bundle));
-            exports.addAll(getExports(meta));
+            exports.addAll(getExports(getBundleManifest(bundle)));
         }
         return exports;
     }
 
+    /*
+     * Get the manifest of a bundle, from the cache if it has been seen before
+     */
+    private Manifest getBundleManifest(String bundle) throws Exception {
+        Manifest manifest = manifests.get(bundles.get(bundle));
+        if (manifest == null) {
+            manifest = getManifest(bundle, bundles.get(bundle));
+        }
+        return manifest;
+    }
+
     /*
      * Validate if all imports for a feature are being matched with exports
      */
     private void validateImportsExports(Feature feature) throws Exception {
-        Map<Clause, String> imports = new HashMap<Clause, String>();
-        Set<Clause> exports = new HashSet<Clause>();
-        for (Dependency dependency : feature.getDependencies()) {
-            if (!featureExports.containsKey(dependency.getName())) {
-                validateImportsExports(features.get(dependency.getName(), dependency.getVersion()));
-            }
+        validating.add(feature.getName());
+        try {
+            doValidateImportsExports(feature);
+        } finally {
+            validating.remove(feature.getName());
         }
-        // add the exports for dependency feature
-        exports.addAll(getDependencyFeatureExports(feature));
+    }
+
+    private void doValidateImportsExports(Feature feature) throws Exception {
+        Map<Clause, String> imports = new HashMap<Clause, String>();
+        // the exports of the dependency features are validated and computed first
+        FeatureExports exports = new FeatureExports(getBundleExports(feature), getDependencyFeatureExports(feature));
         for (String bundle : getBundleLocations(feature)) {
-            Manifest meta = manifests.get(bundles.get(bundle));
-            exports.addAll(getExports(meta));
-            for (Clause clause : getMandatoryImports(meta)) {
+            for (Clause clause : getMandatoryImports(getBundleManifest(bundle))) {
                 imports.put(clause, bundle);
             }
         }
@@ -455,21 +546,23 @@ public class ValidateDescriptorMojo extends MojoSupport {
         requirements.addAll(imports.keySet());
 
         // now, let's remove requirements whenever we find a matching export for them
+        ExportIndex index = exports.getIndex();
+        long evaluated = index.getEvaluated();
         for (Clause element : imports.keySet()) {
             if (systemExports.contains(element.getName())) {
                 debug("%s is resolved by a system bundle export or provided bundle", element);
                 requirements.remove(element);
                 continue;
             }
-            for (Clause export : exports) {
-                if (matches(element, export)) {
-                    debug("%s is resolved by export %s", element, export);
-                    requirements.remove(element);
-                    continue;
-                }
-                debug("%s is not resolved by export %s", element, export);
+            Clause export = index.find(element);
+            if (export != null) {
+                debug("%s is resolved by export %s", element, export);
+                requirements.remove(element);
+            } else {
+                debug("%s is not resolved by any export", element);
             }
         }
+        matchesEvaluated += index.getEvaluated() - evaluated;
 
         // if there are any more requirements left here, there's a problem with the feature 
         if (!requirements.isEmpty()) {
@@ -481,36 +574,15 @@ public class ValidateDescriptorMojo extends MojoSupport {
             throw new Exception(String.format("%d unresolved imports in feature %s",
                     requirements.size(), feature.getName()));
         }
-        info("    OK: imports resolved for %s", feature.getName());
+        info("    OK: imports resolved for %s (%d matches evaluated)", feature.getName(), index.getEvaluated());
         featureExports.put(feature.getName(), exports);
     }
 
-    /*
-    * Check if the artifact is an OSGi bundle
-    */
-    private boolean isBundle(String bundle, Object artifact) {
-        if (artifact instanceof Artifact && "bundle".equals(((Artifact) artifact).getArtifactHandler().getPackaging())) {
-            return true;
-        } else {
-            try {
-                return ManifestUtils.isBundle(getManifest(bundle, artifact));
-            } catch (ZipException e) {
-                getLog().debug("Unable to determine if " + artifact + " is a bundle; defaulting to false", e);
-            } catch (IOException e) {
-                getLog().debug("Unable to determine if " + artifact + " is a bundle; defaulting to false", e);
-            } catch (Exception e) {
-                getLog().debug("Unable to determine if " + artifact + " is a bundle; defaulting to false", e);
-            }
-        }
-        return false;
-    }
-
     /*
      * Extract the META-INF/MANIFEST.MF file from an artifact
      */
     private Manifest getManifest(String bundle, Object artifact) throws ArtifactResolutionException, ArtifactNotFoundException,
             ZipException, IOException {
-        ZipFile file = null;
         if (!(artifact instanceof Artifact)) {
             //not resolved as mvn artifact, so it's non-mvn protocol, just use the CustomBundleURLStreamHandlerFactory
             // to open stream
@@ -537,27 +609,47 @@ public class ValidateDescriptorMojo extends MojoSupport {
             }
         } else {
             Artifact mvnArtifact = (Artifact) artifact;
-            File localFile = new File(localRepo.pathOf(mvnArtifact));
-            if (localFile.exists()) {
+            File localFile = mvnArtifact.getFile();
+            if (localFile == null || !localFile.exists()) {
+                localFile = new File(localRepo.getBasedir(), localRepo.pathOf(mvnArtifact));
+            }
+            if (!localFile.exists()) {
                 // avoid going over to the repository if the file is already on
                 // the disk
-                file = new ZipFile(localFile);
-            } else {
                 resolver.resolve(mvnArtifact, remoteRepos, localRepo);
-                file = new ZipFile(mvnArtifact.getFile());
+                localFile = mvnArtifact.getFile();
             }
             // let's replace syserr for now to hide warnings being issues by the Manifest reading process
-            PrintStream original = System.err;
+            hideSystemErr();
             try {
-                System.setErr(new PrintStream(new ByteArrayOutputStream()));
-                Manifest manifest = new Manifest(file.getInputStream(file.getEntry("META-INF/MANIFEST.MF")));
+                Manifest manifest = getManifestCache().getManifest(localFile);
+                if (manifest == null) {
+                    throw new IOException("Manifest not present in " + localFile);
+                }
                 return manifest;
             } finally {
-                System.setErr(original);
+                restoreSystemErr();
             }
         }
     }
 
+    /*
+     * Replace System.err until the matching restoreSystemErr(), manifests may be read by several threads at once
+     */
+    private synchronized void hideSystemErr() {
+        if (hiddenSystemErr++ == 0) {
+            systemErr = System.err;
+            System.setErr(new PrintStream(new ByteArrayOutputStream()));
+        }
+    }
+
+    private synchronized void restoreSystemErr() {
+        if (--hiddenSystemErr == 0) {
+            System.setErr(systemErr);
+            systemErr = null;
+        }
+    }
+
     /*
      * Resolve an artifact, downloading it from remote repositories when necessary
      */
@@ -648,6 +740,20 @@ public class ValidateDescriptorMojo extends MojoSupport {
         getLog().error(String.format(message, parms), error);
     }
 
+    /*
+     * A resolved bundle together with its manifest
+     */
+    private static class ResolvedBundle {
+
+        private final Object artifact;
+        private final Manifest manifest;
+
+        public ResolvedBundle(Object artifact, Manifest manifest) {
+            this.artifact = artifact;
+            this.manifest = manifest;
+        }
+    }
+
     /*
      * Convenience collection for holding features
      */
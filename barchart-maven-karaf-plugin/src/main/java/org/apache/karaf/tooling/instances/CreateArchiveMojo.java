@@ -20,17 +20,35 @@
 
 package org.apache.karaf.tooling.instances;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
 
 import org.apache.karaf.tooling.utils.MojoSupport;
 import org.apache.maven.model.Resource;
-import org.apache.tools.ant.Project;
-import org.apache.tools.ant.taskdefs.MatchingTask;
-import org.apache.tools.ant.taskdefs.Tar;
-import org.apache.tools.ant.taskdefs.Zip;
-import org.apache.tools.ant.types.TarFileSet;
-import org.apache.tools.ant.types.ZipFileSet;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarOutputStream;
+import org.apache.tools.zip.UnixStat;
+import org.apache.tools.zip.ZipEntry;
+import org.apache.tools.zip.ZipOutputStream;
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
@@ -46,6 +64,8 @@ import org.apache.maven.plugin.MojoFailureException;
  */
 public class CreateArchiveMojo extends MojoSupport {
 
+    private static final String[] TYPES = { "tar.gz", "zip" };
+
     /**
      * The target directory of the project.
      *
@@ -72,107 +92,266 @@ public class CreateArchiveMojo extends MojoSupport {
      */
     private File targetFile;
 
+    /**
+     * Timestamp of all archive entries, either as seconds since the epoch or as an ISO 8601 date and time such as
+     * 2013-01-01T00:00:00Z.  When set, the entries also get a neutral owner, so an unchanged server produces identical
+     * archives.  When empty, the modification times of the files are used.
+     *
+     * @parameter default-value="${project.build.outputTimestamp}"
+     */
+    private String outputTimestamp;
+
+    /**
+     * The number of threads compressing the archives, all available processors when 0 or less
+     *
+     * @parameter default-value="0"
+     */
+    private int compressionThreads;
 
     public void execute() throws MojoExecutionException, MojoFailureException {
         getLog().debug("Setting artifact file: " + targetFile);
         org.apache.maven.artifact.Artifact artifact = project.getArtifact();
         artifact.setFile(targetFile);
+        int threads = compressionThreads > 0 ? compressionThreads : Runtime.getRuntime().availableProcessors();
+        ExecutorService archivers = Executors.newFixedThreadPool(TYPES.length);
+        ExecutorService compressors = Executors.newFixedThreadPool(threads);
         try {
-            //now pack up the server.
-            archive("tar.gz");
-            archive("zip");
+            long timestamp = parseTimestamp(outputTimestamp);
+            //now pack up the server, all archives from the same scan of the server
+            List<ArchiveEntry> entries = scan(targetServerDirectory, getServerName(project.getArtifact()));
+            List<Future<File>> futures = new ArrayList<Future<File>>();
+            List<Artifact> artifacts = new ArrayList<Artifact>();
+            for (String type : TYPES) {
+                final Artifact artifact1 = factory.createArtifactWithClassifier(project.getArtifact().getGroupId(), project.getArtifact().getArtifactId(), project.getArtifact().getVersion(), type, "bin");
+                futures.add(archivers.submit(new ArchiveTask(entries, artifact1, timestamp, compressors, threads)));
+                artifacts.add(artifact1);
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                File target1 = futures.get(i).get();
+                projectHelper.attachArtifact( project, artifacts.get(i).getType(), null, target1 );
+            }
+        } catch (ExecutionException e) {
+            throw new MojoExecutionException("Could not archive plugin", e.getCause());
         } catch (Exception e) {
             throw new MojoExecutionException("Could not archive plugin", e);
+        } finally {
+            archivers.shutdownNow();
+            compressors.shutdownNow();
         }
     }
 
-    private void archive(String type) throws IOException {
-        Artifact artifact1 = factory.createArtifactWithClassifier(project.getArtifact().getGroupId(), project.getArtifact().getArtifactId(), project.getArtifact().getVersion(), type, "bin");
-        File target1 = archive(targetServerDirectory, destDir, artifact1);
-        projectHelper.attachArtifact( project, artifact1.getType(), null, target1 );
-    }
-
     public File archive(File source, File dest, Artifact artifact) throws //ArchiverException,
             IOException {
-        String serverName = artifact.getArtifactId() + "-" + artifact.getVersion();
-        dest = new File(dest, serverName + "." + artifact.getType());
-        Project project = new Project();
-        MatchingTask archiver;
-        if ("tar.gz".equals(artifact.getType())) {
-            Tar tar = new Tar();
-            Tar.TarCompressionMethod tarCompressionMethod = new Tar.TarCompressionMethod();
-            tarCompressionMethod.setValue("gzip");
-            tar.setCompression(tarCompressionMethod);
-            Tar.TarLongFileMode fileMode = new Tar.TarLongFileMode();
-            fileMode.setValue(Tar.TarLongFileMode.GNU);
-            tar.setLongfile(fileMode);
-            tar.setDestFile(dest);
-            TarFileSet rc = new TarFileSet();
-            rc.setDir(source);
-            rc.setPrefix(serverName);
-            rc.setProject(project);
-            rc.setExcludes("bin/");
-            tar.add(rc);
-
-            rc = new TarFileSet();
-            rc.setDir(source);
-            rc.setPrefix(serverName);
-            rc.setProject(project);
-            rc.setIncludes("bin/");
-            rc.setExcludes("bin/*.bat");
-            rc.setFileMode("755");
-            tar.add(rc);
-
-            rc = new TarFileSet();
-            rc.setDir(source);
-            rc.setPrefix(serverName);
-            rc.setProject(project);
-            rc.setIncludes("bin/*.bat");
-            tar.add(rc);
-
-            for (Resource resource: this.project.getResources()) {
-                File resourceFile = new File(resource.getDirectory());
-                if (resourceFile.exists()) {
-                    rc = new TarFileSet();
-                    rc.setPrefix(serverName);
-                    rc.setProject(project);
-                    rc.setDir(resourceFile);
-                    rc.appendIncludes(resource.getIncludes().toArray(new String[0]));
-                    rc.appendExcludes(resource.getExcludes().toArray(new String[0]));
-                    tar.add(rc);
+        ExecutorService compressors = Executors.newSingleThreadExecutor();
+        try {
+            List<ArchiveEntry> entries = scan(source, getServerName(artifact));
+            return new ArchiveTask(entries, artifact, parseTimestamp(outputTimestamp), compressors, 1).archive(dest);
+        } finally {
+            compressors.shutdownNow();
+        }
+    }
+
+    private static String getServerName(Artifact artifact) {
+        return artifact.getArtifactId() + "-" + artifact.getVersion();
+    }
+
+    /*
+     * Collects the files of the server and of the project resources, sorted by their name in the archive.  Files in the
+     * resources replace the files of the server with the same name.
+     */
+    private List<ArchiveEntry> scan(File source, String serverName) {
+        Map<String, ArchiveEntry> entries = new TreeMap<String, ArchiveEntry>();
+        String prefix = serverName + "/";
+        entries.put(prefix, new ArchiveEntry(prefix, null, UnixStat.DIR_FLAG | 0755));
+        scan(entries, prefix, source, null, null);
+        for (Resource resource: this.project.getResources()) {
+            File resourceFile = new File(resource.getDirectory());
+            if (resourceFile.exists()) {
+                scan(entries, prefix, resourceFile, resource.getIncludes(), resource.getExcludes());
+            }
+        }
+        return new ArrayList<ArchiveEntry>(entries.values());
+    }
+
+    private static void scan(Map<String, ArchiveEntry> entries, String prefix, File dir, List<String> includes,
+            List<String> excludes) {
+        DirectoryScanner scanner = new DirectoryScanner();
+        scanner.setBasedir(dir);
+        if (includes != null && !includes.isEmpty()) {
+            scanner.setIncludes(includes.toArray(new String[includes.size()]));
+        }
+        if (excludes != null && !excludes.isEmpty()) {
+            scanner.setExcludes(excludes.toArray(new String[excludes.size()]));
+        }
+        scanner.addDefaultExcludes();
+        scanner.scan();
+        for (String path : scanner.getIncludedDirectories()) {
+            if (path.length() > 0) {
+                String name = prefix + path.replace(File.separatorChar, '/') + "/";
+                entries.put(name, new ArchiveEntry(name, null, UnixStat.DIR_FLAG | 0755));
+            }
+        }
+        for (String path : scanner.getIncludedFiles()) {
+            String relative = path.replace(File.separatorChar, '/');
+            // the scripts in bin are executable, except for the windows ones
+            int mode = relative.startsWith("bin/") && !relative.endsWith(".bat") ? 0755 : 0644;
+            String name = prefix + relative;
+            entries.put(name, new ArchiveEntry(name, new File(dir, path), UnixStat.FILE_FLAG | mode));
+        }
+    }
+
+    /*
+     * Returns -1 when no timestamp is configured
+     */
+    private static long parseTimestamp(String timestamp) throws IOException {
+        if (timestamp == null || timestamp.trim().length() == 0) {
+            return -1;
+        }
+        String value = timestamp.trim();
+        if (value.matches("\\d+")) {
+            return Long.parseLong(value) * 1000;
+        }
+        // SimpleDateFormat of Java 6 only understands offsets like +0000
+        if (value.endsWith("Z")) {
+            value = value.substring(0, value.length() - 1) + "+0000";
+        } else if (value.matches(".*[+-]\\d\\d:\\d\\d")) {
+            value = value.substring(0, value.length() - 3) + value.substring(value.length() - 2);
+        }
+        try {
+            return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").parse(value).getTime();
+        } catch (ParseException e) {
+            throw (IOException) new IOException("Invalid output timestamp: " + timestamp).initCause(e);
+        }
+    }
+
+    private static class ArchiveEntry {
+
+        private final String name;
+        private final File file;
+        private final int mode;
+
+        ArchiveEntry(String name, File file, int mode) {
+            this.name = name;
+            this.file = file;
+            this.mode = mode;
+        }
+
+        boolean isDirectory() {
+            return file == null;
+        }
+
+        long getTime(long timestamp) {
+            return timestamp >= 0 ? timestamp : file != null ? file.lastModified() : System.currentTimeMillis();
+        }
+
+    }
+
+    /*
+     * Writes one archive of the scanned entries
+     */
+    private class ArchiveTask implements Callable<File> {
+
+        private final List<ArchiveEntry> entries;
+        private final Artifact artifact;
+        private final long timestamp;
+        private final ExecutorService compressors;
+        private final int threads;
+        private final byte[] buffer = new byte[64 * 1024];
+
+        ArchiveTask(List<ArchiveEntry> entries, Artifact artifact, long timestamp, ExecutorService compressors,
+                int threads) {
+            this.entries = entries;
+            this.artifact = artifact;
+            this.timestamp = timestamp;
+            this.compressors = compressors;
+            this.threads = threads;
+        }
+
+        public File call() throws IOException {
+            return archive(destDir);
+        }
+
+        File archive(File dest) throws IOException {
+            dest = new File(dest, getServerName(artifact) + "." + artifact.getType());
+            long start = System.currentTimeMillis();
+            if ("tar.gz".equals(artifact.getType())) {
+                writeTarGz(dest);
+            } else if ("zip".equals(artifact.getType())) {
+                writeZip(dest);
+            } else {
+                throw new IllegalArgumentException("Unknown target type: " + artifact.getType());
+            }
+            getLog().info(String.format("Created %s with %d entries in %d ms", dest, entries.size(),
+                System.currentTimeMillis() - start));
+            return dest;
+        }
+
+        private void writeTarGz(File dest) throws IOException {
+            OutputStream out = new ParallelGzipOutputStream(new BufferedOutputStream(new FileOutputStream(dest)),
+                compressors, threads, Deflater.DEFAULT_COMPRESSION);
+            TarOutputStream tar = new TarOutputStream(out);
+            try {
+                tar.setLongFileMode(TarOutputStream.LONGFILE_GNU);
+                for (ArchiveEntry entry : entries) {
+                    TarEntry tarEntry = new TarEntry(entry.name);
+                    tarEntry.setMode(entry.mode);
+                    tarEntry.setModTime(entry.getTime(timestamp));
+                    if (timestamp >= 0) {
+                        tarEntry.setUserId(0);
+                        tarEntry.setGroupId(0);
+                        tarEntry.setUserName("");
+                        tarEntry.setGroupName("");
+                    }
+                    if (!entry.isDirectory()) {
+                        tarEntry.setSize(entry.file.length());
+                    }
+                    tar.putNextEntry(tarEntry);
+                    if (!entry.isDirectory()) {
+                        copy(entry.file, tar);
+                    }
+                    tar.closeEntry();
                 }
+            } finally {
+                tar.close();
             }
+        }
 
-            archiver = tar;
-        } else if ("zip".equals(artifact.getType())) {
-            Zip zip = new Zip();
-            zip.setDestFile(dest);
-            ZipFileSet fs = new ZipFileSet();
-            fs.setDir(source);
-            fs.setPrefix(serverName);
-            fs.setProject(project);
-            zip.addFileset(fs);
-
-            for (Resource resource: this.project.getResources()) {
-                File resourceFile = new File(resource.getDirectory());
-                if (resourceFile.exists()) {
-                    fs = new ZipFileSet();
-                    fs.setPrefix(serverName);
-                    fs.setProject(project);
-                    fs.setDir(resourceFile);
-                    fs.appendIncludes(resource.getIncludes().toArray(new String[0]));
-                    fs.appendExcludes(resource.getExcludes().toArray(new String[0]));
-                    zip.add(fs);
+        private void writeZip(File dest) throws IOException {
+            ZipOutputStream zip = new ZipOutputStream(dest);
+            try {
+                zip.setEncoding("UTF8");
+                for (ArchiveEntry entry : entries) {
+                    ZipEntry zipEntry = new ZipEntry(entry.name);
+                    zipEntry.setUnixMode(entry.mode);
+                    long time = entry.getTime(timestamp);
+                    if (timestamp >= 0) {
+                        // zip entries keep the local time, store the same fields wherever the build runs
+                        time -= TimeZone.getDefault().getOffset(time);
+                    }
+                    zipEntry.setTime(time);
+                    zip.putNextEntry(zipEntry);
+                    if (!entry.isDirectory()) {
+                        copy(entry.file, zip);
+                    }
+                    zip.closeEntry();
                 }
+            } finally {
+                zip.close();
             }
+        }
 
-            archiver = zip;
-        } else {
-            throw new IllegalArgumentException("Unknown target type: " + artifact.getType());
+        private void copy(File file, OutputStream out) throws IOException {
+            InputStream in = new FileInputStream(file);
+            try {
+                int count;
+                while ((count = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                in.close();
+            }
         }
-        archiver.setProject(project);
-        archiver.execute();
-        return dest;
+
     }
 
 }
@@ -0,0 +1,248 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.karaf.tooling.instances;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip stream which compresses blocks of its input concurrently, the way pigz does.  Each block is deflated on its
+ * own, primed with the last 32 KB of the block before it, and all but the last block end with a sync flush, so the
+ * blocks together form a single deflate stream.  The output is one gzip member, which every gzip reader can read.
+ * It only depends on the input, the block size and the compression level, not on the number of threads.
+ * <p/>
+ * The sync flush needs Java 7.  On older versions the blocks are compressed one after the other by the calling thread.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    private static final int BLOCK_SIZE = 1024 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // no file name and no modification time, so the output only depends on the input
+    private static final byte[] HEADER = {(byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+    // Deflater.deflate(byte[], int, int, int) and Deflater.SYNC_FLUSH are only available on Java 7 and later
+    private static final int SYNC_FLUSH = 2;
+    private static final Method DEFLATE = getDeflateMethod();
+
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final int level;
+    private final int maxPending;
+    private final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+    private final CRC32 crc = new CRC32();
+
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int count;
+    private byte[] previous;
+    private long size;
+    private Deflater deflater;
+    private boolean started;
+    private boolean closed;
+
+    /**
+     * @param out      the stream to write the compressed data to
+     * @param executor the executor compressing the blocks
+     * @param threads  the number of threads of the executor, bounds the number of blocks kept in memory
+     * @param level    the compression level, see {@link Deflater}
+     */
+    public ParallelGzipOutputStream(OutputStream out, ExecutorService executor, int threads, int level) {
+        this.out = out;
+        this.executor = executor;
+        this.level = level;
+        this.maxPending = Math.max(1, threads) * 2;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (count == block.length) {
+            submit(false);
+        }
+        block[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            if (count == block.length) {
+                submit(false);
+            }
+            int n = Math.min(len, block.length - count);
+            System.arraycopy(b, off, block, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            // a full block is only submitted once more data follows, so the last block is always submitted here
+            submit(true);
+            while (!pending.isEmpty()) {
+                writeNext();
+            }
+            writeInt((int) crc.getValue());
+            writeInt((int) size);
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+            out.close();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    private void submit(final boolean last) throws IOException {
+        if (!started) {
+            out.write(HEADER);
+            started = true;
+        }
+        final byte[] data = block;
+        final int length = count;
+        final byte[] dictionary = previous;
+        crc.update(data, 0, length);
+        size += length;
+        previous = data;
+        block = last ? null : new byte[BLOCK_SIZE];
+        count = 0;
+        if (DEFLATE == null) {
+            out.write(compressSequentially(data, length, last));
+            return;
+        }
+        pending.add(executor.submit(new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+                return compress(data, length, dictionary, level, last);
+            }
+        }));
+        while (pending.size() > maxPending) {
+            writeNext();
+        }
+    }
+
+    private void writeNext() throws IOException {
+        try {
+            out.write(pending.removeFirst().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw (IOException) new IOException("Interrupted while compressing").initCause(e);
+        } catch (ExecutionException e) {
+            throw (IOException) new IOException("Unable to compress: " + e.getCause().getMessage()).initCause(e.getCause());
+        }
+    }
+
+    private void writeInt(int value) throws IOException {
+        // little endian, as gzip wants it
+        out.write(value & 0xff);
+        out.write((value >> 8) & 0xff);
+        out.write((value >> 16) & 0xff);
+        out.write((value >> 24) & 0xff);
+    }
+
+    /*
+     * Compresses a block on its own.  The dictionary is the block before it, which is always a full block, so the
+     * back references of the deflate stream may reach into it.
+     */
+    private static byte[] compress(byte[] data, int length, byte[] dictionary, int level, boolean last)
+        throws IOException {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary, dictionary.length - DICTIONARY_SIZE, DICTIONARY_SIZE);
+            }
+            deflater.setInput(data, 0, length);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    bos.write(buffer, 0, deflater.deflate(buffer));
+                }
+            } else {
+                // ends the block on a byte boundary without marking it as the final one, so the next block follows it
+                int n;
+                do {
+                    n = syncFlush(deflater, buffer);
+                    bos.write(buffer, 0, n);
+                } while (n == buffer.length);
+            }
+            return bos.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private byte[] compressSequentially(byte[] data, int length, boolean last) {
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        }
+        deflater.setInput(data, 0, length);
+        if (last) {
+            deflater.finish();
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(length / 2 + 64);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (last ? !deflater.finished() : !deflater.needsInput()) {
+            bos.write(buffer, 0, deflater.deflate(buffer));
+        }
+        return bos.toByteArray();
+    }
+
+    private static int syncFlush(Deflater deflater, byte[] buffer) throws IOException {
+        try {
+            return (Integer) DEFLATE.invoke(deflater, buffer, 0, buffer.length, SYNC_FLUSH);
+        } catch (IllegalAccessException e) {
+            throw (IOException) new IOException("Unable to compress").initCause(e);
+        } catch (InvocationTargetException e) {
+            throw (IOException) new IOException("Unable to compress: " + e.getCause().getMessage()).initCause(e.getCause());
+        }
+    }
+
+    private static Method getDeflateMethod() {
+        try {
+            return Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,233 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.tooling.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies files into an assembly, skipping targets which are already identical to their source.  A target is
+ * considered identical when it has the same size and, for sources in the local Maven repository, the same modification
+ * time, or otherwise the same SHA-1 checksum.  Sources in the local repository can also be hard linked instead of
+ * copied.  A copier is safe to use from several threads.
+ */
+public class FileCopier {
+
+    private final boolean skipUnchanged;
+    private final String localRepository;
+    private final boolean hardLink;
+
+    private final AtomicLong copied = new AtomicLong();
+    private final AtomicLong copiedBytes = new AtomicLong();
+    private final AtomicLong linked = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong skippedBytes = new AtomicLong();
+
+    // Files.createLink() and File.toPath() are only available on Java 7 and later
+    private volatile Method createLink;
+    private volatile Method toPath;
+    private volatile boolean linkUnsupported;
+
+    /**
+     * @param skipUnchanged   leave targets which are identical to their source untouched
+     * @param localRepository the base directory of the local Maven repository, may be <code>null</code>
+     * @param hardLink        hard link files from the local repository instead of copying them
+     */
+    public FileCopier(boolean skipUnchanged, File localRepository, boolean hardLink) {
+        this.skipUnchanged = skipUnchanged;
+        this.localRepository = localRepository != null ? localRepository.getAbsolutePath() + File.separator : null;
+        this.hardLink = hardLink;
+    }
+
+    /**
+     * Copy a file, creating the parent directories of the target as needed.
+     *
+     * @param source the file to copy
+     * @param target the file to write
+     * @return <code>false</code> if the target was already identical to the source and has been left untouched
+     * @throws IOException if the file cannot be copied
+     */
+    public boolean copy(File source, File target) throws IOException {
+        boolean fromLocalRepository = isInLocalRepository(source);
+        if (skipUnchanged && isUnchanged(source, target, fromLocalRepository)) {
+            skipped.incrementAndGet();
+            skippedBytes.addAndGet(target.length());
+            return false;
+        }
+        File dir = target.getParentFile();
+        // another thread may be creating the same directory
+        if (dir != null && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Unable to create target directory: " + dir);
+        }
+        if (hardLink && fromLocalRepository && link(source, target)) {
+            linked.incrementAndGet();
+            return true;
+        }
+        replace(source, target);
+        copied.incrementAndGet();
+        copiedBytes.addAndGet(source.length());
+        return true;
+    }
+
+    public long getCopied() {
+        return copied.get();
+    }
+
+    public long getCopiedBytes() {
+        return copiedBytes.get();
+    }
+
+    public long getLinked() {
+        return linked.get();
+    }
+
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    public long getSkippedBytes() {
+        return skippedBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d files copied (%d bytes), %d linked, %d unchanged files skipped (%d bytes)",
+            getCopied(), getCopiedBytes(), getLinked(), getSkipped(), getSkippedBytes());
+    }
+
+    private boolean isInLocalRepository(File source) {
+        return localRepository != null && source.getAbsolutePath().startsWith(localRepository);
+    }
+
+    /*
+     * Files from the local repository are only replaced by Maven, which updates their modification time, so the
+     * checksum is only needed for other sources
+     */
+    private boolean isUnchanged(File source, File target, boolean fromLocalRepository) throws IOException {
+        if (!target.isFile() || target.length() != source.length()) {
+            return false;
+        }
+        if (fromLocalRepository && target.lastModified() == source.lastModified()) {
+            return true;
+        }
+        return Arrays.equals(checksum(source), checksum(target));
+    }
+
+    private static byte[] checksum(File file) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                md.update(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return md.digest();
+    }
+
+    /*
+     * Hard links need Java 7, and fail when the local repository is on another file system.  In both cases the file
+     * is copied instead.
+     */
+    private boolean link(File source, File target) {
+        if (linkUnsupported) {
+            return false;
+        }
+        try {
+            if (createLink == null) {
+                Class<?> path = Class.forName("java.nio.file.Path");
+                Class<?> files = Class.forName("java.nio.file.Files");
+                toPath = File.class.getMethod("toPath");
+                createLink = files.getMethod("createLink", path, path);
+            }
+        } catch (Exception e) {
+            linkUnsupported = true;
+            return false;
+        }
+        if (target.exists() && !target.delete()) {
+            return false;
+        }
+        try {
+            createLink.invoke(null, toPath.invoke(target), toPath.invoke(source));
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /*
+     * The target may be a hard link to a file in the local repository made by an earlier run, so it must never be
+     * written in place.  The copy goes to a temporary file which then replaces the target.
+     */
+    private static void replace(File source, File target) throws IOException {
+        File tmp = File.createTempFile(target.getName(), ".tmp", target.getAbsoluteFile().getParentFile());
+        try {
+            transfer(source, tmp);
+            // keep the modification time so an unchanged source is recognized on the next run
+            tmp.setLastModified(source.lastModified());
+            if (!tmp.renameTo(target)) {
+                // renaming over an existing file fails on Windows
+                if (!target.delete() || !tmp.renameTo(target)) {
+                    throw new IOException("Unable to replace " + target);
+                }
+            }
+        } finally {
+            if (tmp.exists()) {
+                tmp.delete();
+            }
+        }
+    }
+
+    private static void transfer(File source, File target) throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileOutputStream out = new FileOutputStream(target);
+            try {
+                FileChannel inChannel = in.getChannel();
+                FileChannel outChannel = out.getChannel();
+                long size = inChannel.size();
+                long position = 0;
+                while (position < size) {
+                    position += inChannel.transferTo(position, size - position, outChannel);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+}
@@ -29,6 +29,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.apache.karaf.tooling.features.ManifestCache;
 import org.apache.karaf.tooling.features.Node;
 import org.apache.karaf.tooling.features.ResolutionListenerImpl;
 import org.apache.maven.artifact.Artifact;
@@ -114,6 +115,37 @@ public abstract class MojoSupport extends AbstractMojo {
      */
     private String featureArtifactType = "xml";
 
+    /**
+     * The directory of the cache of bundle manifest headers, shared by all builds using the same local repository
+     *
+     * @parameter default-value="${settings.localRepository}/.cache/karaf-tooling/manifests"
+     */
+    protected File manifestCacheDirectory;
+
+    protected ManifestCache getManifestCache() {
+        return ManifestCache.getInstance(manifestCacheDirectory);
+    }
+
+    /**
+     * Leave files in the assembly untouched when they are identical to the file they would be copied from
+     *
+     * @parameter default-value="true"
+     */
+    protected boolean skipUnchangedFiles = true;
+
+    /**
+     * Hard link files from the local repository into the assembly instead of copying them, when both are on the same
+     * file system and the JVM supports it.  The linked files must not be modified in the assembly.
+     *
+     * @parameter default-value="false"
+     */
+    protected boolean hardLinkFromLocalRepository;
+
+    protected FileCopier createFileCopier() {
+        File localRepository = localRepo != null ? new File(localRepo.getBasedir()) : null;
+        return new FileCopier(skipUnchangedFiles, localRepository, hardLinkFromLocalRepository);
+    }
+
     protected MavenProject getProject() {
         return project;
     }
@@ -7,9 +7,17 @@ import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.junit.Test;
 
+import static org.junit.Assert.*;
+
 import java.lang.reflect.Field;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Created by IntelliJ IDEA.
@@ -46,4 +54,132 @@ public class AddToRepositoryMojoTest extends AddToRepositoryMojo {
         assert repos.length == 1;
         assert repos[0].equals("http://foo.org");
     }
+
+    @Test
+    public void testReadFeatures() throws Exception {
+        URL in = getClass().getClassLoader().getResource("input-features-content.xml");
+        AddToRepositoryMojo.Repository repo = new AddToRepositoryMojo.Repository(in.toURI());
+
+        AddToRepositoryMojo.Feature[] features = repo.getFeatures();
+        assertEquals(3, features.length);
+        assertArrayEquals(new String[] {"mvn:org.example/more/1.0.0/xml/features"}, repo.getDefinedRepositories());
+
+        AddToRepositoryMojo.Feature base = features[0];
+        assertEquals("base", base.getName());
+        assertEquals("1.0.0", base.getVersion());
+        assertEquals(Arrays.asList("mvn:org.example/base/1.0.0"), base.getBundles());
+        assertTrue(base.getDependencies().isEmpty());
+        assertTrue(base.getConfigurations().isEmpty());
+        assertTrue(base.getConfigFiles().isEmpty());
+
+        // nested content, such as conditionals, counts like the direct content of the feature
+        AddToRepositoryMojo.Feature app = features[1];
+        assertEquals("app", app.getName());
+        assertEquals("2.0.0", app.getVersion());
+        assertEquals(Arrays.asList("base", "http"), app.getDependencies());
+        assertEquals(Arrays.asList("mvn:org.example/app/2.0.0", "mvn:org.example/app-web/2.0.0"), app.getBundles());
+        assertEquals(Arrays.asList("mvn:org.example/app/2.0.0/xml/config", "mvn:org.example/app-web/2.0.0/cfg"),
+                app.getConfigFiles());
+        assertEquals(1, app.getConfigurations().size());
+        Map<String, String> config = app.getConfigurations().get("org.example.app");
+        assertEquals(2, config.size());
+        assertEquals("value", config.get("key"));
+        assertEquals("2", config.get("other"));
+
+        // absent attributes are read as empty strings
+        AddToRepositoryMojo.Feature unversioned = features[2];
+        assertEquals("unversioned", unversioned.getName());
+        assertEquals("", unversioned.getVersion());
+        assertTrue(unversioned.getBundles().isEmpty());
+    }
+
+    @Test
+    public void testHighestVersion() throws Exception {
+        Map<String, Feature> featuresMap = features(feature("web", "1.2.0"), feature("web", "1.10.0"),
+                feature("web", "1.9.0"), feature("base", "1.0.0"));
+        Map<String, List<Feature>> featuresByName = indexFeatures(featuresMap);
+
+        // versions are compared as versions, not as strings
+        assertEquals("1.10.0", findFeature("web", featuresMap, featuresByName).getVersion());
+        assertEquals("1.2.0", findFeature("web/1.2.0", featuresMap, featuresByName).getVersion());
+        assertEquals("1.0.0", findFeature("base", featuresMap, featuresByName).getVersion());
+        try {
+            findFeature("web/2.0.0", featuresMap, featuresByName);
+            fail("Found a missing version");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            findFeature("other", featuresMap, featuresByName);
+            fail("Found a missing feature");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testDiamond() throws Exception {
+        // app depends on left and right, which both depend on the highest base
+        Feature app = feature("app", "1.0.0", "left", "right/1.0.0");
+        app.addBundle("mvn:org.example/app/1.0.0");
+        app.addConfigFile("mvn:org.example/app/1.0.0/cfg");
+        Feature left = feature("left", "1.0.0", "base");
+        left.addBundle("mvn:org.example/left/1.0.0");
+        Feature right = feature("right", "1.0.0", "base/2.0.0");
+        Map<String, Feature> featuresMap = features(app, left, right, feature("base", "1.0.0"),
+                feature("base", "2.0.0"));
+
+        Set<String> bundles = new HashSet<String>();
+        Set<String> transitive = new HashSet<String>();
+        addConfiguredFeatures(Arrays.asList("app/1.0.0"), bundles, transitive, featuresMap);
+
+        // only the configured feature contributes its bundles directly
+        assertEquals(new HashSet<String>(Arrays.asList("mvn:org.example/app/1.0.0", "mvn:org.example/app/1.0.0/cfg")),
+                bundles);
+        assertEquals(new HashSet<String>(Arrays.asList("left/1.0.0", "right/1.0.0", "base/2.0.0")), transitive);
+    }
+
+    @Test
+    public void testCycle() throws Exception {
+        Feature a = feature("a", "1.0.0", "b");
+        a.addBundle("mvn:org.example/a/1.0.0");
+        Feature b = feature("b", "1.0.0", "c");
+        Feature c = feature("c", "1.0.0", "a", "c");
+        Map<String, Feature> featuresMap = features(a, b, c);
+
+        Set<String> bundles = new HashSet<String>();
+        Set<String> transitive = new HashSet<String>();
+        addConfiguredFeatures(Arrays.asList("a/1.0.0", "b"), bundles, transitive, featuresMap);
+
+        assertEquals(new HashSet<String>(Arrays.asList("mvn:org.example/a/1.0.0")), bundles);
+        // b is configured by name only, so it is still transitive, as before
+        assertEquals(new HashSet<String>(Arrays.asList("b/1.0.0", "c/1.0.0")), transitive);
+    }
+
+    // adds the features as configured for the mojo
+    private void addConfiguredFeatures(List<String> features, Set<String> featuresBundles,
+            Set<String> transitiveFeatures, Map<String, Feature> featuresMap) throws Exception {
+        Field f = AddToRepositoryMojo.class.getDeclaredField("features");
+        f.setAccessible(true);
+        f.set(this, features);
+        f.setAccessible(false);
+        addFeatures(features, featuresBundles, transitiveFeatures, featuresMap);
+    }
+
+    private static Feature feature(String name, String version, String... dependencies) {
+        Feature feature = new Feature(name);
+        feature.setVersion(version);
+        for (String dependency : dependencies) {
+            feature.addDependency(dependency);
+        }
+        return feature;
+    }
+
+    private static Map<String, Feature> features(Feature... features) {
+        Map<String, Feature> featuresMap = new LinkedHashMap<String, Feature>();
+        for (Feature feature : features) {
+            featuresMap.put(feature.getName() + "/" + feature.getVersion(), feature);
+        }
+        return featuresMap;
+    }
 }
@@ -0,0 +1,62 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.tooling.features;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.utils.manifest.Attribute;
+import org.apache.felix.utils.manifest.Clause;
+import org.apache.felix.utils.manifest.Directive;
+import org.osgi.framework.Constants;
+
+/**
+ * Test cases for {@link org.apache.karaf.tooling.features.ExportIndex}
+ */
+public class ExportIndexTest extends TestCase {
+
+    public void testFind() {
+        Clause old = clause("org.apache.karaf.test", "[1.0.0, 1.0.0]");
+        Clause current = clause("org.apache.karaf.test", "[1.1.0, 1.1.0]");
+        ExportIndex index = new ExportIndex(Arrays.asList(old, current, clause("org.apache.karaf.other")));
+
+        assertNull(index.find(clause("org.apache.karaf.dev")));
+        assertSame(old, index.find(clause("org.apache.karaf.test")));
+        assertSame(current, index.find(clause("org.apache.karaf.test", "[1.1.0, 1.2.0)")));
+        assertNull(index.find(clause("org.apache.karaf.test", "1.2.0")));
+        assertNotNull(index.find(clause("org.apache.karaf.other", "1.0.0")));
+    }
+
+    public void testDuplicateExports() {
+        ExportIndex index = new ExportIndex(Arrays.asList(clause("org.apache.karaf.test", "1.0.0"),
+                clause("org.apache.karaf.test", "1.0.0")));
+
+        assertNull(index.find(clause("org.apache.karaf.test", "[0.5.0, 0.9.0)")));
+        assertEquals(1, index.getEvaluated());
+    }
+
+    private Clause clause(String name) {
+        return new Clause(name, new Directive[0], new Attribute[0]);
+    }
+
+    private Clause clause(String name, String version) {
+        Attribute[] attribute = {new Attribute(Constants.VERSION_ATTRIBUTE, version)};
+        return new Clause(name, new Directive[0], attribute);
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.tooling.features;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.utils.manifest.Attribute;
+import org.apache.felix.utils.manifest.Clause;
+import org.apache.felix.utils.manifest.Directive;
+import org.osgi.framework.Constants;
+
+/**
+ * Test cases for {@link org.apache.karaf.tooling.features.FeatureExports}
+ */
+public class FeatureExportsTest extends TestCase {
+
+    public void testSharedClosure() {
+        // a diamond: a depends on b and c, which both depend on d
+        Clause base = clause("org.apache.karaf.base", "1.0.0");
+        FeatureExports d = new FeatureExports(Arrays.asList(base), Collections.<FeatureExports>emptyList());
+        Clause left = clause("org.apache.karaf.left", "1.0.0");
+        FeatureExports b = new FeatureExports(Arrays.asList(left), Arrays.asList(d));
+        Clause right = clause("org.apache.karaf.right", "1.0.0");
+        FeatureExports c = new FeatureExports(Arrays.asList(right), Arrays.asList(d));
+        Clause top = clause("org.apache.karaf.top", "1.0.0");
+        FeatureExports a = new FeatureExports(Arrays.asList(top), Arrays.asList(b, c));
+
+        List<Clause> closure = a.getClosure();
+        assertEquals(4, closure.size());
+        assertSame(top, closure.get(0));
+        assertSame(left, closure.get(1));
+        assertSame(base, closure.get(2));
+        assertSame(right, closure.get(3));
+
+        // computed once, and the closures of the dependencies are reused rather than walked again
+        assertSame(closure, a.getClosure());
+        List<Clause> shared = d.getClosure();
+        assertSame(shared, d.getClosure());
+        assertEquals(Arrays.asList(left, base), b.getClosure());
+        assertEquals(Arrays.asList(right, base), c.getClosure());
+        assertSame(shared, d.getClosure());
+
+        try {
+            closure.add(base);
+            fail("The closure can be modified");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    public void testIndex() {
+        Clause base = clause("org.apache.karaf.base", "1.0.0");
+        FeatureExports d = new FeatureExports(Arrays.asList(base), Collections.<FeatureExports>emptyList());
+        FeatureExports a = new FeatureExports(Arrays.asList(clause("org.apache.karaf.top", "1.0.0")),
+                Arrays.asList(d, d));
+
+        ExportIndex index = a.getIndex();
+        assertSame(index, a.getIndex());
+        assertSame(base, index.find(clause("org.apache.karaf.base")));
+        assertNull(index.find(clause("org.apache.karaf.other")));
+        assertNull(d.getIndex().find(clause("org.apache.karaf.top")));
+    }
+
+    private Clause clause(String name) {
+        return new Clause(name, new Directive[0], new Attribute[0]);
+    }
+
+    private Clause clause(String name, String version) {
+        Attribute[] attribute = {new Attribute(Constants.VERSION_ATTRIBUTE, version)};
+        return new Clause(name, new Directive[0], attribute);
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.tooling.features;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+
+/**
+ * Test cases for {@link org.apache.karaf.tooling.features.InstallKarsMojo}
+ */
+public class InstallKarsMojoTest extends TestCase {
+
+    public void testResultsInTaskOrder() throws Exception {
+        // later tasks finish first
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for (int i = 0; i < 8; i++) {
+            final int index = i;
+            tasks.add(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    Thread.sleep((8 - index) * 10);
+                    return index;
+                }
+            });
+        }
+        List<Integer> results = InstallKarsMojo.invokeAll(tasks, 4);
+        assertEquals(8, results.size());
+        for (int i = 0; i < 8; i++) {
+            assertEquals(i, results.get(i).intValue());
+        }
+    }
+
+    public void testEmpty() throws Exception {
+        assertTrue(InstallKarsMojo.invokeAll(Collections.<Callable<Object>>emptyList(), 4).isEmpty());
+    }
+
+    public void testFirstFailureInTaskOrder() throws Exception {
+        final CountDownLatch laterFailed = new CountDownLatch(1);
+        final AtomicInteger completed = new AtomicInteger();
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        // the first task fails only after the third one has failed
+        tasks.add(new Callable<Object>() {
+            public Object call() throws Exception {
+                assertTrue(laterFailed.await(10, TimeUnit.SECONDS));
+                throw new MojoFailureException("first");
+            }
+        });
+        tasks.add(complete(completed));
+        tasks.add(new Callable<Object>() {
+            public Object call() throws Exception {
+                laterFailed.countDown();
+                throw new MojoExecutionException("third");
+            }
+        });
+        tasks.add(complete(completed));
+        try {
+            InstallKarsMojo.invokeAll(tasks, 4);
+            fail("No failure");
+        } catch (MojoFailureException e) {
+            assertEquals("first", e.getMessage());
+        }
+        // the other tasks are not cancelled
+        assertEquals(2, completed.get());
+    }
+
+    public void testFailureOnSingleThread() throws Exception {
+        final AtomicInteger completed = new AtomicInteger();
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        tasks.add(complete(completed));
+        tasks.add(new Callable<Object>() {
+            public Object call() throws Exception {
+                throw new MojoExecutionException("second");
+            }
+        });
+        tasks.add(complete(completed));
+        try {
+            InstallKarsMojo.invokeAll(tasks, 1);
+            fail("No failure");
+        } catch (MojoExecutionException e) {
+            assertEquals("second", e.getMessage());
+        }
+        assertEquals(2, completed.get());
+    }
+
+    public void testUnwrappedFailures() throws Exception {
+        final IllegalStateException runtime = new IllegalStateException("runtime");
+        try {
+            InstallKarsMojo.invokeAll(Collections.singletonList(new Callable<Object>() {
+                public Object call() throws Exception {
+                    throw runtime;
+                }
+            }), 2);
+            fail("No failure");
+        } catch (IllegalStateException e) {
+            assertSame(runtime, e);
+        }
+
+        // other checked exceptions become a MojoExecutionException
+        final IOException io = new IOException("io");
+        try {
+            InstallKarsMojo.invokeAll(Collections.singletonList(new Callable<Object>() {
+                public Object call() throws Exception {
+                    throw io;
+                }
+            }), 2);
+            fail("No failure");
+        } catch (MojoExecutionException e) {
+            assertEquals("io", e.getMessage());
+            assertSame(io, e.getCause());
+        }
+    }
+
+    private static Callable<Object> complete(final AtomicInteger completed) {
+        return new Callable<Object>() {
+            public Object call() throws Exception {
+                completed.incrementAndGet();
+                return null;
+            }
+        };
+    }
+
+}
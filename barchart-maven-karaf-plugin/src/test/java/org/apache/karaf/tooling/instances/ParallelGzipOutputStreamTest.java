@@ -0,0 +1,202 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.tooling.instances;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for {@link org.apache.karaf.tooling.instances.ParallelGzipOutputStream}
+ */
+public class ParallelGzipOutputStreamTest extends TestCase {
+
+    public void testRoundTrip() throws Exception {
+        byte[] data = createData(3 * 1024 * 1024 + 12345);
+        byte[] compressed = compress(data, 4, Deflater.DEFAULT_COMPRESSION);
+        assertTrue(compressed.length < data.length);
+        assertTrue(Arrays.equals(data, decompress(compressed)));
+        assertSingleMember(data, compressed);
+    }
+
+    public void testSingleBytes() throws Exception {
+        byte[] data = createData(100000);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ParallelGzipOutputStream out = new ParallelGzipOutputStream(bos, executor, 2, Deflater.BEST_SPEED);
+            for (int i = 0; i < data.length; i++) {
+                out.write(data[i]);
+            }
+            out.close();
+            assertTrue(Arrays.equals(data, decompress(bos.toByteArray())));
+            assertSingleMember(data, bos.toByteArray());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testOutputIndependentOfThreads() throws Exception {
+        byte[] data = createData(5 * 1024 * 1024);
+        byte[] single = compress(data, 1, Deflater.DEFAULT_COMPRESSION);
+        assertTrue(Arrays.equals(single, compress(data, 3, Deflater.DEFAULT_COMPRESSION)));
+        assertTrue(Arrays.equals(single, compress(data, 8, Deflater.DEFAULT_COMPRESSION)));
+        assertSingleMember(data, single);
+    }
+
+    public void testBlockBoundary() throws Exception {
+        // the last block is full, and a level without compression still needs the sync flushes
+        byte[] data = createData(2 * 1024 * 1024);
+        assertSingleMember(data, compress(data, 2, Deflater.DEFAULT_COMPRESSION));
+        assertSingleMember(data, compress(data, 2, Deflater.NO_COMPRESSION));
+    }
+
+    public void testEmpty() throws Exception {
+        byte[] compressed = compress(new byte[0], 2, Deflater.DEFAULT_COMPRESSION);
+        assertTrue(compressed.length > 0);
+        assertEquals(0, decompress(compressed).length);
+        assertSingleMember(new byte[0], compressed);
+    }
+
+    public void testCloseTwice() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        try {
+            CountingOutputStream bos = new CountingOutputStream();
+            ParallelGzipOutputStream out = new ParallelGzipOutputStream(bos, executor, 1, Deflater.BEST_SPEED);
+            out.write(createData(1000));
+            out.close();
+            int size = bos.size();
+            out.close();
+            assertEquals(size, bos.size());
+            assertEquals(1, bos.closed);
+            try {
+                out.write(1);
+                fail("Written after close");
+            } catch (IOException e) {
+                // expected
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static byte[] compress(byte[] data, int threads, int level) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ParallelGzipOutputStream out = new ParallelGzipOutputStream(bos, executor, threads, level);
+            // uneven writes, so blocks are filled from several calls
+            Random random = new Random(1);
+            for (int off = 0; off < data.length; ) {
+                int len = Math.min(data.length - off, random.nextInt(200000));
+                out.write(data, off, len);
+                off += len;
+            }
+            out.close();
+            return bos.toByteArray();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static byte[] decompress(byte[] compressed) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                bos.write(buffer, 0, n);
+            }
+            return bos.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /*
+     * Readers which do not look for further members, like GZIPInputStream of Java 6, must see all of the data: the
+     * header, a single deflate stream and the trailer, with nothing after it.
+     */
+    private static void assertSingleMember(byte[] data, byte[] compressed) throws Exception {
+        assertEquals(0x1f, compressed[0] & 0xff);
+        assertEquals(0x8b, compressed[1] & 0xff);
+        assertEquals(Deflater.DEFLATED, compressed[2]);
+        assertEquals(0, compressed[3]);
+
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed, 10, compressed.length - 10);
+            byte[] inflated = new byte[data.length];
+            int length = 0;
+            while (!inflater.finished()) {
+                int n = inflater.inflate(inflated, length, inflated.length - length);
+                assertTrue("Deflate stream ends early", n > 0 || inflater.finished());
+                length += n;
+            }
+            assertEquals(data.length, length);
+            assertTrue(Arrays.equals(data, inflated));
+            assertEquals(8, inflater.getRemaining());
+        } finally {
+            inflater.end();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        assertEquals((int) crc.getValue(), readInt(compressed, compressed.length - 8));
+        assertEquals(data.length, readInt(compressed, compressed.length - 4));
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24;
+    }
+
+    /*
+     * Compressible but not trivial data
+     */
+    private static byte[] createData(int length) {
+        byte[] data = new byte[length];
+        Random random = new Random(42);
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) ('a' + random.nextInt(8));
+        }
+        return data;
+    }
+
+    private static class CountingOutputStream extends ByteArrayOutputStream {
+        private int closed;
+
+        @Override
+        public void close() throws IOException {
+            closed++;
+            super.close();
+        }
+    }
+
+}
@@ -0,0 +1,108 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.tooling.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import junit.framework.TestCase;
+
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Test cases for {@link org.apache.karaf.tooling.utils.FileCopier}
+ */
+public class FileCopierTest extends TestCase {
+
+    private File dir;
+    private File repository;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("file-copier", "");
+        dir.delete();
+        repository = new File(dir, "repository");
+        repository.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    public void testCopy() throws Exception {
+        File source = write(new File(dir, "source.jar"), "content");
+        File target = new File(dir, "system/target.jar");
+        FileCopier copier = new FileCopier(true, repository, false);
+
+        assertTrue(copier.copy(source, target));
+        assertEquals("content", FileUtils.fileRead(target));
+        assertEquals(source.lastModified(), target.lastModified());
+
+        assertFalse(copier.copy(source, target));
+        assertEquals(1, copier.getCopied());
+        assertEquals(1, copier.getSkipped());
+    }
+
+    public void testCopyChangedContent() throws Exception {
+        File source = write(new File(dir, "source.jar"), "content");
+        File target = write(new File(dir, "target.jar"), "CONTENT");
+        FileCopier copier = new FileCopier(true, repository, false);
+
+        assertTrue(copier.copy(source, target));
+        assertEquals("content", FileUtils.fileRead(target));
+    }
+
+    public void testCopyOverHardLink() throws Exception {
+        File source = write(new File(repository, "org/test/test.jar"), "content");
+        File target = new File(dir, "system/org/test/test.jar");
+
+        FileCopier linker = new FileCopier(true, repository, true);
+        linker.copy(source, target);
+        assertEquals("content", FileUtils.fileRead(target));
+
+        // copying over the (possibly) linked target must leave the repository file alone
+        long lastModified = source.lastModified();
+        FileCopier copier = new FileCopier(false, repository, false);
+        assertTrue(copier.copy(source, target));
+        assertEquals("content", FileUtils.fileRead(source));
+        assertEquals("content", FileUtils.fileRead(target));
+        assertEquals(lastModified, source.lastModified());
+
+        // and so must copying another file over it
+        linker.copy(source, target);
+        File other = write(new File(dir, "other.jar"), "other content");
+        assertTrue(copier.copy(other, target));
+        assertEquals("content", FileUtils.fileRead(source));
+        assertEquals("other content", FileUtils.fileRead(target));
+    }
+
+    private static File write(File file, String content) throws IOException {
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        file.setLastModified(1000000000000L);
+        return file;
+    }
+}
@@ -20,10 +20,13 @@ package org.apache.maven.plugin.nar;
  */
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Enumeration;
 import java.util.List;
 
 import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
 import org.apache.tools.ant.Project;
 
 /**
@@ -207,6 +210,51 @@ public abstract class AbstractCompileMojo
         return getNarInfo().getProperty( aol, "output", output );
     }
 
+    /**
+     * Returns the classpath resource name under which a library of the given type is embedded in the jar, e.g.
+     * "lib/amd64-Linux-gpp/jni/libartifactId-version.so", following the lib directory of the nar file layout.
+     */
+    protected final String getEmbeddedLibraryResource( AOL aol, String type )
+        throws MojoExecutionException, MojoFailureException
+    {
+        NarProperties properties = NarProperties.getInstance( getMavenProject() );
+        return "lib/" + aol + "/" + type + "/"
+            + NarUtil.getLibraryFileName( properties, aol.getKey(), type, getOutput( aol ) );
+    }
+
+    /**
+     * Returns the resource names under which the library of the given type may be embedded for every AOL known to the
+     * nar properties, the one of the current AOL first. A jar can hold the libraries of several AOLs when it is
+     * assembled from the builds on each platform.
+     */
+    protected final List/* <String> */getEmbeddedLibraryResources( String type )
+        throws MojoExecutionException, MojoFailureException
+    {
+        String suffix = "." + type + ".extension";
+        List aols = new ArrayList();
+        for ( Enumeration e = NarProperties.getInstance( getMavenProject() ).propertyNames(); e.hasMoreElements(); )
+        {
+            String key = (String) e.nextElement();
+            if ( key.endsWith( suffix ) )
+            {
+                String aol = key.substring( 0, key.length() - suffix.length() ).replace( '.', '-' );
+                if ( !aols.contains( aol ) && !aol.equals( getAOL().toString() ) )
+                {
+                    aols.add( aol );
+                }
+            }
+        }
+        Collections.sort( aols );
+
+        List resources = new ArrayList();
+        resources.add( getEmbeddedLibraryResource( getAOL(), type ) );
+        for ( int i = 0; i < aols.size(); i++ )
+        {
+            resources.add( getEmbeddedLibraryResource( new AOL( (String) aols.get( i ) ), type ) );
+        }
+        return resources;
+    }
+
     protected final File getJavaHome( AOL aol )
         throws MojoExecutionException
     {
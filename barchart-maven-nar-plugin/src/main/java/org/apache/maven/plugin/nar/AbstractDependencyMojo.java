@@ -19,6 +19,11 @@ package org.apache.maven.plugin.nar;
  * under the License.
  */
 
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.maven.artifact.Artifact;
 import org.apache.maven.artifact.repository.ArtifactRepository;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
@@ -37,15 +42,74 @@ public abstract class AbstractDependencyMojo
      */
     private ArtifactRepository localRepository;
 
+    /**
+     * Maximum number of threads used to download and unpack attached nar files. Nar files are locked individually,
+     * so modules built concurrently can share the local repository and unpack directory.
+     * 
+     * @parameter expression="${nar.dependencyThreads}" default-value="1"
+     */
+    private int dependencyThreads;
+
     protected final ArtifactRepository getLocalRepository()
     {
         return localRepository;
     }
 
+    /**
+     * Returns a NarManager which shares the NarInfo read from dependencies through the plugin context, so each
+     * dependency is read once for all nar mojos of a module and the cache ends with the build.
+     */
     protected final NarManager getNarManager()
         throws MojoFailureException, MojoExecutionException
     {
-        return new NarManager( getLog(), getLocalRepository(), getMavenProject(), getArchitecture(), getOS(),
-                               getLinker() );
+        NarManager manager =
+            new NarManager( getLog(), getLocalRepository(), getMavenProject(), getArchitecture(), getOS(), getLinker() );
+        manager.setThreads( dependencyThreads );
+
+        Map context = getPluginContext();
+        if ( context != null )
+        {
+            String key = NarManager.class.getName() + ":narInfos";
+            Map narInfos = (Map) context.get( key );
+            if ( narInfos == null )
+            {
+                narInfos = new HashMap();
+                context.put( key, narInfos );
+            }
+            manager.setNarInfoCache( narInfos );
+        }
+        return manager;
+    }
+
+    /**
+     * Returns the graph of nar dependencies of the given scope for the AOL of this module. The graph is kept in the
+     * plugin context, which maven keeps per module for the whole build, so it is built only once for all nar mojos of a
+     * module which see the same dependencies. Test scope dependencies are looked up in the unpack directory first and
+     * then in the test unpack directory.
+     */
+    protected final NarDependencyGraph getNarDependencyGraph( String scope )
+        throws MojoFailureException, MojoExecutionException
+    {
+        File[] unpackDirectories =
+            scope.equals( Artifact.SCOPE_TEST ) ? new File[] { getUnpackDirectory(), getTestUnpackDirectory() }
+                            : new File[] { getUnpackDirectory() };
+        NarManager manager = getNarManager();
+        // mojos may have maven resolve different sets of dependencies, so they are part of the key
+        String key =
+            NarDependencyGraph.class.getName() + ":" + scope + ":" + getAOL() + ":" + getLayout().getClass().getName()
+                + ":" + getUnpackDirectory() + ":" + getTestUnpackDirectory() + ":" + manager.getDependencyIds( scope );
+
+        Map context = getPluginContext();
+        NarDependencyGraph graph = context != null ? (NarDependencyGraph) context.get( key ) : null;
+        if ( graph == null )
+        {
+            graph = manager.getNarDependencyGraph( scope, getAOL(), getLayout(), unpackDirectories );
+            getLog().debug( "NAR: " + scope + " " + graph );
+            if ( context != null )
+            {
+                context.put( key, graph );
+            }
+        }
+        return graph;
     }
 }
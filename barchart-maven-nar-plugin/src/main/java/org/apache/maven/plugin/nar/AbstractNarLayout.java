@@ -44,11 +44,37 @@ public abstract class AbstractNarLayout
 {
     private Log log;
 
+    private int compressionLevel = -1;
+
+    private String[] storedExtensions;
+
+    private long timestamp = -1;
+
+    private int threads;
+
     protected AbstractNarLayout( Log log )
     {
         this.log = log;
     }
 
+    /**
+     * Sets how the nar files created by attachNars are compressed. Kept out of the NarLayout interface, so that
+     * layouts which do not extend this class still work, with the default settings.
+     * 
+     * @param compressionLevel deflate level 1-9, -1 for the default level, 0 to store all entries
+     * @param storedExtensions extensions of files which are stored rather than deflated
+     * @param timestamp modification time in milliseconds used for all entries, -1 to keep the time of the files
+     * @param threads number of entries compressed concurrently, 0 for the number of processors
+     */
+    public final void setArchiverSettings( int compressionLevel, String[] storedExtensions, long timestamp,
+                                           int threads )
+    {
+        this.compressionLevel = compressionLevel;
+        this.storedExtensions = storedExtensions;
+        this.timestamp = timestamp;
+        this.threads = threads;
+    }
+
     protected Log getLog()
     {
         return log;
@@ -68,6 +94,14 @@ public abstract class AbstractNarLayout
         try
         {
             Archiver archiver = archiverManager.getArchiver( NarConstants.NAR_ROLE_HINT );
+            if ( archiver instanceof NarArchiver )
+            {
+                NarArchiver narArchiver = (NarArchiver) archiver;
+                narArchiver.setCompressionLevel( compressionLevel );
+                narArchiver.setStoredExtensions( storedExtensions );
+                narArchiver.setTimestamp( timestamp );
+                narArchiver.setThreads( threads );
+            }
             archiver.addDirectory( dir, new String[] { include }, null );
             archiver.setDestFile( narFile );
             archiver.createArchive();
@@ -91,10 +125,6 @@ public abstract class AbstractNarLayout
                                         String linkerName, AOL defaultAOL )
         throws MojoExecutionException, MojoFailureException
     {
-
-        final String gpp = "g++";
-        final String gcc = "gcc";
-
         narLocation.mkdirs();
 
         // unpack
@@ -115,7 +145,19 @@ public abstract class AbstractNarLayout
             throw new MojoExecutionException( "Error unpacking file: " + file + " to: " + narLocation, e );
         }
 
-        // process
+        processNar( narLocation, os, linkerName, defaultAOL );
+    }
+
+    /**
+     * Makes the unpacked binaries executable, adds links to versioned shared libraries and runs ranlib and
+     * install_name_tool where needed.
+     */
+    protected void processNar( File narLocation, String os, String linkerName, AOL defaultAOL )
+        throws MojoExecutionException, MojoFailureException
+    {
+        final String gpp = "g++";
+        final String gcc = "gcc";
+
         if ( !NarUtil.getOS( os ).equals( OS.WINDOWS ) )
         {
             NarUtil.makeExecutable( new File( narLocation, "bin/" + defaultAOL ), log );
@@ -64,6 +64,14 @@ public abstract class AbstractResourcesMojo
      */
     private String resourceLibDir;
 
+    /**
+     * Hard link the resources into the target area instead of copying them, where the file system allows it. The
+     * resources must then not be modified in place by later steps of the build.
+     * 
+     * @parameter expression="" default-value="false"
+     */
+    private boolean linkResources;
+
     /**
      * To look up Archiver/UnArchiver implementations
      * 
@@ -85,7 +93,8 @@ public abstract class AbstractResourcesMojo
                 getLayout().getIncludeDirectory( getTargetDirectory(), getMavenProject().getArtifactId(),
                                                  getMavenProject().getVersion() );
             getLog().debug( "Copying includes from " + includeDir + " to " + includeDstDir );
-            copied += NarUtil.copyDirectoryStructure( includeDir, includeDstDir, null, NarUtil.DEFAULT_EXCLUDES );
+            copied += NarUtil.copyDirectoryStructure( includeDir, includeDstDir, null, NarUtil.DEFAULT_EXCLUDES,
+                                                      linkResources );
         }
 
         return copied;
@@ -104,7 +113,8 @@ public abstract class AbstractResourcesMojo
                 getLayout().getBinDirectory( getTargetDirectory(), getMavenProject().getArtifactId(),
                                              getMavenProject().getVersion(), aol );
             getLog().debug( "Copying binaries from " + binDir + " to " + binDstDir );
-            copied += NarUtil.copyDirectoryStructure( binDir, binDstDir, null, NarUtil.DEFAULT_EXCLUDES );
+            copied += NarUtil.copyDirectoryStructure( binDir, binDstDir, null, NarUtil.DEFAULT_EXCLUDES,
+                                                      linkResources );
         }
 
         return copied;
@@ -142,13 +152,19 @@ public abstract class AbstractResourcesMojo
                 {
                     includes += ",**/*.lib";
                 }
-                copied += NarUtil.copyDirectoryStructure( libDir, libDstDir, includes, NarUtil.DEFAULT_EXCLUDES );
+                copied += NarUtil.copyDirectoryStructure( libDir, libDstDir, includes, NarUtil.DEFAULT_EXCLUDES,
+                                                          linkResources );
             }
         }
 
         return copied;
     }
 
+    protected final boolean isLinkResources()
+    {
+        return linkResources;
+    }
+
     protected final void copyResources( File srcDir, String aol )
         throws MojoExecutionException, MojoFailureException
     {
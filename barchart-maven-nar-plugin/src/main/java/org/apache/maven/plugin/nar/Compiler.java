@@ -614,6 +614,46 @@ public abstract class Compiler
         return compiler;
     }
 
+    /**
+     * Returns a description of the effective settings (name, flags, options and defines) of this compiler, to be used
+     * as part of the key of the object cache. Returns null if no compiler is configured for this language.
+     */
+    public final String getSignature()
+        throws MojoFailureException, MojoExecutionException
+    {
+        String name = getName();
+        if ( name == null )
+        {
+            return null;
+        }
+
+        NarProperties properties = NarProperties.getInstance( mojo.getMavenProject() );
+        StringBuffer sb = new StringBuffer( getLanguage() );
+        sb.append( ":" ).append( name );
+        sb.append( ":debug=" ).append( debug );
+        sb.append( ":exceptions=" ).append( exceptions );
+        sb.append( ":rtti=" ).append( rtti );
+        sb.append( ":multiThreaded=" ).append( mojo.getOS().equals( "Windows" ) ? true : multiThreaded );
+        sb.append( ":optimize=" ).append( optimize );
+        sb.append( ":options=" ).append( options ).append( " " ).append( optionSet );
+        if ( !clearDefaultOptions )
+        {
+            sb.append( " " ).append( properties.getProperty( getPrefix() + "options" ) );
+        }
+        sb.append( ":defines=" ).append( defines ).append( " " ).append( defineSet );
+        if ( !clearDefaultDefines )
+        {
+            sb.append( " " ).append( properties.getProperty( getPrefix() + "defines" ) );
+        }
+        sb.append( ":undefines=" ).append( undefines ).append( " " ).append( undefineSet );
+        if ( !clearDefaultUndefines )
+        {
+            sb.append( " " ).append( properties.getProperty( getPrefix() + "undefines" ) );
+        }
+        sb.append( ":systemIncludePaths=" ).append( systemIncludePaths );
+        return sb.toString();
+    }
+
     protected abstract String getLanguage();
 
     public final void copyIncludeFiles( MavenProject mavenProject, File targetDirectory )
@@ -120,6 +120,23 @@ public class Java
         }
     }
 
+    /**
+     * Looks up the runtime directory in the nar properties if it is needed and was not configured. Called before
+     * libraries are linked concurrently, so addRuntime only reads it.
+     */
+    public final void resolveRuntimeDirectory( String os, String prefix )
+        throws MojoFailureException
+    {
+        if ( link && !os.equals( OS.MACOSX ) && ( runtimeDirectory == null ) )
+        {
+            runtimeDirectory = NarProperties.getInstance(mojo.getMavenProject()).getProperty( prefix + "runtimeDirectory" );
+            if ( runtimeDirectory == null )
+            {
+                throw new MojoFailureException( "NAR: Please specify a <RuntimeDirectory> as part of <Java>" );
+            }
+        }
+    }
+
     public final void addRuntime( CCTask task, File javaHome, String os, String prefix )
         throws MojoFailureException
     {
@@ -143,14 +160,7 @@ public class Java
             }
             else
             {
-                if ( runtimeDirectory == null )
-                {
-                    runtimeDirectory = NarProperties.getInstance(mojo.getMavenProject()).getProperty( prefix + "runtimeDirectory" );
-                    if ( runtimeDirectory == null )
-                    {
-                        throw new MojoFailureException( "NAR: Please specify a <RuntimeDirectory> as part of <Java>" );
-                    }
-                }
+                resolveRuntimeDirectory( os, prefix );
                 mojo.getLog().debug( "Using Java Runtime Directory: " + runtimeDirectory );
 
                 LibrarySet libset = new LibrarySet();
@@ -21,25 +21,33 @@ package org.apache.maven.plugin.nar;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.sf.antcontrib.cpptasks.LinkerDef;
+import net.sf.antcontrib.cpptasks.types.LinkerArgument;
 
-import org.apache.bcel.classfile.ClassFormatException;
-import org.apache.bcel.classfile.JavaClass;
-import org.apache.bcel.classfile.Method;
 import org.apache.maven.artifact.DependencyResolutionRequiredException;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.toolchain.Toolchain;
 import org.apache.maven.toolchain.ToolchainManager;
-import org.codehaus.plexus.compiler.util.scan.InclusionScanException;
-import org.codehaus.plexus.compiler.util.scan.SourceInclusionScanner;
-import org.codehaus.plexus.compiler.util.scan.StaleSourceScanner;
-import org.codehaus.plexus.compiler.util.scan.mapping.SingleTargetSourceMapping;
-import org.codehaus.plexus.compiler.util.scan.mapping.SuffixMapping;
+import org.codehaus.plexus.util.DirectoryScanner;
 import org.codehaus.plexus.util.FileUtils;
 import org.codehaus.plexus.util.StringUtils;
 
@@ -72,6 +80,29 @@ public class Javah
      */
     private List/* <File> */classPaths = new ArrayList();
 
+    /**
+     * Run the javah command. Set to false to write the headers in-process, without launching javah.
+     * 
+     * @parameter default-value="true"
+     */
+    private boolean fork;
+
+    /**
+     * Generate a JNI_OnLoad function which registers all native methods with RegisterNatives, so the JVM does not need
+     * to look them up by name, and only export JNI_OnLoad from the library when linking with a GNU or Mac OS X linker.
+     * The library must not define JNI_OnLoad itself.
+     * 
+     * @parameter default-value="false"
+     */
+    private boolean registerNatives;
+
+    /**
+     * The directory into which to generate the JNI_OnLoad source and the linker export lists.
+     * 
+     * @parameter expression="${project.build.directory}/nar/jni-onload"
+     */
+    private File registerNativesDirectory;
+
     /**
      * The target directory into which to generate the output.
      * 
@@ -103,7 +134,8 @@ public class Javah
     private Set excludes = new HashSet();
 
     /**
-     * The granularity in milliseconds of the last modification date for testing whether a source needs recompilation
+     * The granularity in milliseconds of the last modification date for testing whether a source needs recompilation.
+     * Not used anymore, class files are compared by content and native signature.
      * 
      * @parameter default-value="0"
      * @required
@@ -111,7 +143,8 @@ public class Javah
     private int staleMillis = 0;
 
     /**
-     * The directory to store the timestampfile for the processed aid files. Defaults to jniDirectory.
+     * The directory to store the timestampfile and the index of the native signatures of the processed class files.
+     * Defaults to jniDirectory.
      * 
      * @parameter
      */
@@ -161,6 +194,46 @@ public class Javah
         return jniDirectory;
     }
 
+    protected final File getRegisterNativesDirectory()
+    {
+        if ( registerNativesDirectory == null )
+        {
+            registerNativesDirectory = new File( mojo.getMavenProject().getBuild().getDirectory(), "nar/jni-onload" );
+        }
+        return registerNativesDirectory;
+    }
+
+    /**
+     * Restricts the symbols exported by a JNI library to JNI_OnLoad when its natives are registered by JNI_OnLoad.
+     */
+    public final void addLinkerExports( LinkerDef linker, String os, String linkerName )
+    {
+        if ( !registerNatives )
+        {
+            return;
+        }
+        String option = null;
+        if ( os.equals( OS.MACOSX ) )
+        {
+            option = "-Wl,-exported_symbols_list,"
+                + NarJniHeaderWriter.getExportedSymbolsList( getRegisterNativesDirectory() ).getPath();
+        }
+        else if ( !os.equals( OS.WINDOWS )
+            && ( linkerName.equals( "g++" ) || linkerName.equals( "gcc" ) || linkerName.equals( "icc" )
+                || linkerName.equals( "icpc" ) || linkerName.startsWith( "clang" ) ) )
+        {
+            option = "-Wl,--version-script=" + NarJniHeaderWriter.getVersionScript( getRegisterNativesDirectory() ).getPath();
+        }
+        if ( option == null )
+        {
+            mojo.getLog().debug( "NAR: no export list for linker " + linkerName + " on " + os );
+            return;
+        }
+        LinkerArgument arg = new LinkerArgument();
+        arg.setValue( option );
+        linker.addConfiguredLinkerArg( arg );
+    }
+
     protected final File getClassDirectory()
     {
         if ( classDirectory == null )
@@ -204,64 +277,280 @@ public class Javah
 
         try
         {
-            SourceInclusionScanner scanner = new StaleSourceScanner( staleMillis, getIncludes(), excludes );
-            if ( getTimestampDirectory().exists() )
-            {
-                scanner.addSourceMapping( new SingleTargetSourceMapping( ".class", getTimestampFile().getPath() ) );
-            }
-            else
+            NarJavahIndex index = new NarJavahIndex( getIndexFile() );
+            // without the headers of the previous run all classes with natives need javah again
+            if ( getJniDirectory().exists() )
             {
-                scanner.addSourceMapping( new SuffixMapping( ".class", ".dummy" ) );
+                index.load();
             }
 
-            Set classes = scanner.getIncludedSources( getClassDirectory(), getTimestampDirectory() );
+            DirectoryScanner scanner = new DirectoryScanner();
+            scanner.setBasedir( getClassDirectory() );
+            scanner.setIncludes( (String[]) getIncludes().toArray( new String[getIncludes().size()] ) );
+            scanner.setExcludes( (String[]) excludes.toArray( new String[excludes.size()] ) );
+            scanner.scan();
+            String[] paths = scanner.getIncludedFiles();
 
-            if ( !classes.isEmpty() )
+            Map/* <String, NarJavahIndex.Entry> */entries = indexClasses( index, paths );
+
+            // subclasses of Throwable become jthrowable, which depends on classes other than the indexed one
+            ClassLoader typeClassLoader = null;
+            try
             {
-                Set files = new HashSet();
-                for ( Iterator i = classes.iterator(); i.hasNext(); )
+                for ( Iterator i = entries.entrySet().iterator(); i.hasNext(); )
                 {
-                    String file = ( (File) i.next() ).getPath();
-                    JavaClass clazz = NarUtil.getBcelClass( file );
-                    Method[] method = clazz.getMethods();
-                    for ( int j = 0; j < method.length; j++ )
+                    Map.Entry e = (Map.Entry) i.next();
+                    NarJavahIndex.Entry entry = (NarJavahIndex.Entry) e.getValue();
+                    if ( entry.hasNatives() )
                     {
-                        if ( method[j].isNative() )
+                        if ( typeClassLoader == null )
                         {
-                            files.add( clazz.getClassName() );
+                            typeClassLoader = getTypeClassLoader();
                         }
+                        e.setValue( NarJavahIndex.resolve( entry, typeClassLoader ) );
                     }
                 }
+            }
+            finally
+            {
+                close( typeClassLoader );
+            }
 
-                if ( !files.isEmpty() )
+            Map/* <String, NarJavahIndex.Entry> */classes = new TreeMap();
+            for ( Iterator i = entries.entrySet().iterator(); i.hasNext(); )
+            {
+                Map.Entry e = (Map.Entry) i.next();
+                NarJavahIndex.Entry entry = (NarJavahIndex.Entry) e.getValue();
+                NarJavahIndex.Entry previous = index.get( (String) e.getKey() );
+                if ( entry.hasNatives()
+                    && ( previous == null || !previous.getSignature().equals( entry.getSignature() ) ) )
                 {
-                    getJniDirectory().mkdirs();
-                    getTimestampDirectory().mkdirs();
-
-                    String javah = getJavah();
-                    
-                    mojo.getLog().info( "Running " + javah + " compiler on " + files.size() + " classes..." );
-                    int result = NarUtil.runCommand( javah, generateArgs( files ), null, null, mojo.getLog() );
-                    if ( result != 0 )
-                    {
-                        throw new MojoFailureException( javah + " failed with exit code " + result + " 0x"
-                            + Integer.toHexString( result ) );
-                    }
-                    FileUtils.fileWrite( getTimestampDirectory() + "/" + getTimestampFile(), "" );
+                    classes.put( entry.getClassName(), entry );
                 }
             }
-        }
-        catch ( InclusionScanException e )
-        {
-            throw new MojoExecutionException( "JAVAH: Class scanning failed", e );
+            mojo.getLog().debug( "JAVAH: " + paths.length + " classes, " + classes.size()
+                                     + " with changed native signatures" );
+
+            if ( !classes.isEmpty() )
+            {
+                getJniDirectory().mkdirs();
+                getTimestampDirectory().mkdirs();
+
+                if ( fork )
+                {
+                    runJavah( classes.keySet() );
+                }
+                else
+                {
+                    writeHeaders( classes.values() );
+                }
+                FileUtils.fileWrite( getTimestampDirectory() + "/" + getTimestampFile(), "" );
+            }
+
+            if ( registerNatives && hasJniLibrary() )
+            {
+                writeRegisterNatives( entries.values() );
+            }
+
+            // only remember the signatures once their headers have been generated
+            index.setEntries( entries );
+            index.save();
         }
         catch ( IOException e )
         {
             throw new MojoExecutionException( "JAVAH: IO Exception", e );
         }
-        catch ( ClassFormatException e )
+    }
+
+    private boolean hasJniLibrary()
+    {
+        for ( Iterator i = mojo.getLibraries().iterator(); i.hasNext(); )
+        {
+            if ( ( (Library) i.next() ).getType().equals( Library.JNI ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * The JNI_OnLoad source covers all classes with natives, it is compiled as part of the library
+     */
+    private void writeRegisterNatives( Collection/* <NarJavahIndex.Entry> */entries )
+        throws MojoExecutionException, IOException
+    {
+        List/* <NarJavahIndex.Entry> */natives = new ArrayList();
+        for ( Iterator i = entries.iterator(); i.hasNext(); )
+        {
+            NarJavahIndex.Entry entry = (NarJavahIndex.Entry) i.next();
+            if ( entry.hasNatives() )
+            {
+                natives.add( entry );
+            }
+        }
+        NarJniHeaderWriter writer = new NarJniHeaderWriter( getJniDirectory() );
+        if ( writer.writeRegisterNatives( getRegisterNativesDirectory(), natives ) )
+        {
+            mojo.getLog().info( "Generated JNI_OnLoad registering the natives of " + natives.size() + " classes" );
+        }
+        mojo.getMavenProject().addCompileSourceRoot( getRegisterNativesDirectory().getPath() );
+    }
+
+    private void runJavah( Set/* <String> */classes )
+        throws MojoExecutionException, MojoFailureException
+    {
+        String javah = getJavah();
+
+        mojo.getLog().info( "Running " + javah + " compiler on " + classes.size() + " classes..." );
+        int result = NarUtil.runCommand( javah, generateArgs( classes ), null, null, mojo.getLog() );
+        if ( result != 0 )
+        {
+            throw new MojoFailureException( javah + " failed with exit code " + result + " 0x"
+                + Integer.toHexString( result ) );
+        }
+    }
+
+    private void writeHeaders( Collection/* <NarJavahIndex.Entry> */entries )
+        throws MojoExecutionException, IOException
+    {
+        mojo.getLog().info( "Generating JNI headers for " + entries.size() + " classes..." );
+        NarJniHeaderWriter writer = new NarJniHeaderWriter( getJniDirectory() );
+        int written = 0;
+        for ( Iterator i = entries.iterator(); i.hasNext(); )
+        {
+            if ( writer.write( (NarJavahIndex.Entry) i.next() ) )
+            {
+                written++;
+            }
+        }
+        mojo.getLog().debug( "JAVAH: " + written + " headers changed" );
+    }
+
+    /*
+     * Loader for the argument types of native methods, without the classes of the plugin itself
+     */
+    private ClassLoader getTypeClassLoader()
+        throws MojoExecutionException
+    {
+        List/* <URL> */urls = new ArrayList();
+        List/* <Object> */paths = new ArrayList( bootClassPaths );
+        paths.add( getClassDirectory() );
+        paths.addAll( getClassPaths() );
+        for ( Iterator i = paths.iterator(); i.hasNext(); )
+        {
+            try
+            {
+                urls.add( new File( i.next().toString() ).toURI().toURL() );
+            }
+            catch ( MalformedURLException e )
+            {
+                throw new MojoExecutionException( "JAVAH: invalid class path", e );
+            }
+        }
+        return new URLClassLoader( (URL[]) urls.toArray( new URL[urls.size()] ), null );
+    }
+
+    /*
+     * Releases the jar files held by the loader. URLClassLoader can only be closed since Java 7, so this goes through
+     * reflection; on older versions the loader is left to the garbage collector.
+     */
+    private void close( ClassLoader loader )
+    {
+        if ( loader == null )
+        {
+            return;
+        }
+        try
+        {
+            loader.getClass().getMethod( "close", new Class[0] ).invoke( loader, new Object[0] );
+        }
+        catch ( NoSuchMethodException e )
+        {
+            // Java 6
+        }
+        catch ( Exception e )
+        {
+            mojo.getLog().debug( "JAVAH: unable to close the class loader: " + e );
+        }
+    }
+
+    private File getIndexFile()
+    {
+        return new File( getTimestampDirectory(), getTimestampFile().getName() + ".index" );
+    }
+
+    /*
+     * Indexes all class files, reusing the entries of unchanged files. Changed files are read concurrently.
+     */
+    private Map/* <String, NarJavahIndex.Entry> */indexClasses( NarJavahIndex index, String[] paths )
+        throws MojoExecutionException, MojoFailureException
+    {
+        Map entries = new HashMap();
+        List/* <String> */changed = new ArrayList();
+        for ( int i = 0; i < paths.length; i++ )
+        {
+            String path = paths[i].replace( File.separatorChar, '/' );
+            NarJavahIndex.Entry entry = index.get( path );
+            if ( entry != null && entry.isUpToDate( new File( getClassDirectory(), path ) ) )
+            {
+                entries.put( path, entry );
+            }
+            else
+            {
+                changed.add( path );
+            }
+        }
+        if ( changed.isEmpty() )
+        {
+            return entries;
+        }
+
+        int threads = mojo.getMaxCores( mojo.getAOL() );
+        if ( threads <= 0 )
+        {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        threads = Math.max( 1, Math.min( threads, changed.size() ) );
+        ExecutorService executor = Executors.newFixedThreadPool( threads );
+        try
+        {
+            List futures = new ArrayList();
+            for ( Iterator i = changed.iterator(); i.hasNext(); )
+            {
+                final String path = (String) i.next();
+                final NarJavahIndex.Entry previous = index.get( path );
+                futures.add( executor.submit( new Callable()
+                {
+                    public Object call()
+                        throws IOException
+                    {
+                        return NarJavahIndex.index( new File( getClassDirectory(), path ), previous );
+                    }
+                } ) );
+            }
+            for ( int i = 0; i < changed.size(); i++ )
+            {
+                String path = (String) changed.get( i );
+                try
+                {
+                    entries.put( path, ( (Future) futures.get( i ) ).get() );
+                }
+                catch ( ExecutionException e )
+                {
+                    throw new MojoExecutionException( "JAVAH: Class " + path + " could not be inspected",
+                                                      e.getCause() );
+                }
+            }
+            return entries;
+        }
+        catch ( InterruptedException e )
+        {
+            throw new MojoExecutionException( "JAVAH: interrupted", e );
+        }
+        finally
         {
-            throw new MojoExecutionException( "JAVAH: Class could not be inspected", e );
+            executor.shutdownNow();
         }
     }
 
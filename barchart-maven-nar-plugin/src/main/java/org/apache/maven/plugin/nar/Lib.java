@@ -115,7 +115,7 @@ public class Lib
     private void addMultipleLibSets( AbstractDependencyMojo mojo, LinkerDef linker, Project antProject, String name )
         throws MojoFailureException, MojoExecutionException
     {
-		List dependencies = mojo.getNarManager().getNarDependencies("compile");
+		NarDependencyGraph dependencies = mojo.getNarDependencyGraph("compile");
         for ( Iterator i = libs.iterator(); i.hasNext(); )
         {
 			Lib lib = (Lib) i.next();
@@ -125,18 +125,16 @@ public class Lib
 				throw new MojoFailureException(
 						"NAR: Please specify <Name> as part of <Lib> in format 'groupId:artifactId'");
 			}
-            for ( Iterator j = dependencies.iterator(); j.hasNext(); )
+            NarDependencyGraph.Node node = dependencies.getNode( ids[0] + ":" + ids[1] );
+            if ( node != null )
             {
-				Artifact dependency = (Artifact) j.next();
-                if ( dependency.getGroupId().equals( ids[0] ) && dependency.getArtifactId().equals( ids[1] ) )
-                {
-					// FIXME NAR-90
-                    File narDir =
-                        new File( dependency.getFile().getParentFile(), "nar/lib/"
-									+ mojo.getAOL() + "/" + lib.type);
-                    String narName = dependency.getArtifactId() + "-" + lib.name + "-" + dependency.getVersion();
-					lib.addLibSet(mojo, linker, antProject, narName, narDir);
-				}
+                Artifact dependency = node.getArtifact();
+				// FIXME NAR-90
+                File narDir =
+                    new File( dependency.getFile().getParentFile(), "nar/lib/"
+								+ mojo.getAOL() + "/" + lib.type);
+                String narName = dependency.getArtifactId() + "-" + lib.name + "-" + dependency.getVersion();
+				lib.addLibSet(mojo, linker, antProject, narName, narDir);
 			}
 		}
 	}
@@ -102,6 +102,16 @@ public class Library
      */
     private String narSystemDirectory = "nar-generated";
 
+    /**
+     * When true and if type is "jni" or "shared", the library is also copied into the classes directory under
+     * lib/&lt;aol&gt;/&lt;type&gt;, so that it is packaged in the jar. The generated NarSystem class then extracts it
+     * from the classpath into a cache directory and loads it from there, instead of relying on java.library.path.
+     * Defaults to false.
+     * 
+     * @parameter expression=""
+     */
+    private boolean embedLibrary = false;
+
     /**
      * When true and if type is "executable" run this executable. Defaults to false;
      * 
@@ -162,6 +172,11 @@ public class Library
         return narSystemDirectory;
     }
 
+    public final boolean embedLibrary()
+    {
+        return embedLibrary;
+    }
+
     // FIXME incomplete
     public final String toString()
     {
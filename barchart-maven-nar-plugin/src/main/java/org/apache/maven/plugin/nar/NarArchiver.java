@@ -19,12 +19,547 @@ package org.apache.maven.plugin.nar;
  * under the License.
  */
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.codehaus.plexus.archiver.ArchiveEntry;
+import org.codehaus.plexus.archiver.ArchiverException;
+import org.codehaus.plexus.archiver.ResourceIterator;
 import org.codehaus.plexus.archiver.zip.AbstractZipArchiver;
+import org.codehaus.plexus.util.IOUtil;
 
 /**
+ * Zip archiver for nar files. Entries are deflated concurrently and written in name order, so that the archive only
+ * depends on the content of the files. Entries can be stored rather than deflated by extension, and all entries can be
+ * given a fixed modification time to make the archive reproducible.
+ * 
  * @author Mark Donszelmann
  */
 public class NarArchiver
     extends AbstractZipArchiver
 {
+    // unix file type flags, as used by the plexus zip archiver
+    private static final int FILE_FLAG = 0100000;
+
+    private static final int DIR_FLAG = 040000;
+
+    private static final int DEFAULT_DIR_MODE = 0755;
+
+    // entries compressed to more than this are spooled to a temporary file
+    private static final int MEMORY_LIMIT = 4 * 1024 * 1024;
+
+    // beyond these the zip64 extensions are needed, which are left to the plexus implementation
+    private static final int MAX_ENTRIES = 0xFFFF;
+
+    private static final long MAX_SIZE = 0xF0000000L;
+
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    private String[] storedExtensions = new String[0];
+
+    private long timestamp = -1;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * @param compressionLevel deflate level 1-9, -1 for the default level, 0 to store all entries
+     */
+    public final void setCompressionLevel( int compressionLevel )
+    {
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * @param storedExtensions extensions (without dot) of files which are stored rather than deflated
+     */
+    public final void setStoredExtensions( String[] storedExtensions )
+    {
+        this.storedExtensions = storedExtensions != null ? storedExtensions : new String[0];
+    }
+
+    /**
+     * @param timestamp modification time in milliseconds used for all entries, -1 to keep the time of the files
+     */
+    public final void setTimestamp( long timestamp )
+    {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * @param threads number of entries compressed concurrently, 0 for the number of processors
+     */
+    public final void setThreads( int threads )
+    {
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    protected void execute()
+        throws ArchiverException, IOException
+    {
+        List/* <ArchiveEntry> */entries = new ArrayList();
+        long size = 0;
+        for ( ResourceIterator i = getResources(); i.hasNext(); )
+        {
+            ArchiveEntry entry = i.next();
+            if ( entry.getType() == ArchiveEntry.FILE )
+            {
+                size += entry.getResource().getSize();
+            }
+            entries.add( entry );
+        }
+
+        if ( ( entries.size() >= MAX_ENTRIES ) || ( size >= MAX_SIZE ) )
+        {
+            getLogger().debug( "NAR: archive too large for parallel compression, using the default zip archiver" );
+            super.execute();
+            return;
+        }
+
+        List/* <Entry> */sorted = getEntries( entries );
+
+        File destFile = getDestFile();
+        File parent = destFile.getParentFile();
+        if ( parent != null )
+        {
+            parent.mkdirs();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool( threads );
+        ZipWriter writer = null;
+        LinkedList/* <Future<Entry>> */pending = new LinkedList();
+        LinkedList/* <Entry> */pendingEntries = new LinkedList();
+        try
+        {
+            writer = new ZipWriter( new FileOutputStream( destFile ) );
+            Iterator i = sorted.iterator();
+            while ( i.hasNext() || !pending.isEmpty() )
+            {
+                // keep a bounded number of compressed entries in flight, written in order
+                while ( i.hasNext() && ( pending.size() < threads * 2 ) )
+                {
+                    final Entry entry = (Entry) i.next();
+                    pendingEntries.add( entry );
+                    pending.add( executor.submit( new Callable()
+                    {
+                        public Object call()
+                            throws IOException
+                        {
+                            entry.compress();
+                            return entry;
+                        }
+                    } ) );
+                }
+                pendingEntries.removeFirst();
+                Entry entry = (Entry) get( (Future) pending.removeFirst() );
+                try
+                {
+                    writer.write( entry );
+                }
+                finally
+                {
+                    entry.dispose();
+                }
+            }
+            writer.finish();
+        }
+        finally
+        {
+            // when failing, queued entries are never run and running ones are interrupted
+            for ( Iterator i = pending.iterator(); i.hasNext(); )
+            {
+                ( (Future) i.next() ).cancel( true );
+            }
+            executor.shutdownNow();
+            if ( !pendingEntries.isEmpty() && awaitTermination( executor ) )
+            {
+                // no task is running any more, so their spooled data can go
+                for ( Iterator i = pendingEntries.iterator(); i.hasNext(); )
+                {
+                    ( (Entry) i.next() ).dispose();
+                }
+            }
+            IOUtil.close( writer );
+        }
+    }
+
+    private static boolean awaitTermination( ExecutorService executor )
+    {
+        try
+        {
+            return executor.awaitTermination( 60, TimeUnit.SECONDS );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private Object get( Future future )
+        throws ArchiverException, IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch ( InterruptedException e )
+        {
+            throw new ArchiverException( "NAR: interrupted while creating " + getDestFile(), e );
+        }
+        catch ( ExecutionException e )
+        {
+            if ( e.getCause() instanceof IOException )
+            {
+                throw (IOException) e.getCause();
+            }
+            throw new ArchiverException( "NAR: cannot create " + getDestFile(), e.getCause() );
+        }
+    }
+
+    /**
+     * Sorts the entries by name and adds the parent directories which are missing.
+     */
+    private List/* <Entry> */getEntries( List/* <ArchiveEntry> */entries )
+    {
+        List result = new ArrayList();
+        Set names = new HashSet();
+        for ( Iterator i = entries.iterator(); i.hasNext(); )
+        {
+            ArchiveEntry archiveEntry = (ArchiveEntry) i.next();
+            String name = archiveEntry.getName().replace( '\\', '/' );
+            boolean directory = archiveEntry.getType() == ArchiveEntry.DIRECTORY;
+            if ( directory && !name.endsWith( "/" ) )
+            {
+                name += "/";
+            }
+            if ( name.equals( "/" ) || !names.add( name ) )
+            {
+                continue;
+            }
+            long time = timestamp != -1 ? timestamp : archiveEntry.getResource().getLastModified();
+            result.add( new Entry( name, directory ? null : archiveEntry, archiveEntry.getMode(), time ) );
+
+            for ( int slash = name.lastIndexOf( '/', name.length() - 2 ); slash > 0; slash =
+                name.lastIndexOf( '/', slash - 1 ) )
+            {
+                String dir = name.substring( 0, slash + 1 );
+                if ( names.add( dir ) )
+                {
+                    result.add( new Entry( dir, null, DEFAULT_DIR_MODE, time ) );
+                }
+            }
+        }
+        Collections.sort( result, new Comparator()
+        {
+            public int compare( Object o1, Object o2 )
+            {
+                return ( (Entry) o1 ).name.compareTo( ( (Entry) o2 ).name );
+            }
+        } );
+        return result;
+    }
+
+    private boolean isStored( String name )
+    {
+        if ( compressionLevel == 0 )
+        {
+            return true;
+        }
+        String lower = name.toLowerCase();
+        for ( int i = 0; i < storedExtensions.length; i++ )
+        {
+            if ( lower.endsWith( "." + storedExtensions[i].trim().toLowerCase() ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Converts to MS-DOS date and time. A fixed timestamp is converted in UTC, so that the archive is the same in every
+     * time zone.
+     */
+    private long toDosTime( long time )
+    {
+        TimeZone zone = timestamp != -1 ? TimeZone.getTimeZone( "UTC" ) : TimeZone.getDefault();
+        Calendar calendar = Calendar.getInstance( zone );
+        calendar.setTimeInMillis( time );
+        int year = calendar.get( Calendar.YEAR );
+        if ( year < 1980 )
+        {
+            return ( 1 << 21 ) | ( 1 << 16 );
+        }
+        return ( ( year - 1980 ) << 25 ) | ( ( calendar.get( Calendar.MONTH ) + 1 ) << 21 )
+            | ( calendar.get( Calendar.DAY_OF_MONTH ) << 16 ) | ( calendar.get( Calendar.HOUR_OF_DAY ) << 11 )
+            | ( calendar.get( Calendar.MINUTE ) << 5 ) | ( calendar.get( Calendar.SECOND ) >> 1 );
+    }
+
+    /**
+     * An entry of the archive, with its data once compressed.
+     */
+    private class Entry
+    {
+        private String name;
+
+        private ArchiveEntry source;
+
+        private int mode;
+
+        private long dosTime;
+
+        private boolean stored;
+
+        private long crc;
+
+        private long size;
+
+        private long compressedSize;
+
+        private byte[] data;
+
+        private File spool;
+
+        Entry( String name, ArchiveEntry source, int mode, long time )
+        {
+            this.name = name;
+            this.source = source;
+            this.mode = mode;
+            this.dosTime = toDosTime( time );
+            this.stored = ( source == null ) || isStored( name );
+        }
+
+        final boolean isDirectory()
+        {
+            return source == null;
+        }
+
+        final void compress()
+            throws IOException
+        {
+            if ( isDirectory() )
+            {
+                data = new byte[0];
+                return;
+            }
+
+            long expected = source.getResource().getSize();
+            ByteArrayOutputStream buffer = null;
+            OutputStream out;
+            if ( ( expected >= 0 ) && ( expected <= MEMORY_LIMIT ) )
+            {
+                buffer = new ByteArrayOutputStream( (int) expected );
+                out = buffer;
+            }
+            else
+            {
+                spool = File.createTempFile( "nar", ".tmp" );
+                out = new BufferedOutputStream( new FileOutputStream( spool ) );
+            }
+
+            Deflater deflater = null;
+            InputStream in = null;
+            try
+            {
+                if ( !stored )
+                {
+                    deflater = new Deflater( compressionLevel, true );
+                    out = new DeflaterOutputStream( out, deflater, 8192 );
+                }
+                CRC32 checksum = new CRC32();
+                in = source.getInputStream();
+                byte[] bytes = new byte[8192];
+                int n;
+                while ( ( n = in.read( bytes ) ) > 0 )
+                {
+                    checksum.update( bytes, 0, n );
+                    out.write( bytes, 0, n );
+                    size += n;
+                }
+                out.close();
+                out = null;
+                crc = checksum.getValue();
+                compressedSize = stored ? size : deflater.getBytesWritten();
+                if ( buffer != null )
+                {
+                    data = buffer.toByteArray();
+                }
+            }
+            finally
+            {
+                IOUtil.close( in );
+                IOUtil.close( out );
+                if ( deflater != null )
+                {
+                    deflater.end();
+                }
+            }
+        }
+
+        final void writeData( OutputStream out )
+            throws IOException
+        {
+            if ( data != null )
+            {
+                out.write( data );
+                return;
+            }
+            InputStream in = new FileInputStream( spool );
+            try
+            {
+                IOUtil.copy( in, out );
+            }
+            finally
+            {
+                IOUtil.close( in );
+            }
+        }
+
+        final void dispose()
+        {
+            data = null;
+            if ( spool != null )
+            {
+                spool.delete();
+                spool = null;
+            }
+        }
+    }
+
+    /**
+     * Writes the local headers, data and central directory of a zip file.
+     */
+    private static class ZipWriter
+        extends OutputStream
+    {
+        private OutputStream out;
+
+        private long written;
+
+        private ByteArrayOutputStream central = new ByteArrayOutputStream();
+
+        private int count;
+
+        ZipWriter( OutputStream out )
+        {
+            this.out = new BufferedOutputStream( out, 65536 );
+        }
+
+        final void write( Entry entry )
+            throws IOException
+        {
+            long offset = written;
+            byte[] name = entry.name.getBytes( "UTF-8" );
+            int method = entry.stored ? 0 : 8;
+
+            writeInt( this, 0x04034b50L );
+            writeShort( this, 20 );
+            writeShort( this, 0x0800 );
+            writeShort( this, method );
+            writeInt( this, entry.dosTime );
+            writeInt( this, entry.crc );
+            writeInt( this, entry.compressedSize );
+            writeInt( this, entry.size );
+            writeShort( this, name.length );
+            writeShort( this, 0 );
+            write( name );
+            entry.writeData( this );
+
+            int type = entry.isDirectory() ? DIR_FLAG : FILE_FLAG;
+            long attributes = ( (long) ( type | ( entry.mode & 07777 ) ) << 16 ) | ( entry.isDirectory() ? 0x10 : 0 );
+            writeInt( central, 0x02014b50L );
+            writeShort( central, ( 3 << 8 ) | 20 );
+            writeShort( central, 20 );
+            writeShort( central, 0x0800 );
+            writeShort( central, method );
+            writeInt( central, entry.dosTime );
+            writeInt( central, entry.crc );
+            writeInt( central, entry.compressedSize );
+            writeInt( central, entry.size );
+            writeShort( central, name.length );
+            writeShort( central, 0 );
+            writeShort( central, 0 );
+            writeShort( central, 0 );
+            writeShort( central, 0 );
+            writeInt( central, attributes );
+            writeInt( central, offset );
+            central.write( name );
+            count++;
+        }
+
+        final void finish()
+            throws IOException
+        {
+            long offset = written;
+            central.writeTo( this );
+            writeInt( this, 0x06054b50L );
+            writeShort( this, 0 );
+            writeShort( this, 0 );
+            writeShort( this, count );
+            writeShort( this, count );
+            writeInt( this, central.size() );
+            writeInt( this, offset );
+            writeShort( this, 0 );
+            out.flush();
+        }
+
+        public final void write( int b )
+            throws IOException
+        {
+            out.write( b );
+            written++;
+        }
+
+        public final void write( byte[] b, int off, int len )
+            throws IOException
+        {
+            out.write( b, off, len );
+            written += len;
+        }
+
+        public final void close()
+            throws IOException
+        {
+            out.close();
+        }
+
+        private static void writeShort( OutputStream out, int value )
+            throws IOException
+        {
+            out.write( value & 0xff );
+            out.write( ( value >>> 8 ) & 0xff );
+        }
+
+        private static void writeInt( OutputStream out, long value )
+            throws IOException
+        {
+            writeShort( out, (int) ( value & 0xffff ) );
+            writeShort( out, (int) ( ( value >>> 16 ) & 0xffff ) );
+        }
+    }
 }
@@ -37,6 +37,7 @@ public class NarArtifact
                dependency.getScope(), dependency.getType(), dependency.getClassifier(),
                dependency.getArtifactHandler(), dependency.isOptional() );
         this.setFile( dependency.getFile() );
+        this.setDependencyTrail( dependency.getDependencyTrail() );
         this.narInfo = narInfo;
     }
 
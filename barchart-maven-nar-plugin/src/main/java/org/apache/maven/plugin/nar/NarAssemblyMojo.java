@@ -56,7 +56,7 @@ public class NarAssemblyMojo
     public final void narExecute()
         throws MojoExecutionException, MojoFailureException
     {
-        List narArtifacts = getNarManager().getNarDependencies( "compile" );
+        List narArtifacts = getNarDependencyGraph( "compile" ).getArtifacts();
 
         List dependencies = getNarManager().getAttachedNarDependencies( narArtifacts, classifiers );
 
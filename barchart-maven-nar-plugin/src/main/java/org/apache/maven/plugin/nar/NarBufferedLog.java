@@ -0,0 +1,192 @@
+package org.apache.maven.plugin.nar;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Log which keeps all messages until they are flushed to another log. Used to keep the output of tasks running
+ * concurrently together.
+ */
+public class NarBufferedLog
+    implements Log
+{
+    private static final int DEBUG = 0;
+
+    private static final int INFO = 1;
+
+    private static final int WARN = 2;
+
+    private static final int ERROR = 3;
+
+    private Log log;
+
+    private String prefix;
+
+    private List/* <Object[]> */messages = new ArrayList();
+
+    /**
+     * @param log the log to flush to, also used to determine the enabled levels
+     * @param prefix prefix for each message, may be null
+     */
+    public NarBufferedLog( Log log, String prefix )
+    {
+        this.log = log;
+        this.prefix = prefix;
+    }
+
+    /**
+     * Writes all buffered messages to the underlying log.
+     */
+    public final synchronized void flush()
+    {
+        for ( Iterator i = messages.iterator(); i.hasNext(); )
+        {
+            Object[] message = (Object[]) i.next();
+            int level = ( (Integer) message[0] ).intValue();
+            CharSequence content = (CharSequence) message[1];
+            Throwable error = (Throwable) message[2];
+            switch ( level )
+            {
+                case DEBUG:
+                    log.debug( content, error );
+                    break;
+                case INFO:
+                    log.info( content, error );
+                    break;
+                case WARN:
+                    log.warn( content, error );
+                    break;
+                default:
+                case ERROR:
+                    log.error( content, error );
+                    break;
+            }
+        }
+        messages.clear();
+    }
+
+    private synchronized void add( int level, CharSequence content, Throwable error )
+    {
+        CharSequence message = content;
+        if ( message == null && error != null )
+        {
+            message = error.getMessage();
+        }
+        if ( prefix != null )
+        {
+            message = prefix + message;
+        }
+        messages.add( new Object[] { new Integer( level ), message, error } );
+    }
+
+    public final boolean isDebugEnabled()
+    {
+        return log.isDebugEnabled();
+    }
+
+    public final void debug( CharSequence content )
+    {
+        if ( isDebugEnabled() )
+        {
+            add( DEBUG, content, null );
+        }
+    }
+
+    public final void debug( CharSequence content, Throwable error )
+    {
+        if ( isDebugEnabled() )
+        {
+            add( DEBUG, content, error );
+        }
+    }
+
+    public final void debug( Throwable error )
+    {
+        if ( isDebugEnabled() )
+        {
+            add( DEBUG, null, error );
+        }
+    }
+
+    public final boolean isInfoEnabled()
+    {
+        return log.isInfoEnabled();
+    }
+
+    public final void info( CharSequence content )
+    {
+        add( INFO, content, null );
+    }
+
+    public final void info( CharSequence content, Throwable error )
+    {
+        add( INFO, content, error );
+    }
+
+    public final void info( Throwable error )
+    {
+        add( INFO, null, error );
+    }
+
+    public final boolean isWarnEnabled()
+    {
+        return log.isWarnEnabled();
+    }
+
+    public final void warn( CharSequence content )
+    {
+        add( WARN, content, null );
+    }
+
+    public final void warn( CharSequence content, Throwable error )
+    {
+        add( WARN, content, error );
+    }
+
+    public final void warn( Throwable error )
+    {
+        add( WARN, null, error );
+    }
+
+    public final boolean isErrorEnabled()
+    {
+        return log.isErrorEnabled();
+    }
+
+    public final void error( CharSequence content )
+    {
+        add( ERROR, content, null );
+    }
+
+    public final void error( CharSequence content, Throwable error )
+    {
+        add( ERROR, content, error );
+    }
+
+    public final void error( Throwable error )
+    {
+        add( ERROR, null, error );
+    }
+}
@@ -24,8 +24,12 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import net.sf.antcontrib.cpptasks.CCTask;
 import net.sf.antcontrib.cpptasks.CUtil;
@@ -34,6 +38,7 @@ import net.sf.antcontrib.cpptasks.LinkerDef;
 import net.sf.antcontrib.cpptasks.OutputTypeEnum;
 import net.sf.antcontrib.cpptasks.RuntimeType;
 import net.sf.antcontrib.cpptasks.SubsystemEnum;
+import net.sf.antcontrib.cpptasks.types.ConditionalFileSet;
 import net.sf.antcontrib.cpptasks.types.LibrarySet;
 import net.sf.antcontrib.cpptasks.types.LinkerArgument;
 import net.sf.antcontrib.cpptasks.types.SystemLibrarySet;
@@ -41,6 +46,7 @@ import net.sf.antcontrib.cpptasks.types.SystemLibrarySet;
 import org.apache.maven.execution.MavenSession;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.logging.Log;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
 import org.codehaus.plexus.util.FileUtils;
@@ -68,6 +74,35 @@ public class NarCompileMojo
      */
     protected MavenSession session;
 
+    /**
+     * Directory of the content addressed object cache. Objects are stored under a key made up of the contents of the
+     * source file and its headers, the compiler version, flags and defines and the AOL, so the directory can be shared
+     * between modules and workspaces. Unchanged sources are restored from the cache instead of being recompiled. The
+     * cache is disabled if not specified.
+     * 
+     * @parameter expression="${nar.objectCache}"
+     */
+    private File objectCache;
+
+    /**
+     * Compile the sources only once for all libraries, and only run the archive or link step per library. The sources
+     * are compiled for a shared, jni or plugin library if there is one, so that the objects are position independent
+     * and may be used for all other library types.
+     * 
+     * @parameter expression="${nar.shareObjects}" default-value="false"
+     */
+    private boolean shareObjects;
+
+    /**
+     * Compile the sources only once, and link the libraries concurrently from the resulting object files. The output
+     * of each library is logged in one block once it is done. Implies shareObjects.
+     * 
+     * @parameter expression="${nar.parallelLibraries}" default-value="false"
+     */
+    private boolean parallelLibraries;
+
+    private String linkerVersion;
+
     public final void narExecute()
         throws MojoExecutionException, MojoFailureException
     {
@@ -83,9 +118,33 @@ public class NarCompileMojo
         if ( noOfSources > 0 )
         {
             getLog().info( "Compiling " + noOfSources + " native files" );
-            for ( Iterator i = getLibraries().iterator(); i.hasNext(); )
+            List libraries = getLibraries();
+            if ( ( shareObjects || parallelLibraries ) && ( libraries.size() > 1 ) )
             {
-                createLibrary(getAntProject(), (Library) i.next());
+                Library compiled = getCompileLibrary( libraries );
+                List others = new ArrayList( libraries );
+                others.remove( compiled );
+
+                getLog().debug( "Compiling objects for " + compiled + ", linking only for " + others );
+                createLibrary( getAntProject(), compiled, getLog(), false );
+                if ( parallelLibraries )
+                {
+                    linkLibraries( others );
+                }
+                else
+                {
+                    for ( Iterator i = others.iterator(); i.hasNext(); )
+                    {
+                        createLibrary( getAntProject(), (Library) i.next(), getLog(), true );
+                    }
+                }
+            }
+            else
+            {
+                for ( Iterator i = libraries.iterator(); i.hasNext(); )
+                {
+                    createLibrary( getAntProject(), (Library) i.next(), getLog(), false );
+                }
             }
         }
         else
@@ -108,6 +167,24 @@ public class NarCompileMojo
         }
     }
 
+    /**
+     * Returns the library to compile the shared objects for. Shared, jni and plugin libraries need position
+     * independent code, which can also be archived in a static library or linked into an executable.
+     */
+    private Library getCompileLibrary( List/* <Library> */libraries )
+    {
+        for ( Iterator i = libraries.iterator(); i.hasNext(); )
+        {
+            Library library = (Library) i.next();
+            String type = library.getType();
+            if ( type.equals( Library.SHARED ) || type.equals( Library.JNI ) || type.equals( Library.PLUGIN ) )
+            {
+                return library;
+            }
+        }
+        return (Library) libraries.get( 0 );
+    }
+
     private List getSourcesFor( Compiler compiler )
         throws MojoFailureException, MojoExecutionException
     {
@@ -132,10 +209,281 @@ public class NarCompileMojo
         }
     }
 
-    private void createLibrary(Project antProject, Library library)
+    private List/* <File> */getSources()
+        throws MojoFailureException, MojoExecutionException
+    {
+        List sources = new ArrayList();
+        sources.addAll( getSourcesFor( getCpp() ) );
+        sources.addAll( getSourcesFor( getC() ) );
+        sources.addAll( getSourcesFor( getFortran() ) );
+        return sources;
+    }
+
+    private void addIncludePaths( List/* <File> */includePaths, Compiler compiler )
+    {
+        for ( Iterator i = compiler.getIncludePaths( Compiler.MAIN ).iterator(); i.hasNext(); )
+        {
+            includePaths.add( new File( (String) i.next() ) );
+        }
+    }
+
+    /**
+     * Returns the version of the linker, running it only once.
+     */
+    private String getLinkerVersion()
+        throws MojoExecutionException
+    {
+        if ( linkerVersion == null )
+        {
+            try
+            {
+                linkerVersion = getLinker().getVersion();
+            }
+            catch ( MojoFailureException e )
+            {
+                // unknown linker, rely on its name only
+                getLog().debug( "NAR: " + e.getMessage() );
+                linkerVersion = "unknown";
+            }
+        }
+        return linkerVersion;
+    }
+
+    private NarObjectCache getObjectCache( String type, List/* <File> */includePaths )
+        throws MojoFailureException, MojoExecutionException
+    {
+        StringBuffer signature = new StringBuffer();
+        signature.append( getAOL() ).append( "\n" );
+        // objects for shared libraries may be compiled differently (e.g. position independent)
+        signature.append( type ).append( "\n" );
+        signature.append( getLinker().getName() ).append( " " ).append( getLinkerVersion() ).append( "\n" );
+        signature.append( getRuntime( getAOL() ) ).append( "\n" );
+        signature.append( getCpp().getSignature() ).append( "\n" );
+        signature.append( getC().getSignature() ).append( "\n" );
+        signature.append( getFortran().getSignature() ).append( "\n" );
+
+        File cacheDirectory = new File( objectCache, getAOL().toString() );
+        return new NarObjectCache( cacheDirectory, signature.toString(), getObjectExtension(), includePaths, getLog() );
+    }
+
+    private String getObjectExtension()
+    {
+        // FIXME, object extension should come from cpptasks
+        return getOS().equals( OS.WINDOWS ) ? ".obj" : ".o";
+    }
+
+    /**
+     * Returns the include pattern for the object files of the current sources.
+     */
+    private String getObjectIncludes()
+        throws MojoFailureException, MojoExecutionException
+    {
+        StringBuffer includes = new StringBuffer();
+        for ( Iterator i = getSources().iterator(); i.hasNext(); )
+        {
+            String name = ( (File) i.next() ).getName();
+            int dot = name.lastIndexOf( '.' );
+            if ( dot > 0 )
+            {
+                name = name.substring( 0, dot );
+            }
+            if ( includes.length() > 0 )
+            {
+                includes.append( ',' );
+            }
+            includes.append( name ).append( getObjectExtension() );
+        }
+        return includes.toString();
+    }
+
+    /**
+     * Links the given libraries concurrently from the objects compiled earlier. Each library uses its own ant project
+     * and log, the logs are flushed in the order of the libraries.
+     */
+    private void linkLibraries( List/* <Library> */libraries )
+        throws MojoExecutionException, MojoFailureException
+    {
+        // initialize lazy state before going concurrent
+        getLayout();
+        getNarInfo();
+        getNarDependencyGraph( "compile" );
+        getLinkerVersion();
+        getJavah();
+        getJava().resolveRuntimeDirectory( getOS(), getAOL().getKey() + ".java." );
+
+        int threads = getMaxCores( getAOL() );
+        if ( threads <= 0 )
+        {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        threads = Math.max( 1, Math.min( threads, libraries.size() ) );
+        getLog().info( "Linking " + libraries.size() + " libraries using " + threads + " threads" );
+
+        ExecutorService executor = Executors.newFixedThreadPool( threads );
+        try
+        {
+            List logs = new ArrayList();
+            List futures = new ArrayList();
+            for ( Iterator i = libraries.iterator(); i.hasNext(); )
+            {
+                final Library library = (Library) i.next();
+                final NarBufferedLog log = new NarBufferedLog( getLog(), "[" + library.getType() + "] " );
+                logs.add( log );
+
+                // the linker configuration reads the nar properties and sets the dependency lib order on this mojo
+                final Project antProject = new Project();
+                antProject.setName( "NARProject-" + library.getType() );
+                antProject.addBuildListener( new NarLogger( log ) );
+                final LinkerDef linkerDefinition = createLinker( antProject, library.getType() );
+
+                futures.add( executor.submit( new Callable()
+                {
+                    public Object call()
+                        throws Exception
+                    {
+                        createLibrary( antProject, library, linkerDefinition, log, true );
+                        return null;
+                    }
+                } ) );
+            }
+
+            Exception failure = null;
+            for ( int i = 0; i < futures.size(); i++ )
+            {
+                try
+                {
+                    ( (Future) futures.get( i ) ).get();
+                }
+                catch ( ExecutionException e )
+                {
+                    if ( failure == null )
+                    {
+                        failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    }
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                    throw new MojoExecutionException( "NAR: interrupted while linking", e );
+                }
+                finally
+                {
+                    ( (NarBufferedLog) logs.get( i ) ).flush();
+                }
+            }
+
+            if ( failure instanceof MojoFailureException )
+            {
+                throw (MojoFailureException) failure;
+            }
+            if ( failure instanceof MojoExecutionException )
+            {
+                throw (MojoExecutionException) failure;
+            }
+            if ( failure != null )
+            {
+                throw new MojoExecutionException( "NAR: Link failed", failure );
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private void addCompilers( CCTask task, String type, List/* <File> */includePaths, Log log )
+        throws MojoExecutionException, MojoFailureException
+    {
+        // Darren Sargent Feb 11 2010: Use Compiler.MAIN for "type"...appears the wrong "type" variable was being used
+        // since getCompiler() expects "main" or "test", whereas the "type" variable here is "executable", "shared" etc.
+        // add C++ compiler
+        CompilerDef cpp = getCpp().getCompiler( Compiler.MAIN, getOutput( getAOL() ) );
+        if ( cpp != null )
+        {
+            task.addConfiguredCompiler( cpp );
+        }
+
+        // add C compiler
+        CompilerDef c = getC().getCompiler( Compiler.MAIN, getOutput( getAOL() ) );
+        if ( c != null )
+        {
+            task.addConfiguredCompiler( c );
+        }
+
+        // add Fortran compiler
+        CompilerDef fortran = getFortran().getCompiler( Compiler.MAIN, getOutput( getAOL() ) );
+        if ( fortran != null )
+        {
+            task.addConfiguredCompiler( fortran );
+        }
+        // end Darren
+
+        // include paths, used to resolve headers for the object cache
+        addIncludePaths( includePaths, getCpp() );
+        addIncludePaths( includePaths, getC() );
+        addIncludePaths( includePaths, getFortran() );
+
+        // add javah include path
+        File jniDirectory = getJavah().getJniDirectory();
+        if (jniDirectory.exists())
+        {
+            task.createIncludePath().setPath(jniDirectory.getPath());
+            includePaths.add( jniDirectory );
+        }
+
+        // add java include paths
+        getJava().addIncludePaths(task, type);
+
+        // add dependency include paths
+        for ( Iterator i = getNarDependencyGraph( "compile" ).getNodes().iterator(); i.hasNext(); )
+        {
+            // FIXME, handle multiple includes from one NAR
+            NarDependencyGraph.Node narDependency = (NarDependencyGraph.Node) i.next();
+            String binding = narDependency.getBinding( Library.STATIC );
+            log.debug( "Looking for " + narDependency + " found binding " + binding);
+            if ( !binding.equals(Library.JNI ) )
+            {
+                File include = narDependency.getIncludeDirectory();
+                log.debug( "Looking for include directory: " + include );
+                if ( include.exists() )
+                {
+                    task.createIncludePath().setPath(include.getPath());
+                    includePaths.add( include );
+                } else {
+                    throw new MojoExecutionException(
+                            "NAR: unable to locate include path: " + include);
+                }
+            }
+        }
+    }
+
+    private LinkerDef createLinker( Project antProject, String type )
+        throws MojoExecutionException, MojoFailureException
+    {
+        LinkerDef linkerDefinition =
+            getLinker().getLinker( this, antProject, getOS(), getAOL().getKey() + ".linker.", type );
+        if ( type.equals( Library.JNI ) )
+        {
+            getJavah().addLinkerExports( linkerDefinition, getOS(), getLinker().getName() );
+        }
+        return linkerDefinition;
+    }
+
+    private void createLibrary( Project antProject, Library library, Log log, boolean linkOnly )
+        throws MojoExecutionException, MojoFailureException
+    {
+        createLibrary( antProject, library, createLinker( antProject, library.getType() ), log, linkOnly );
+    }
+
+    /**
+     * Creates the given library. If linkOnly is set no compilers are configured, and the object files compiled
+     * earlier in the object directory are handed to the linker.
+     */
+    private void createLibrary( Project antProject, Library library, LinkerDef linkerDefinition, Log log,
+                                boolean linkOnly )
         throws MojoExecutionException, MojoFailureException 
     {
-        getLog().debug( "Creating Library " + library );
+        log.debug( "Creating Library " + library );
         // configure task
         CCTask task = new CCTask();
         task.setProject(antProject);
@@ -189,14 +537,24 @@ public class NarCompileMojo
         {
             outFile = new File(outDir, getOutput(getAOL()));
         }
-        getLog().debug("NAR - output: '" + outFile + "'");
+        log.debug("NAR - output: '" + outFile + "'");
         task.setOutfile(outFile);
 
         // object directory
         File objDir = new File(getTargetDirectory(), "obj");
         objDir = new File(objDir, getAOL().toString());
         objDir.mkdirs();
-        task.setObjdir(objDir);
+        if ( linkOnly )
+        {
+            // keep the cpptasks history of this link apart from the one of the compilation
+            File linkDir = new File( objDir, "link-" + type );
+            linkDir.mkdirs();
+            task.setObjdir( linkDir );
+        }
+        else
+        {
+            task.setObjdir(objDir);
+        }
 
         // failOnError, libtool
         task.setFailonerror(failOnError(getAOL()));
@@ -207,67 +565,22 @@ public class NarCompileMojo
         runtimeType.setValue(getRuntime(getAOL()));
         task.setRuntime(runtimeType);
 
-        // Darren Sargent Feb 11 2010: Use Compiler.MAIN for "type"...appears the wrong "type" variable was being used
-        // since getCompiler() expects "main" or "test", whereas the "type" variable here is "executable", "shared" etc.
-        // add C++ compiler
-        CompilerDef cpp = getCpp().getCompiler( Compiler.MAIN, getOutput( getAOL() ) );
-        if ( cpp != null )
-        {
-            task.addConfiguredCompiler( cpp );
-        }
-
-        // add C compiler
-        CompilerDef c = getC().getCompiler( Compiler.MAIN, getOutput( getAOL() ) );
-        if ( c != null )
-        {
-            task.addConfiguredCompiler( c );
-        }
-
-        // add Fortran compiler
-        CompilerDef fortran = getFortran().getCompiler( Compiler.MAIN, getOutput( getAOL() ) );
-        if ( fortran != null )
-        {
-            task.addConfiguredCompiler( fortran );
-        }
-        // end Darren
-
-        // add javah include path
-        File jniDirectory = getJavah().getJniDirectory();
-        if (jniDirectory.exists())
+        // compilers and include paths, or the objects compiled earlier
+        List includePaths = new ArrayList();
+        if ( linkOnly )
         {
-            task.createIncludePath().setPath(jniDirectory.getPath());
+            ConditionalFileSet objects = new ConditionalFileSet();
+            objects.setProject( antProject );
+            objects.setDir( objDir );
+            objects.setIncludes( getObjectIncludes() );
+            task.addFileset( objects );
         }
-
-        // add java include paths
-        getJava().addIncludePaths(task, type);
-
-        // add dependency include paths
-        for ( Iterator i = getNarManager().getNarDependencies( "compile" ).iterator(); i.hasNext(); )
+        else
         {
-            // FIXME, handle multiple includes from one NAR
-            NarArtifact narDependency = (NarArtifact) i.next();
-            String binding = narDependency.getNarInfo().getBinding(getAOL(), Library.STATIC);
-            getLog().debug( "Looking for " + narDependency + " found binding " + binding);
-            if ( !binding.equals(Library.JNI ) )
-            {
-                File unpackDirectory = getUnpackDirectory();
-                File include =
-                    getLayout().getIncludeDirectory( unpackDirectory, narDependency.getArtifactId(),
-                                                     narDependency.getVersion() );
-                getLog().debug( "Looking for include directory: " + include );
-                if ( include.exists() )
-                {
-                    task.createIncludePath().setPath(include.getPath());
-                } else {
-                    throw new MojoExecutionException(
-                            "NAR: unable to locate include path: " + include);
-                }
-            }
+            addCompilers( task, type, includePaths, log );
         }
 
         // add linker
-        LinkerDef linkerDefinition =
-            getLinker().getLinker( this, antProject, getOS(), getAOL().getKey() + ".linker.", type );
         task.addConfiguredLinker(linkerDefinition);
 
         // add dependency libraries
@@ -276,68 +589,35 @@ public class NarCompileMojo
         if ( type.equals( Library.SHARED ) || type.equals( Library.JNI ) || type.equals( Library.EXECUTABLE ) )
         {
 
-            List depLibOrder = getDependencyLibOrder();
-            List depLibs = getNarManager().getNarDependencies("compile");
-
-            // reorder the libraries that come from the nar dependencies
-            // to comply with the order specified by the user
-            if ( ( depLibOrder != null ) && !depLibOrder.isEmpty() )
-            {
-                List tmp = new LinkedList();
-
-                for ( Iterator i = depLibOrder.iterator(); i.hasNext(); )
-                {
-                    String depToOrderName = (String) i.next();
-
-                    for ( Iterator j = depLibs.iterator(); j.hasNext(); )
-                    {
-                        NarArtifact dep = (NarArtifact) j.next();
-                        String depName = dep.getGroupId() + ":" + dep.getArtifactId();
-
-                        if (depName.equals(depToOrderName)) 
-                        {
-                            tmp.add(dep);
-                            j.remove();
-                        }
-                    }
-                }
-
-                tmp.addAll(depLibs);
-                depLibs = tmp;
-            }
+            // the libraries named in narDependencyLibOrder go first, the others in dependency order
+            List depLibs = getNarDependencyGraph( "compile" ).getLinkOrder( getDependencyLibOrder() );
 
             for ( Iterator i = depLibs.iterator(); i.hasNext(); )
             {
-                NarArtifact dependency = (NarArtifact) i.next();
+                NarDependencyGraph.Node dependency = (NarDependencyGraph.Node) i.next();
 
                 // FIXME no handling of "local"
 
                 // FIXME, no way to override this at this stage
-                String binding = dependency.getNarInfo().getBinding( getAOL(), Library.NONE );
-                getLog().debug("Using Binding: " + binding);
-                AOL aol = getAOL();
-                aol = dependency.getNarInfo().getAOL(getAOL());
-                getLog().debug("Using Library AOL: " + aol.toString());
+                String binding = dependency.getBinding( Library.NONE );
+                log.debug("Using Binding: " + binding);
+                log.debug("Using Library AOL: " + dependency.getAOL().toString());
 
                 if ( !binding.equals( Library.JNI ) && !binding.equals( Library.NONE ) && !binding.equals( Library.EXECUTABLE) )
                 {
-                    File unpackDirectory = getUnpackDirectory();
+                    File dir = dependency.getLibDirectory( binding );
 
-                    File dir =
-                        getLayout().getLibDirectory( unpackDirectory, dependency.getArtifactId(),
-                                                     dependency.getVersion(), aol.toString(), binding );
-
-                    getLog().debug("Looking for Library Directory: " + dir);
+                    log.debug("Looking for Library Directory: " + dir);
                     if ( dir.exists() )
                     {
                         LibrarySet libSet = new LibrarySet();
                         libSet.setProject(antProject);
 
                         // FIXME, no way to override
-                        String libs = dependency.getNarInfo().getLibs(getAOL());
+                        String libs = dependency.getLibs();
                         if ( ( libs != null ) && !libs.equals( "" ) )
                         {
-                            getLog().debug("Using LIBS = " + libs);
+                            log.debug("Using LIBS = " + libs);
                             libSet.setLibs(new CUtil.StringArrayBuilder(libs));
                             libSet.setDir(dir);
                             task.addLibset(libSet);
@@ -345,23 +625,23 @@ public class NarCompileMojo
                     }
                     else
                     {
-                        getLog().debug( "Library Directory " + dir + " does NOT exist." );
+                        log.debug( "Library Directory " + dir + " does NOT exist." );
                     }
 
                     // FIXME, look again at this, for multiple dependencies we may need to remove duplicates
-                    String options = dependency.getNarInfo().getOptions( getAOL() );
+                    String options = dependency.getOptions();
                     if ( ( options != null ) && !options.equals( "" ) )
                     {
-                        getLog().debug("Using OPTIONS = " + options);
+                        log.debug("Using OPTIONS = " + options);
                         LinkerArgument arg = new LinkerArgument();
                         arg.setValue(options);
                         linkerDefinition.addConfiguredLinkerArg(arg);
                     }
 
-                    String sysLibs = dependency.getNarInfo().getSysLibs( getAOL() );
+                    String sysLibs = dependency.getSysLibs();
                     if ( ( sysLibs != null ) && !sysLibs.equals( "" ) )
                     {
-                        getLog().debug("Using SYSLIBS = " + sysLibs);
+                        log.debug("Using SYSLIBS = " + sysLibs);
                         SystemLibrarySet sysLibSet = new SystemLibrarySet();
                         sysLibSet.setProject(antProject);
 
@@ -375,6 +655,14 @@ public class NarCompileMojo
         // Add JVM to linker
         getJava().addRuntime( task, getJavaHome( getAOL() ), getOS(), getAOL().getKey() + ".java." );
 
+        // restore unchanged objects from the object cache
+        NarObjectCache cache = null;
+        if ( ( objectCache != null ) && !linkOnly )
+        {
+            cache = getObjectCache( type, includePaths );
+            cache.restore( getSources(), objDir );
+        }
+
         // execute
         try
         {
@@ -385,9 +673,15 @@ public class NarCompileMojo
             throw new MojoExecutionException("NAR: Compile failed", e);
         }
 
+        if ( cache != null )
+        {
+            cache.store();
+            log.info( "NAR: " + library.getType() + " " + cache );
+        }
+
         // FIXME, this should be done in CPPTasks at some point
         if ( getRuntime( getAOL() ).equals( "dynamic" ) && getOS().equals( OS.WINDOWS )
-            && getLinker().getName( null, null ).equals( "msvc" ) && !getLinker().getVersion().startsWith( "6." ) )
+            && getLinker().getName( null, null ).equals( "msvc" ) && !getLinkerVersion().startsWith( "6." ) )
         {
             String libType = library.getType();
             if ( libType.equals( Library.JNI ) || libType.equals( Library.SHARED ) )
@@ -396,7 +690,7 @@ public class NarCompileMojo
                 String manifest = dll + ".manifest";
                 int result =
                     NarUtil.runCommand( "mt.exe", new String[] { "/manifest", manifest,
-                        "/outputresource:" + dll + ";#2" }, null, null, getLog() );
+                        "/outputresource:" + dll + ";#2" }, null, null, log );
                 if (result != 0)
                 {
                     throw new MojoFailureException("MT.EXE failed with exit code: " + result);
@@ -406,11 +700,60 @@ public class NarCompileMojo
                 String manifest = exe + ".manifest";
                 int result = NarUtil.runCommand("mt.exe",
                         new String[] { "/manifest", manifest,
-                                "/outputresource:" + exe + ";#1" }, null, null, getLog());
+                                "/outputresource:" + exe + ";#1" }, null, null, log);
                 if (result != 0)
                     throw new MojoFailureException(
                             "MT.EXE failed with exit code: " + result);
             }
         }
+
+        if ( library.embedLibrary() && ( type.equals( Library.JNI ) || type.equals( Library.SHARED ) ) )
+        {
+            embedLibrary( outDir, type, log );
+        }
+    }
+
+    /**
+     * Copies the library into the classes directory, together with its SHA-1 digest, so that the generated NarSystem
+     * can find it on the classpath and knows its extraction directory without reading the library itself.
+     */
+    private void embedLibrary( File outDir, String type, Log log )
+        throws MojoExecutionException, MojoFailureException
+    {
+        String resource = getEmbeddedLibraryResource( getAOL(), type );
+        String name = resource.substring( resource.lastIndexOf( '/' ) + 1 );
+        File library = new File( outDir, name );
+        if ( !library.exists() )
+        {
+            // the linker may have added a version to the name, e.g. libartifactId-version.so.1
+            List/* <String> */files;
+            try
+            {
+                files = FileUtils.getFileNames( outDir, name + ".*", null, false );
+            }
+            catch ( IOException e )
+            {
+                throw new MojoExecutionException( "NAR: could not list " + outDir, e );
+            }
+            if ( files.isEmpty() )
+            {
+                log.warn( "NAR: " + library + " not found, not embedding it in the classes directory" );
+                return;
+            }
+            Collections.sort( files );
+            library = new File( outDir, (String) files.get( 0 ) );
+        }
+
+        File embedded = new File( getMavenProject().getBuild().getOutputDirectory(), resource );
+        try
+        {
+            FileUtils.copyFile( library, embedded );
+            FileUtils.fileWrite( embedded.getPath() + ".sha1", NarObjectCache.digest( library ) );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "NAR: could not embed " + library + " in " + embedded, e );
+        }
+        log.debug( "NAR: embedded " + library + " as " + resource );
     }
 }
@@ -0,0 +1,395 @@
+package org.apache.maven.plugin.nar;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+
+/**
+ * Resolved graph of the nar dependencies of a module for one scope and AOL. Each node holds the NarInfo derived
+ * values the mojos need (binding, AOL, libs, syslibs and linker options) and its direct nar dependencies, taken from the
+ * dependency trail of the artifact. The graph is built once per module, scope and AOL and shared by the nar mojos of
+ * a build through the plugin context, see {@link AbstractDependencyMojo#getNarDependencyGraph(String)}.
+ * 
+ * The graph is immutable. Directories are computed when asked for, as dependencies may be unpacked after the graph was
+ * built.
+ */
+public class NarDependencyGraph
+{
+    private List/* <Node> */nodes;
+
+    private Map/* <String, Node> */nodesByKey;
+
+    private List/* <Node> */topologicalOrder;
+
+    /**
+     * Nar dependency of the module.
+     */
+    public static final class Node
+    {
+        private NarArtifact artifact;
+
+        private String key;
+
+        private int index;
+
+        private AOL aol;
+
+        private String binding;
+
+        private String libs;
+
+        private String sysLibs;
+
+        private String options;
+
+        private NarLayout layout;
+
+        private File[] unpackDirectories;
+
+        private List/* <Node> */dependencies = new ArrayList();
+
+        private Node( NarArtifact artifact, int index, AOL defaultAOL, NarLayout layout, File[] unpackDirectories )
+        {
+            this.artifact = artifact;
+            this.key = artifact.getGroupId() + ":" + artifact.getArtifactId();
+            this.index = index;
+            this.layout = layout;
+            this.unpackDirectories = unpackDirectories;
+
+            NarInfo info = artifact.getNarInfo();
+            aol = info.getAOL( defaultAOL );
+            binding = info.getBinding( defaultAOL, null );
+            libs = info.getLibs( defaultAOL );
+            sysLibs = info.getSysLibs( defaultAOL );
+            options = info.getOptions( defaultAOL );
+        }
+
+        public NarArtifact getArtifact()
+        {
+            return artifact;
+        }
+
+        /**
+         * @return groupId:artifactId of the dependency
+         */
+        public String getKey()
+        {
+            return key;
+        }
+
+        /**
+         * @return the AOL of the dependency, after translation by its NarInfo (e.g. g++ to gcc)
+         */
+        public AOL getAOL()
+        {
+            return aol;
+        }
+
+        /**
+         * @return the binding declared by the dependency, or the given default if it declares none
+         */
+        public String getBinding( String defaultBinding )
+        {
+            return binding != null ? binding : defaultBinding;
+        }
+
+        public String getLibs()
+        {
+            return libs;
+        }
+
+        public String getSysLibs()
+        {
+            return sysLibs;
+        }
+
+        public String getOptions()
+        {
+            return options;
+        }
+
+        /**
+         * @return the nar dependencies this dependency depends on directly
+         */
+        public List/* <Node> */getDependencies()
+        {
+            return dependencies;
+        }
+
+        /**
+         * Returns the include directory of the first unpack directory in which it exists, or the one of the first unpack
+         * directory if it exists in none.
+         */
+        public File getIncludeDirectory()
+            throws MojoExecutionException, MojoFailureException
+        {
+            File first = null;
+            for ( int i = 0; i < unpackDirectories.length; i++ )
+            {
+                File dir =
+                    layout.getIncludeDirectory( unpackDirectories[i], artifact.getArtifactId(), artifact.getVersion() );
+                if ( dir.exists() )
+                {
+                    return dir;
+                }
+                if ( first == null )
+                {
+                    first = dir;
+                }
+            }
+            return first;
+        }
+
+        /**
+         * Returns the library directory for the given binding of the first unpack directory in which it exists, or the
+         * one of the first unpack directory if it exists in none.
+         */
+        public File getLibDirectory( String libraryBinding )
+            throws MojoExecutionException, MojoFailureException
+        {
+            File first = null;
+            for ( int i = 0; i < unpackDirectories.length; i++ )
+            {
+                File dir =
+                    layout.getLibDirectory( unpackDirectories[i], artifact.getArtifactId(), artifact.getVersion(),
+                                            aol.toString(), libraryBinding );
+                if ( dir.exists() )
+                {
+                    return dir;
+                }
+                if ( first == null )
+                {
+                    first = dir;
+                }
+            }
+            return first;
+        }
+
+        public String toString()
+        {
+            return artifact.toString();
+        }
+    }
+
+    /**
+     * @param artifacts the nar dependencies of the module, in the order maven resolved them
+     * @param aol the AOL of the module
+     * @param layout layout of the unpacked nar files
+     * @param unpackDirectories directories into which the nar files are unpacked, in order of preference
+     */
+    public NarDependencyGraph( List/* <NarArtifact> */artifacts, AOL aol, NarLayout layout, File[] unpackDirectories )
+    {
+        List list = new ArrayList( artifacts.size() );
+        Map byKey = new HashMap();
+        for ( Iterator i = artifacts.iterator(); i.hasNext(); )
+        {
+            Node node = new Node( (NarArtifact) i.next(), list.size(), aol, layout, unpackDirectories );
+            if ( !byKey.containsKey( node.getKey() ) )
+            {
+                list.add( node );
+                byKey.put( node.getKey(), node );
+            }
+        }
+
+        // the nearest nar dependency on the trail of an artifact is the one which depends on it
+        for ( Iterator i = list.iterator(); i.hasNext(); )
+        {
+            Node node = (Node) i.next();
+            List trail = node.getArtifact().getDependencyTrail();
+            if ( trail == null )
+            {
+                continue;
+            }
+            // first entry is the module itself, last one the artifact
+            for ( int j = trail.size() - 2; j > 0; j-- )
+            {
+                String[] id = ( (String) trail.get( j ) ).split( ":" );
+                Node parent = id.length > 1 ? (Node) byKey.get( id[0] + ":" + id[1] ) : null;
+                if ( parent != null && parent != node )
+                {
+                    if ( !parent.dependencies.contains( node ) )
+                    {
+                        parent.dependencies.add( node );
+                    }
+                    break;
+                }
+            }
+        }
+        for ( Iterator i = list.iterator(); i.hasNext(); )
+        {
+            Node node = (Node) i.next();
+            node.dependencies = Collections.unmodifiableList( node.dependencies );
+        }
+
+        nodes = Collections.unmodifiableList( list );
+        nodesByKey = Collections.unmodifiableMap( byKey );
+        topologicalOrder = Collections.unmodifiableList( sort( list ) );
+    }
+
+    /**
+     * Orders the nodes so that every node comes before the nodes it depends on, as the linker wants them. Among the
+     * nodes which are free to go, the one maven resolved first goes first, so the maven order is kept if it already
+     * satisfies the dependencies.
+     */
+    private static List/* <Node> */sort( List/* <Node> */nodes )
+    {
+        int[] dependents = new int[nodes.size()];
+        for ( Iterator i = nodes.iterator(); i.hasNext(); )
+        {
+            for ( Iterator j = ( (Node) i.next() ).getDependencies().iterator(); j.hasNext(); )
+            {
+                dependents[( (Node) j.next() ).index]++;
+            }
+        }
+
+        PriorityQueue/* <Integer> */ready = new PriorityQueue();
+        for ( int i = 0; i < dependents.length; i++ )
+        {
+            if ( dependents[i] == 0 )
+            {
+                ready.add( new Integer( i ) );
+            }
+        }
+
+        List sorted = new ArrayList( nodes.size() );
+        while ( !ready.isEmpty() )
+        {
+            Node node = (Node) nodes.get( ( (Integer) ready.poll() ).intValue() );
+            sorted.add( node );
+            for ( Iterator j = node.getDependencies().iterator(); j.hasNext(); )
+            {
+                int dependency = ( (Node) j.next() ).index;
+                if ( --dependents[dependency] == 0 )
+                {
+                    ready.add( new Integer( dependency ) );
+                }
+            }
+        }
+
+        // cycles can not be resolved by maven, but keep the nodes anyway
+        if ( sorted.size() < nodes.size() )
+        {
+            Set done = new HashSet( sorted );
+            for ( Iterator i = nodes.iterator(); i.hasNext(); )
+            {
+                Node node = (Node) i.next();
+                if ( !done.contains( node ) )
+                {
+                    sorted.add( node );
+                }
+            }
+        }
+        return sorted;
+    }
+
+    /**
+     * @return the nodes in the order maven resolved them
+     */
+    public final List/* <Node> */getNodes()
+    {
+        return nodes;
+    }
+
+    /**
+     * @return the artifacts of the nodes in the order maven resolved them
+     */
+    public final List/* <NarArtifact> */getArtifacts()
+    {
+        List artifacts = new ArrayList( nodes.size() );
+        for ( Iterator i = nodes.iterator(); i.hasNext(); )
+        {
+            artifacts.add( ( (Node) i.next() ).getArtifact() );
+        }
+        return artifacts;
+    }
+
+    /**
+     * @param key groupId:artifactId
+     * @return the node of the given dependency, or null if it is not a nar dependency
+     */
+    public final Node getNode( String key )
+    {
+        return (Node) nodesByKey.get( key );
+    }
+
+    public final boolean isEmpty()
+    {
+        return nodes.isEmpty();
+    }
+
+    /**
+     * @return the nodes, each one before the nodes it depends on
+     */
+    public final List/* <Node> */getTopologicalOrder()
+    {
+        return topologicalOrder;
+    }
+
+    /**
+     * Returns the order in which the libraries of the nodes are handed to the linker: the dependencies named in the
+     * given order first, then the others in topological order.
+     * 
+     * @param libOrder groupId:artifactId of dependencies to link first, may be null
+     */
+    public final List/* <Node> */getLinkOrder( List/* <String> */libOrder )
+    {
+        if ( libOrder == null || libOrder.isEmpty() )
+        {
+            return topologicalOrder;
+        }
+
+        List order = new ArrayList( nodes.size() );
+        Set ordered = new HashSet();
+        for ( Iterator i = libOrder.iterator(); i.hasNext(); )
+        {
+            Node node = getNode( (String) i.next() );
+            if ( node != null && ordered.add( node ) )
+            {
+                order.add( node );
+            }
+        }
+        for ( Iterator i = topologicalOrder.iterator(); i.hasNext(); )
+        {
+            Node node = (Node) i.next();
+            if ( !ordered.contains( node ) )
+            {
+                order.add( node );
+            }
+        }
+        return order;
+    }
+
+    public final String toString()
+    {
+        return "nar dependency graph: " + nodes.size() + " nodes";
+    }
+}
@@ -41,7 +41,7 @@ public class NarDownloadMojo
     public final void narExecute()
         throws MojoExecutionException, MojoFailureException
     {
-        List narArtifacts = getNarManager().getNarDependencies( "compile" );
+        List narArtifacts = getNarDependencyGraph( "compile" ).getArtifacts();
         if ( classifiers == null )
         {
             getNarManager().downloadAttachedNars( narArtifacts, remoteArtifactRepositories, artifactResolver, null );
@@ -112,6 +112,24 @@ public class NarInfo
         info.load( jar.getInputStream( getNarPropertiesEntry( jar ) ) );
     }
 
+    /**
+     * Adds properties read before, e.g. by another NarInfo of the same artifact.
+     */
+    public final void read( Properties properties )
+    {
+        info.putAll( properties );
+    }
+
+    /**
+     * @return a copy of the properties read
+     */
+    public final Properties getProperties()
+    {
+        Properties properties = new Properties();
+        properties.putAll( info );
+        return properties;
+    }
+
     private JarEntry getNarPropertiesEntry( JarFile jar )
     {
         return jar.getJarEntry( "META-INF/nar/" + groupId + "/" + artifactId + "/" + NAR_PROPERTIES );
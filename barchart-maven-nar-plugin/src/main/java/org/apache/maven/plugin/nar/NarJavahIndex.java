@@ -0,0 +1,478 @@
+package org.apache.maven.plugin.nar;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Persistent index of the native interface of class files, used to run javah only for classes whose native interface
+ * changed. For every class file it keeps the size, modification time and SHA-1 digest of the file, the class name and
+ * the native signature of the class: its native methods, the primitive constants javah writes into the header and the
+ * types of the native methods which javah declares as jthrowable. The methods and constants are read with a minimal
+ * scan of the class file, without building the full class model.
+ */
+public class NarJavahIndex
+{
+    private static final int ACC_STATIC = 0x0008;
+
+    private static final int ACC_FINAL = 0x0010;
+
+    private static final int ACC_NATIVE = 0x0100;
+
+    /**
+     * Prefix of the types in the signature which are subclasses of Throwable.
+     */
+    private static final String THROWABLE = "!";
+
+    private File file;
+
+    private Map/* <String, Entry> */entries = new TreeMap();
+
+    /**
+     * Index of a single class file.
+     */
+    public static class Entry
+    {
+        private long length;
+
+        private long lastModified;
+
+        private String digest;
+
+        private String className;
+
+        private String signature;
+
+        /**
+         * @return the fully qualified class name, with '.' as package separator
+         */
+        public final String getClassName()
+        {
+            return className;
+        }
+
+        /**
+         * @return the native methods, header constants and throwable types of the class, empty if it has no native
+         *         methods
+         */
+        public final String getSignature()
+        {
+            return signature;
+        }
+
+        /**
+         * @param className a type of a native method, with '/' as package separator
+         * @return whether the type was resolved to a subclass of Throwable by {@link NarJavahIndex#resolve}
+         */
+        public final boolean isThrowable( String className )
+        {
+            return ( " " + signature + " " ).indexOf( " " + THROWABLE + className + " " ) >= 0;
+        }
+
+        public final boolean hasNatives()
+        {
+            return signature.length() > 0;
+        }
+
+        /**
+         * @return whether the class file still has the size and modification time it had when it was indexed
+         */
+        public final boolean isUpToDate( File classFile )
+        {
+            return classFile.length() == length && classFile.lastModified() == lastModified;
+        }
+    }
+
+    /**
+     * @param file the file the index is kept in
+     */
+    public NarJavahIndex( File file )
+    {
+        this.file = file;
+    }
+
+    /**
+     * Reads the index, an absent or unreadable index file gives an empty index.
+     */
+    public final void load()
+    {
+        entries.clear();
+        if ( !file.exists() )
+        {
+            return;
+        }
+        Properties properties = new Properties();
+        InputStream in = null;
+        try
+        {
+            in = new FileInputStream( file );
+            properties.load( in );
+        }
+        catch ( IOException e )
+        {
+            return;
+        }
+        finally
+        {
+            IOUtil.close( in );
+        }
+        for ( Iterator i = properties.entrySet().iterator(); i.hasNext(); )
+        {
+            Map.Entry property = (Map.Entry) i.next();
+            // length lastModified digest className signature
+            String[] values = ( (String) property.getValue() ).split( " ", 5 );
+            if ( values.length < 4 )
+            {
+                continue;
+            }
+            Entry entry = new Entry();
+            entry.length = Long.parseLong( values[0] );
+            entry.lastModified = Long.parseLong( values[1] );
+            entry.digest = values[2];
+            entry.className = values[3];
+            entry.signature = values.length > 4 ? values[4] : "";
+            entries.put( property.getKey(), entry );
+        }
+    }
+
+    public final void save()
+        throws IOException
+    {
+        Properties properties = new Properties();
+        for ( Iterator i = entries.entrySet().iterator(); i.hasNext(); )
+        {
+            Map.Entry e = (Map.Entry) i.next();
+            Entry entry = (Entry) e.getValue();
+            properties.setProperty( (String) e.getKey(), entry.length + " " + entry.lastModified + " " + entry.digest
+                + " " + entry.className + ( entry.hasNatives() ? " " + entry.signature : "" ) );
+        }
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        OutputStream out = null;
+        try
+        {
+            out = new FileOutputStream( file );
+            properties.store( out, "javah index" );
+        }
+        finally
+        {
+            IOUtil.close( out );
+        }
+    }
+
+    /**
+     * @param path path of the class file relative to the class directory
+     * @return the entry of the class file, or null if it is not indexed
+     */
+    public final Entry get( String path )
+    {
+        return (Entry) entries.get( path );
+    }
+
+    /**
+     * Replaces all entries of the index, so that deleted class files are dropped.
+     */
+    public final void setEntries( Map/* <String, Entry> */entries )
+    {
+        this.entries = new TreeMap( entries );
+    }
+
+    /**
+     * Indexes a class file. The class file is only scanned if its content differs from the previous entry.
+     * 
+     * @param classFile the class file
+     * @param previous the previous entry of the class file, may be null
+     */
+    public static Entry index( File classFile, Entry previous )
+        throws IOException
+    {
+        byte[] data = read( classFile );
+        Entry entry = new Entry();
+        entry.length = data.length;
+        entry.lastModified = classFile.lastModified();
+        entry.digest = digest( data );
+        if ( previous != null && previous.digest.equals( entry.digest ) )
+        {
+            entry.className = previous.className;
+            entry.signature = previous.signature;
+        }
+        else
+        {
+            scan( entry, data );
+        }
+        return entry;
+    }
+
+    /**
+     * Resolves which argument and return types of the native methods are subclasses of Throwable, which javah
+     * declares as jthrowable. The class hierarchy is not recorded in the class file itself, so this is done on every
+     * run, and the types are added to the signature so that a header is written again when they change.
+     * 
+     * @param classLoader loader of the types of the native methods
+     * @return a copy of the entry with the throwable types in its signature
+     */
+    public static Entry resolve( Entry entry, ClassLoader classLoader )
+    {
+        if ( !entry.hasNatives() )
+        {
+            return entry;
+        }
+        StringBuffer signature = new StringBuffer();
+        Set/* <String> */throwables = new TreeSet();
+        String[] members = entry.signature.split( " " );
+        for ( int i = 0; i < members.length; i++ )
+        {
+            if ( members[i].startsWith( THROWABLE ) )
+            {
+                continue;
+            }
+            if ( signature.length() > 0 )
+            {
+                signature.append( ' ' );
+            }
+            signature.append( members[i] );
+
+            int open = members[i].indexOf( '(' );
+            if ( open >= 0 )
+            {
+                int close = members[i].indexOf( ')' );
+                String types = members[i].substring( open + 1, close ) + members[i].substring( close + 1 );
+                for ( int pos = 0; pos < types.length(); pos++ )
+                {
+                    if ( types.charAt( pos ) == '[' )
+                    {
+                        // arrays of objects are jobjectArray
+                        while ( types.charAt( pos ) == '[' )
+                        {
+                            pos++;
+                        }
+                        if ( types.charAt( pos ) == 'L' )
+                        {
+                            pos = types.indexOf( ';', pos );
+                        }
+                    }
+                    else if ( types.charAt( pos ) == 'L' )
+                    {
+                        int end = types.indexOf( ';', pos );
+                        String className = types.substring( pos + 1, end );
+                        if ( isThrowable( className, classLoader ) )
+                        {
+                            throwables.add( className );
+                        }
+                        pos = end;
+                    }
+                }
+            }
+        }
+        for ( Iterator i = throwables.iterator(); i.hasNext(); )
+        {
+            signature.append( ' ' ).append( THROWABLE ).append( i.next() );
+        }
+
+        Entry resolved = new Entry();
+        resolved.length = entry.length;
+        resolved.lastModified = entry.lastModified;
+        resolved.digest = entry.digest;
+        resolved.className = entry.className;
+        resolved.signature = signature.toString();
+        return resolved;
+    }
+
+    private static boolean isThrowable( String className, ClassLoader classLoader )
+    {
+        try
+        {
+            return Throwable.class.isAssignableFrom( Class.forName( className.replace( '/', '.' ), false,
+                                                                    classLoader ) );
+        }
+        catch ( ClassNotFoundException e )
+        {
+            return false;
+        }
+        catch ( LinkageError e )
+        {
+            return false;
+        }
+    }
+
+    private static void scan( Entry entry, byte[] data )
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream( new ByteArrayInputStream( data ) );
+        if ( in.readInt() != 0xCAFEBABE )
+        {
+            throw new IOException( "not a class file" );
+        }
+        in.readUnsignedShort();
+        in.readUnsignedShort();
+
+        // only the utf8 and class entries and the constant values are needed
+        int count = in.readUnsignedShort();
+        String[] utf8 = new String[count];
+        int[] classes = new int[count];
+        Object[] values = new Object[count];
+        for ( int i = 1; i < count; i++ )
+        {
+            int tag = in.readUnsignedByte();
+            switch ( tag )
+            {
+                case 1:
+                    utf8[i] = in.readUTF();
+                    break;
+                case 3:
+                    values[i] = new Integer( in.readInt() );
+                    break;
+                case 4:
+                    values[i] = new Float( in.readFloat() );
+                    break;
+                case 5:
+                    values[i] = new Long( in.readLong() );
+                    i++;
+                    break;
+                case 6:
+                    values[i] = new Double( in.readDouble() );
+                    i++;
+                    break;
+                case 7:
+                    classes[i] = in.readUnsignedShort();
+                    break;
+                case 8:
+                case 16:
+                case 19:
+                case 20:
+                    in.readUnsignedShort();
+                    break;
+                case 15:
+                    in.skipBytes( 3 );
+                    break;
+                case 9:
+                case 10:
+                case 11:
+                case 12:
+                case 17:
+                case 18:
+                    in.readInt();
+                    break;
+                default:
+                    throw new IOException( "unknown constant pool tag " + tag );
+            }
+        }
+
+        in.readUnsignedShort();
+        entry.className = utf8[classes[in.readUnsignedShort()]].replace( '/', '.' );
+        in.readUnsignedShort();
+        in.skipBytes( 2 * in.readUnsignedShort() );
+
+        StringBuffer constants = new StringBuffer();
+        int fields = in.readUnsignedShort();
+        for ( int i = 0; i < fields; i++ )
+        {
+            int access = in.readUnsignedShort();
+            String name = utf8[in.readUnsignedShort()];
+            String descriptor = utf8[in.readUnsignedShort()];
+            int attributes = in.readUnsignedShort();
+            for ( int j = 0; j < attributes; j++ )
+            {
+                String attribute = utf8[in.readUnsignedShort()];
+                int length = in.readInt();
+                boolean constant = ( access & ( ACC_STATIC | ACC_FINAL ) ) == ( ACC_STATIC | ACC_FINAL );
+                if ( constant && "ConstantValue".equals( attribute ) && length == 2 )
+                {
+                    Object value = values[in.readUnsignedShort()];
+                    // javah only defines primitive constants
+                    if ( value != null )
+                    {
+                        constants.append( ' ' ).append( name ).append( ':' ).append( descriptor ).append( '=' );
+                        constants.append( value );
+                    }
+                }
+                else
+                {
+                    in.skipBytes( length );
+                }
+            }
+        }
+
+        StringBuffer natives = new StringBuffer();
+        int methods = in.readUnsignedShort();
+        for ( int i = 0; i < methods; i++ )
+        {
+            int access = in.readUnsignedShort();
+            String name = utf8[in.readUnsignedShort()];
+            String descriptor = utf8[in.readUnsignedShort()];
+            if ( ( access & ACC_NATIVE ) != 0 )
+            {
+                natives.append( ' ' ).append( ( access & ACC_STATIC ) != 0 ? "static:" : "" );
+                natives.append( name ).append( descriptor );
+            }
+            int attributes = in.readUnsignedShort();
+            for ( int j = 0; j < attributes; j++ )
+            {
+                in.readUnsignedShort();
+                in.skipBytes( in.readInt() );
+            }
+        }
+
+        entry.signature = natives.length() > 0 ? natives.substring( 1 ) + constants : "";
+    }
+
+    private static byte[] read( File file )
+        throws IOException
+    {
+        InputStream in = new FileInputStream( file );
+        try
+        {
+            return IOUtil.toByteArray( in );
+        }
+        finally
+        {
+            IOUtil.close( in );
+        }
+    }
+
+    private static String digest( byte[] data )
+        throws IOException
+    {
+        try
+        {
+            return NarObjectCache.toHex( MessageDigest.getInstance( "SHA-1" ).digest( data ) );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw (IOException) new IOException( "SHA-1 not available" ).initCause( e );
+        }
+    }
+}
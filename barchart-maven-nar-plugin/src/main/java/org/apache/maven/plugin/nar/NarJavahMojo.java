@@ -25,8 +25,8 @@ import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.toolchain.ToolchainManager;
 
 /**
- * Compiles class files into c/c++ headers using "javah". Any class file that contains methods that were declared
- * "native" will be run through javah.
+ * Compiles class files into c/c++ headers, in the format of "javah". Any class file that contains methods that were
+ * declared "native" gets a header, generated by running javah, or in-process when javah fork is false.
  * 
  * @goal nar-javah
  * @phase compile
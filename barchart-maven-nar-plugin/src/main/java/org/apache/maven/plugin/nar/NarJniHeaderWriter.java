@@ -0,0 +1,459 @@
+package org.apache.maven.plugin.nar;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Writes JNI headers in the format of "javac -h" from the native signatures kept by {@link NarJavahIndex}, without
+ * starting javah. A header is only rewritten when its content changed, so that compilations depending on it stay
+ * incremental.
+ */
+public class NarJniHeaderWriter
+{
+    private static final String NL = "\n";
+
+    private static final String ONLOAD = "nar_jni_onload";
+
+    private File directory;
+
+    /**
+     * @param directory the directory to write the headers to
+     */
+    public NarJniHeaderWriter( File directory )
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * Writes the header of a class with native methods.
+     * 
+     * @return true if the header was written, false if it was already up to date
+     */
+    public final boolean write( NarJavahIndex.Entry entry )
+        throws IOException
+    {
+        String cname = mangle( entry.getClassName(), false );
+        File header = new File( directory, cname + ".h" );
+        return writeIfChanged( header, generate( entry, cname ) );
+    }
+
+    /**
+     * Writes a C file with a JNI_OnLoad function which registers all native methods of the given classes with
+     * RegisterNatives, together with linker export lists which only export JNI_OnLoad: a version script for GNU
+     * linkers and an exported symbols list for the Mac OS X linker.
+     * 
+     * @param directory the directory to write the files to
+     * @param entries the classes with native methods
+     * @return true if any file was written, false if all were up to date
+     */
+    public final boolean writeRegisterNatives( File directory, Collection/* <NarJavahIndex.Entry> */entries )
+        throws IOException
+    {
+        List sorted = new ArrayList( entries );
+        Collections.sort( sorted, new Comparator()
+        {
+            public int compare( Object o1, Object o2 )
+            {
+                return ( (NarJavahIndex.Entry) o1 ).getClassName().compareTo( ( (NarJavahIndex.Entry) o2 ).getClassName() );
+            }
+        } );
+
+        StringBuffer sb = new StringBuffer();
+        sb.append( "/* DO NOT EDIT THIS FILE - it is machine generated */" ).append( NL );
+        sb.append( "#include <stddef.h>" ).append( NL );
+        sb.append( "#include <jni.h>" ).append( NL );
+        for ( Iterator i = sorted.iterator(); i.hasNext(); )
+        {
+            sb.append( "#include \"" ).append( mangle( ( (NarJavahIndex.Entry) i.next() ).getClassName(), false ) );
+            sb.append( ".h\"" ).append( NL );
+        }
+        sb.append( NL );
+        sb.append( "/* native methods without implementation are skipped instead of failing to load the library */" );
+        sb.append( NL );
+        sb.append( "#if defined(__GNUC__)" ).append( NL );
+        for ( Iterator i = sorted.iterator(); i.hasNext(); )
+        {
+            for ( Iterator j = getMethods( (NarJavahIndex.Entry) i.next() ).iterator(); j.hasNext(); )
+            {
+                sb.append( "#pragma weak " ).append( ( (String[]) j.next() )[2] ).append( NL );
+            }
+        }
+        sb.append( "#endif" ).append( NL );
+        sb.append( NL );
+
+        int index = 0;
+        for ( Iterator i = sorted.iterator(); i.hasNext(); index++ )
+        {
+            sb.append( "static JNINativeMethod nar_methods_" ).append( index ).append( "[] = {" ).append( NL );
+            for ( Iterator j = getMethods( (NarJavahIndex.Entry) i.next() ).iterator(); j.hasNext(); )
+            {
+                String[] method = (String[]) j.next();
+                sb.append( "    { \"" ).append( method[0] ).append( "\", \"" ).append( method[1] );
+                sb.append( "\", (void *) " ).append( method[2] ).append( " }," ).append( NL );
+            }
+            sb.append( "};" ).append( NL );
+            sb.append( NL );
+        }
+
+        sb.append( "static const struct {" ).append( NL );
+        sb.append( "    const char *name;" ).append( NL );
+        sb.append( "    JNINativeMethod *methods;" ).append( NL );
+        sb.append( "    size_t count;" ).append( NL );
+        sb.append( "} nar_classes[] = {" ).append( NL );
+        index = 0;
+        for ( Iterator i = sorted.iterator(); i.hasNext(); index++ )
+        {
+            NarJavahIndex.Entry entry = (NarJavahIndex.Entry) i.next();
+            sb.append( "    { \"" ).append( entry.getClassName().replace( '.', '/' ) ).append( "\", nar_methods_" );
+            sb.append( index ).append( ", sizeof(nar_methods_" ).append( index ).append( ") / sizeof(JNINativeMethod) }," );
+            sb.append( NL );
+        }
+        if ( sorted.isEmpty() )
+        {
+            sb.append( "    { NULL, NULL, 0 }" ).append( NL );
+        }
+        sb.append( "};" ).append( NL );
+        sb.append( NL );
+        sb.append( "JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved)" ).append( NL );
+        sb.append( "{" ).append( NL );
+        sb.append( "    JNIEnv *env;" ).append( NL );
+        sb.append( "    size_t i, j;" ).append( NL );
+        sb.append( "    if ((*vm)->GetEnv(vm, (void **) &env, JNI_VERSION_1_4) != JNI_OK) {" ).append( NL );
+        sb.append( "        return JNI_ERR;" ).append( NL );
+        sb.append( "    }" ).append( NL );
+        sb.append( "    for (i = 0; i < " ).append( sorted.size() ).append( "; i++) {" ).append( NL );
+        sb.append( "        jclass clazz = (*env)->FindClass(env, nar_classes[i].name);" ).append( NL );
+        sb.append( "        if (clazz == NULL) {" ).append( NL );
+        sb.append( "            return JNI_ERR;" ).append( NL );
+        sb.append( "        }" ).append( NL );
+        sb.append( "        for (j = 0; j < nar_classes[i].count; j++) {" ).append( NL );
+        sb.append( "            if (nar_classes[i].methods[j].fnPtr != NULL" ).append( NL );
+        sb.append( "                && (*env)->RegisterNatives(env, clazz, &nar_classes[i].methods[j], 1) != 0) {" );
+        sb.append( NL );
+        sb.append( "                return JNI_ERR;" ).append( NL );
+        sb.append( "            }" ).append( NL );
+        sb.append( "        }" ).append( NL );
+        sb.append( "        (*env)->DeleteLocalRef(env, clazz);" ).append( NL );
+        sb.append( "    }" ).append( NL );
+        sb.append( "    return JNI_VERSION_1_4;" ).append( NL );
+        sb.append( "}" ).append( NL );
+
+        boolean written = writeIfChanged( new File( directory, ONLOAD + ".c" ), sb.toString() );
+        written |= writeIfChanged( new File( directory, ONLOAD + ".map" ),
+                                   "{" + NL + "  global:" + NL + "    JNI_OnLoad;" + NL + "  local:" + NL + "    *;"
+                                       + NL + "};" + NL );
+        written |= writeIfChanged( new File( directory, ONLOAD + ".exp" ), "_JNI_OnLoad" + NL );
+        return written;
+    }
+
+    /**
+     * @return the version script for GNU linkers written by {@link #writeRegisterNatives(File, Collection)}
+     */
+    public static File getVersionScript( File directory )
+    {
+        return new File( directory, ONLOAD + ".map" );
+    }
+
+    /**
+     * @return the exported symbols list for the Mac OS X linker written by
+     *         {@link #writeRegisterNatives(File, Collection)}
+     */
+    public static File getExportedSymbolsList( File directory )
+    {
+        return new File( directory, ONLOAD + ".exp" );
+    }
+
+    private static boolean writeIfChanged( File file, String content )
+        throws IOException
+    {
+        if ( file.exists() && content.equals( FileUtils.fileRead( file ) ) )
+        {
+            return false;
+        }
+        file.getParentFile().mkdirs();
+        FileUtils.fileWrite( file.getPath(), content );
+        return true;
+    }
+
+    /*
+     * Returns name, descriptor and JNI function name of every native method of the class
+     */
+    private static List/* <String[]> */getMethods( NarJavahIndex.Entry entry )
+    {
+        List methods = new ArrayList();
+        Map/* <String, Integer> */overloads = new HashMap();
+        String[] members = entry.getSignature().split( " " );
+        for ( int i = 0; i < members.length; i++ )
+        {
+            if ( members[i].indexOf( '(' ) >= 0 )
+            {
+                String name = getMethodName( members[i] );
+                Integer count = (Integer) overloads.get( name );
+                overloads.put( name, new Integer( count == null ? 1 : count.intValue() + 1 ) );
+            }
+        }
+        for ( int i = 0; i < members.length; i++ )
+        {
+            if ( members[i].indexOf( '(' ) >= 0 )
+            {
+                String name = getMethodName( members[i] );
+                String descriptor = members[i].substring( members[i].indexOf( '(' ) );
+                String function = "Java_" + mangle( entry.getClassName(), true ) + "_" + mangle( name, true );
+                if ( ( (Integer) overloads.get( name ) ).intValue() > 1 )
+                {
+                    function += "__" + mangle( descriptor.substring( 1, descriptor.indexOf( ')' ) ), true );
+                }
+                methods.add( new String[] { name, descriptor, function,
+                    String.valueOf( members[i].startsWith( "static:" ) ) } );
+            }
+        }
+        return methods;
+    }
+
+    private String generate( NarJavahIndex.Entry entry, String cname )
+    {
+        List/* <String> */constants = new ArrayList();
+        String[] members = entry.getSignature().split( " " );
+        for ( int i = 0; i < members.length; i++ )
+        {
+            if ( members[i].indexOf( '=' ) > 0 && members[i].indexOf( '(' ) < 0 )
+            {
+                constants.add( members[i] );
+            }
+        }
+
+        StringBuffer sb = new StringBuffer();
+        sb.append( "/* DO NOT EDIT THIS FILE - it is machine generated */" ).append( NL );
+        sb.append( "#include <jni.h>" ).append( NL );
+        sb.append( "/* Header for class " ).append( cname ).append( " */" ).append( NL );
+        sb.append( NL );
+        sb.append( "#ifndef _Included_" ).append( cname ).append( NL );
+        sb.append( "#define _Included_" ).append( cname ).append( NL );
+        sb.append( "#ifdef __cplusplus" ).append( NL );
+        sb.append( "extern \"C\" {" ).append( NL );
+        sb.append( "#endif" ).append( NL );
+
+        for ( Iterator i = constants.iterator(); i.hasNext(); )
+        {
+            // NAME:descriptor=value
+            String constant = (String) i.next();
+            int colon = constant.indexOf( ':' );
+            int equals = constant.indexOf( '=', colon );
+            String name = cname + "_" + mangle( constant.substring( 0, colon ), false );
+            sb.append( "#undef " ).append( name ).append( NL );
+            sb.append( "#define " ).append( name ).append( ' ' );
+            sb.append( getConstantValue( constant.charAt( colon + 1 ), constant.substring( equals + 1 ) ) );
+            sb.append( NL );
+        }
+
+        for ( Iterator i = getMethods( entry ).iterator(); i.hasNext(); )
+        {
+            String[] method = (String[]) i.next();
+            String name = method[0];
+            String descriptor = method[1];
+            String function = method[2];
+            boolean isStatic = Boolean.valueOf( method[3] ).booleanValue();
+            int end = descriptor.indexOf( ')' );
+            String arguments = descriptor.substring( 1, end );
+
+            sb.append( "/*" ).append( NL );
+            sb.append( " * Class:     " ).append( cname ).append( NL );
+            sb.append( " * Method:    " ).append( mangleMethodName( name ) ).append( NL );
+            sb.append( " * Signature: " ).append( descriptor ).append( NL );
+            sb.append( " */" ).append( NL );
+            sb.append( "JNIEXPORT " ).append( getType( entry, descriptor.substring( end + 1 ) ) ).append( " JNICALL " );
+            sb.append( function ).append( NL );
+            sb.append( "  (JNIEnv *, " ).append( isStatic ? "jclass" : "jobject" );
+            for ( int pos = 0; pos < arguments.length(); )
+            {
+                int next = nextType( arguments, pos );
+                sb.append( ", " ).append( getType( entry, arguments.substring( pos, next ) ) );
+                pos = next;
+            }
+            sb.append( ");" ).append( NL );
+            sb.append( NL );
+        }
+
+        sb.append( "#ifdef __cplusplus" ).append( NL );
+        sb.append( "}" ).append( NL );
+        sb.append( "#endif" ).append( NL );
+        sb.append( "#endif" ).append( NL );
+        return sb.toString();
+    }
+
+    private static String getMethodName( String method )
+    {
+        return method.substring( method.startsWith( "static:" ) ? "static:".length() : 0, method.indexOf( '(' ) );
+    }
+
+    private static String getConstantValue( char type, String value )
+    {
+        switch ( type )
+        {
+            case 'J':
+                return value + "LL";
+            case 'F':
+                return getFloatingValue( value, "f" );
+            case 'D':
+                return getFloatingValue( value, "D" );
+            default:
+                return value + "L";
+        }
+    }
+
+    private static String getFloatingValue( String value, String suffix )
+    {
+        if ( value.equals( "Infinity" ) || value.equals( "-Infinity" ) )
+        {
+            return value.substring( 0, value.length() - "inity".length() ) + suffix;
+        }
+        if ( value.equals( "NaN" ) )
+        {
+            return value + suffix;
+        }
+        return suffix.equals( "f" ) ? value + suffix : value;
+    }
+
+    private static int nextType( String descriptor, int pos )
+    {
+        while ( descriptor.charAt( pos ) == '[' )
+        {
+            pos++;
+        }
+        if ( descriptor.charAt( pos ) == 'L' )
+        {
+            pos = descriptor.indexOf( ';', pos );
+        }
+        return pos + 1;
+    }
+
+    private static String getType( NarJavahIndex.Entry entry, String descriptor )
+    {
+        switch ( descriptor.charAt( 0 ) )
+        {
+            case 'V':
+                return "void";
+            case 'Z':
+                return "jboolean";
+            case 'B':
+                return "jbyte";
+            case 'C':
+                return "jchar";
+            case 'S':
+                return "jshort";
+            case 'I':
+                return "jint";
+            case 'J':
+                return "jlong";
+            case 'F':
+                return "jfloat";
+            case 'D':
+                return "jdouble";
+            case '[':
+                return descriptor.length() == 2 ? getType( entry, descriptor.substring( 1 ) ) + "Array"
+                                : "jobjectArray";
+            default:
+                String name = descriptor.substring( 1, descriptor.length() - 1 );
+                if ( name.equals( "java/lang/String" ) )
+                {
+                    return "jstring";
+                }
+                if ( name.equals( "java/lang/Class" ) )
+                {
+                    return "jclass";
+                }
+                return entry.isThrowable( name ) ? "jthrowable" : "jobject";
+        }
+    }
+
+    /*
+     * Mangles a method name as javac does in the comment of a method, like a header name but with '$' escaped
+     */
+    private static String mangleMethodName( String name )
+    {
+        StringBuffer sb = new StringBuffer();
+        int start = 0;
+        for ( int i = name.indexOf( '$' ); i >= 0; i = name.indexOf( '$', start ) )
+        {
+            sb.append( mangle( name.substring( start, i ), false ) ).append( "_00024" );
+            start = i + 1;
+        }
+        return sb.append( mangle( name.substring( start ), false ) ).toString();
+    }
+
+    /**
+     * Mangles a name as in JNI function names, or as in header file and macro names where '_' and '$' become '_'.
+     */
+    private static String mangle( String name, boolean function )
+    {
+        StringBuffer sb = new StringBuffer( name.length() );
+        for ( int i = 0; i < name.length(); i++ )
+        {
+            char c = name.charAt( i );
+            if ( ( c >= 'a' && c <= 'z' ) || ( c >= 'A' && c <= 'Z' ) || ( c >= '0' && c <= '9' ) )
+            {
+                sb.append( c );
+            }
+            else if ( c == '.' || c == '/' )
+            {
+                sb.append( '_' );
+            }
+            else if ( c == '_' )
+            {
+                sb.append( function ? "_1" : "_" );
+            }
+            else if ( function && c == ';' )
+            {
+                sb.append( "_2" );
+            }
+            else if ( function && c == '[' )
+            {
+                sb.append( "_3" );
+            }
+            else if ( !function && c == '$' )
+            {
+                sb.append( '_' );
+            }
+            else
+            {
+                String hex = Integer.toHexString( c );
+                sb.append( "_0" );
+                for ( int j = hex.length(); j < 4; j++ )
+                {
+                    sb.append( '0' );
+                }
+                sb.append( hex );
+            }
+        }
+        return sb.toString();
+    }
+}
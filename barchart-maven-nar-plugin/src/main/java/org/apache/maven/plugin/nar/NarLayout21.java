@@ -1,7 +1,18 @@
 package org.apache.maven.plugin.nar;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
@@ -9,7 +20,10 @@ import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.project.MavenProject;
 import org.apache.maven.project.MavenProjectHelper;
 import org.codehaus.plexus.archiver.manager.ArchiverManager;
+import org.codehaus.plexus.util.DirectoryScanner;
 import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+import org.codehaus.plexus.util.io.RawInputStreamFacade;
 
 /*
  * Licensed to the Apache Software Foundation (ASF) under one
@@ -46,6 +60,14 @@ import org.codehaus.plexus.util.FileUtils;
 public class NarLayout21
     extends AbstractNarLayout
 {
+    private static final String FLAG_AOL = "aol";
+
+    private static final String FLAG_DIGEST = "digest";
+
+    private static final String FLAG_LENGTH = "length";
+
+    private static final String FLAG_LAST_MODIFIED = "lastModified";
+
     private NarFileLayout fileLayout;
 
     public NarLayout21( Log log )
@@ -174,24 +196,56 @@ public class NarLayout21
         }
     }
 
+    /**
+     * Unpacks and processes the nar, unless the flag file next to the unpack directory shows that a nar with the same
+     * content was already unpacked for the same AOL. If the content changed only the changed entries are extracted
+     * again.
+     */
     public void unpackNar( File unpackDirectory, ArchiverManager archiverManager, File file, String os, String linkerName,
                            AOL defaultAOL )
         throws MojoExecutionException, MojoFailureException
     {
         File dir = getNarUnpackDirectory(unpackDirectory, file);
-
-        boolean process = false;
+        File flagFile = new File( unpackDirectory, dir.getName() + ".flag" );
+        String aol = defaultAOL.toString();
 
         if ( !unpackDirectory.exists() )
         {
             unpackDirectory.mkdirs();
-            process = true;
         }
-        else if ( !dir.exists() )
+
+        Properties flag = readFlag( flagFile );
+        if ( dir.exists() && ( flag == null ) && ( file.lastModified() <= dir.lastModified() ) )
         {
-            process = true;
+            // unpacked by a version which did not write the flag file yet
+            writeFlag( flagFile, file, NarObjectCache.digest( file ), aol );
+            return;
+        }
+
+        if ( dir.exists() && ( flag != null ) && aol.equals( flag.getProperty( FLAG_AOL ) ) )
+        {
+            if ( String.valueOf( file.length() ).equals( flag.getProperty( FLAG_LENGTH ) )
+                && String.valueOf( file.lastModified() ).equals( flag.getProperty( FLAG_LAST_MODIFIED ) ) )
+            {
+                return;
+            }
+
+            String digest = NarObjectCache.digest( file );
+            if ( digest.equals( flag.getProperty( FLAG_DIGEST ) ) )
+            {
+                getLog().debug( "NAR: " + file + " has not changed, not unpacking it again" );
+                writeFlag( flagFile, file, digest, aol );
+                return;
+            }
+
+            writeFlag( flagFile, file, null, aol );
+            updateNar( file, dir );
+            processNar( dir, os, linkerName, defaultAOL );
+            writeFlag( flagFile, file, digest, aol );
+            return;
         }
-        else if ( file.lastModified() > dir.lastModified() )
+
+        if ( dir.exists() )
         {
             try
             {
@@ -201,13 +255,178 @@ public class NarLayout21
             {
                 throw new MojoExecutionException( "Could not delete directory: " + dir, e );
             }
+        }
+
+        writeFlag( flagFile, file, null, aol );
+        unpackNarAndProcess( archiverManager, file, dir, os, linkerName, defaultAOL );
+        writeFlag( flagFile, file, NarObjectCache.digest( file ), aol );
+    }
+
+    /**
+     * Extracts the entries of the nar which differ in size or checksum from the files in dir, and removes files which
+     * are no longer part of the nar.
+     */
+    private void updateNar( File file, File dir )
+        throws MojoExecutionException
+    {
+        ZipFile zip = null;
+        try
+        {
+            String root = dir.getCanonicalPath() + File.separator;
+            Set/* <String> */names = new HashSet();
+            int updated = 0;
+
+            zip = new ZipFile( file );
+            for ( Enumeration e = zip.entries(); e.hasMoreElements(); )
+            {
+                ZipEntry entry = (ZipEntry) e.nextElement();
+                String name = entry.getName().replace( '/', File.separatorChar );
+                File target = new File( dir, name );
+                if ( !target.getCanonicalPath().startsWith( root ) )
+                {
+                    throw new MojoExecutionException( "NAR: entry " + entry.getName() + " of " + file
+                        + " is outside of the unpack directory" );
+                }
+                if ( entry.isDirectory() )
+                {
+                    target.mkdirs();
+                    continue;
+                }
+
+                names.add( name );
+                if ( target.isFile() && ( target.length() == entry.getSize() ) && ( crc( target ) == entry.getCrc() ) )
+                {
+                    continue;
+                }
+
+                target.getParentFile().mkdirs();
+                InputStream in = zip.getInputStream( entry );
+                try
+                {
+                    FileUtils.copyStreamToFile( new RawInputStreamFacade( in ), target );
+                }
+                finally
+                {
+                    IOUtil.close( in );
+                }
+                if ( entry.getTime() != -1 )
+                {
+                    target.setLastModified( entry.getTime() );
+                }
+                updated++;
+            }
+
+            // links to versioned libraries are not part of the nar, they are created again when processing
+            DirectoryScanner scanner = new DirectoryScanner();
+            scanner.setBasedir( dir );
+            scanner.scan();
+            String[] files = scanner.getIncludedFiles();
+            int removed = 0;
+            for ( int i = 0; i < files.length; i++ )
+            {
+                if ( !names.contains( files[i] ) && new File( dir, files[i] ).delete() )
+                {
+                    removed++;
+                }
+            }
 
-            process = true;
+            getLog().info( "NAR: updated " + updated + " and removed " + removed + " files of " + dir + " from "
+                + file );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Error updating: " + dir + " from: " + file, e );
+        }
+        finally
+        {
+            if ( zip != null )
+            {
+                try
+                {
+                    zip.close();
+                }
+                catch ( IOException e )
+                {
+                    // ignore
+                }
+            }
         }
+    }
 
-        if ( process )
+    private static long crc( File file )
+        throws IOException
+    {
+        CRC32 crc = new CRC32();
+        InputStream in = new FileInputStream( file );
+        try
+        {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ( ( n = in.read( buffer ) ) > 0 )
+            {
+                crc.update( buffer, 0, n );
+            }
+        }
+        finally
+        {
+            IOUtil.close( in );
+        }
+        return crc.getValue();
+    }
+
+    private Properties readFlag( File flagFile )
+    {
+        if ( !flagFile.isFile() )
+        {
+            return null;
+        }
+        Properties flag = new Properties();
+        InputStream in = null;
+        try
+        {
+            in = new FileInputStream( flagFile );
+            flag.load( in );
+            return flag;
+        }
+        catch ( IOException e )
+        {
+            getLog().debug( "NAR: could not read " + flagFile + ": " + e.getMessage() );
+            return null;
+        }
+        finally
+        {
+            IOUtil.close( in );
+        }
+    }
+
+    /**
+     * Writes the flag file. A null digest marks the unpack directory as being updated, so that an interrupted unpack is
+     * detected on the next run.
+     */
+    private void writeFlag( File flagFile, File file, String digest, String aol )
+        throws MojoFailureException
+    {
+        Properties flag = new Properties();
+        flag.setProperty( FLAG_AOL, aol );
+        if ( digest != null )
+        {
+            flag.setProperty( FLAG_DIGEST, digest );
+            flag.setProperty( FLAG_LENGTH, String.valueOf( file.length() ) );
+            flag.setProperty( FLAG_LAST_MODIFIED, String.valueOf( file.lastModified() ) );
+        }
+        OutputStream out = null;
+        try
+        {
+            out = new FileOutputStream( flagFile );
+            flag.store( out, "unpacked from " + file );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoFailureException( "Cannot create flag file: " + flagFile.getPath(), e );
+        }
+        finally
         {
-            unpackNarAndProcess( archiverManager, file, dir, os, linkerName, defaultAOL );
+            IOUtil.close( out );
         }
     }
 
@@ -27,6 +27,12 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.jar.JarFile;
 
 import org.apache.maven.artifact.Artifact;
@@ -57,6 +63,18 @@ public class NarManager
 
 	private String linkerName;
 
+    private static final Map/* <String, Object> */LOCKS = new HashMap();
+
+    /**
+     * Properties of the NarInfo of dependencies, see setNarInfoCache. The key includes the size and modification time
+     * of the file, so a changed file is read again. Files without NarInfo map to NO_NAR_INFO.
+     */
+    private Map/* <String, Object> */narInfos = new HashMap();
+
+    private static final Object NO_NAR_INFO = new Object();
+
+    private int threads = 1;
+
     private String[] narTypes =
         { NarConstants.NAR_NO_ARCH, Library.STATIC, Library.SHARED, Library.JNI, Library.PLUGIN };
 
@@ -71,6 +89,16 @@ public class NarManager
 		this.linkerName = NarUtil.getLinkerName(project, architecture, os, linker);
 	}
 
+    /**
+     * Sets the map in which the NarInfo read from dependencies is kept, so it can be shared with other NarManagers,
+     * e.g. of the other nar mojos of a module. Only properties are kept, the NarInfo returned uses the log of this
+     * manager.
+     */
+    public final void setNarInfoCache( Map/* <String, Object> */narInfos )
+    {
+        this.narInfos = narInfos;
+    }
+
 	/**
      * Returns dependencies which are dependent on NAR files (i.e. contain NarInfo)
 	 */
@@ -93,6 +121,33 @@ public class NarManager
 		return narDependencies;
 	}
 
+    /**
+     * Returns the ids of the dependencies of the given scope, without looking for NarInfo. Differs when maven resolved
+     * more dependencies, e.g. provided ones for a mojo which requires compile instead of runtime resolution.
+     */
+    public final String getDependencyIds( String scope )
+    {
+        StringBuffer ids = new StringBuffer();
+        for ( Iterator i = getDependencies( scope ).iterator(); i.hasNext(); )
+        {
+            ids.append( ( (Artifact) i.next() ).getId() ).append( ',' );
+        }
+        return ids.toString();
+    }
+
+    /**
+     * Returns the graph of the dependencies of the given scope which are dependent on NAR files.
+     * 
+     * @param aol the AOL of the module, used to read the NarInfo of the dependencies
+     * @param unpackDirectories directories into which the nar files are unpacked, in order of preference
+     */
+    public final NarDependencyGraph getNarDependencyGraph( String scope, AOL aol, NarLayout layout,
+                                                           File[] unpackDirectories )
+        throws MojoExecutionException
+    {
+        return new NarDependencyGraph( getNarDependencies( scope ), aol, layout, unpackDirectories );
+    }
+
 	/**
      * Returns all NAR dependencies by type: noarch, static, dynamic, jni, plugin.
 	 * 
@@ -290,6 +345,37 @@ public class NarManager
 			return null;
 		}
 
+        String key =
+            dependency.getGroupId() + ":" + dependency.getArtifactId() + ":" + dependency.getBaseVersion() + ":"
+                + file.getPath() + ":" + file.length() + ":" + file.lastModified();
+        Object cached;
+        synchronized ( narInfos )
+        {
+            cached = narInfos.get( key );
+        }
+        if ( cached == null )
+        {
+            NarInfo info = readNarInfo( dependency, file );
+            synchronized ( narInfos )
+            {
+                narInfos.put( key, info != null ? (Object) info.getProperties() : NO_NAR_INFO );
+            }
+            return info;
+        }
+        log.debug( "Using cached NarInfo for " + dependency );
+        if ( cached == NO_NAR_INFO )
+        {
+            return null;
+        }
+        NarInfo info =
+            new NarInfo( dependency.getGroupId(), dependency.getArtifactId(), dependency.getBaseVersion(), log );
+        info.read( (Properties) cached );
+        return info;
+    }
+
+    private NarInfo readNarInfo( Artifact dependency, File file )
+        throws MojoExecutionException
+    {
 		JarFile jar = null;
         try
         {
@@ -346,8 +432,16 @@ public class NarManager
 		return project.getCompileArtifacts();
 	}
 
-    public final void downloadAttachedNars( List/* <NarArtifacts> */narArtifacts, List remoteRepositories,
-			ArtifactResolver resolver, String classifier)
+    /**
+     * Sets the maximum number of threads used to download and unpack attached nars. Defaults to 1.
+     */
+    public final void setThreads( int threads )
+    {
+        this.threads = threads;
+    }
+
+    public final void downloadAttachedNars( List/* <NarArtifacts> */narArtifacts, final List remoteRepositories,
+			final ArtifactResolver resolver, String classifier)
         throws MojoExecutionException, MojoFailureException
     {
 		// FIXME this may not be the right way to do this.... -U ignored and
@@ -361,29 +455,46 @@ public class NarManager
 		}
 		log.debug("}");
 
+        List tasks = new ArrayList();
         for ( Iterator i = dependencies.iterator(); i.hasNext(); )
         {
-			Artifact dependency = (Artifact) i.next();
-            try
-            {
-				log.debug("Resolving " + dependency);
-				resolver.resolve(dependency, remoteRepositories, repository);
-            }
-            catch ( ArtifactNotFoundException e )
+			final Artifact dependency = (Artifact) i.next();
+            tasks.add( new Callable()
             {
-				String message = "nar not found " + dependency.getId();
-				throw new MojoExecutionException(message, e);
-            }
-            catch ( ArtifactResolutionException e )
-            {
-				String message = "nar cannot resolve " + dependency.getId();
-				throw new MojoExecutionException(message, e);
-			}
+                public Object call()
+                    throws MojoExecutionException, MojoFailureException
+                {
+                    long start = System.currentTimeMillis();
+                    try
+                    {
+                        log.debug( "Resolving " + dependency );
+                        synchronized ( getLock( getNarFile( dependency ) ) )
+                        {
+                            resolver.resolve( dependency, remoteRepositories, repository );
+                        }
+                    }
+                    catch ( ArtifactNotFoundException e )
+                    {
+                        String message = "nar not found " + dependency.getId();
+                        throw new MojoExecutionException( message, e );
+                    }
+                    catch ( ArtifactResolutionException e )
+                    {
+                        String message = "nar cannot resolve " + dependency.getId();
+                        throw new MojoExecutionException( message, e );
+                    }
+                    log.debug( "Resolved " + dependency.getId() + " in " + ( System.currentTimeMillis() - start )
+                        + " ms" );
+                    return null;
+                }
+            } );
 		}
+        execute( tasks, threads );
 	}
 
-    public final void unpackAttachedNars( List/* <NarArtifacts> */narArtifacts, ArchiverManager archiverManager,
-                                          String classifier, String os, NarLayout layout, File unpackDir )
+    public final void unpackAttachedNars( List/* <NarArtifacts> */narArtifacts, final ArchiverManager archiverManager,
+                                          String classifier, final String os, final NarLayout layout,
+                                          final File unpackDir )
         throws MojoExecutionException, MojoFailureException
     {
         log.debug( "Unpack called for OS: " + os + ", classifier: " + classifier + " for NarArtifacts {" );
@@ -394,13 +505,135 @@ public class NarManager
 		log.debug("}");
 		// FIXME, kludge to get to download the -noarch, based on classifier
 		List dependencies = getAttachedNarDependencies(narArtifacts, classifier);
+        List tasks = new ArrayList();
         for ( Iterator i = dependencies.iterator(); i.hasNext(); )
         {
-			Artifact dependency = (Artifact) i.next();
+			final Artifact dependency = (Artifact) i.next();
             log.debug("Unpack " + dependency + " to " + unpackDir);
-			File file = getNarFile(dependency);
+			final File file = getNarFile(dependency);
 
-            layout.unpackNar(unpackDir, archiverManager, file, os, linkerName, defaultAOL);            
+            tasks.add( new Callable()
+            {
+                public Object call()
+                    throws MojoExecutionException, MojoFailureException
+                {
+                    long start = System.currentTimeMillis();
+                    synchronized ( getLock( layout.getNarUnpackDirectory( unpackDir, file ) ) )
+                    {
+                        layout.unpackNar( unpackDir, archiverManager, file, os, linkerName, defaultAOL );
+                    }
+                    log.debug( "Unpacked " + file.getName() + " in " + ( System.currentTimeMillis() - start ) + " ms" );
+                    return null;
+                }
+            } );
 		}
+
+        // NarLayout20 unpacks all nars into, and processes, one shared directory
+        execute( tasks, layout instanceof NarLayout20 ? 1 : threads );
 	}
+
+    /**
+     * Runs the given tasks, concurrently if more than one thread is allowed. The first failure is rethrown once all
+     * tasks have finished.
+     */
+    private void execute( List/* <Callable> */tasks, int maxThreads )
+        throws MojoExecutionException, MojoFailureException
+    {
+        int n = Math.min( maxThreads, tasks.size() );
+        if ( n <= 1 )
+        {
+            for ( Iterator i = tasks.iterator(); i.hasNext(); )
+            {
+                call( (Callable) i.next() );
+            }
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool( n );
+        try
+        {
+            List futures = new ArrayList();
+            for ( Iterator i = tasks.iterator(); i.hasNext(); )
+            {
+                futures.add( executor.submit( (Callable) i.next() ) );
+            }
+
+            Throwable failure = null;
+            for ( Iterator i = futures.iterator(); i.hasNext(); )
+            {
+                try
+                {
+                    ( (Future) i.next() ).get();
+                }
+                catch ( ExecutionException e )
+                {
+                    if ( failure == null )
+                    {
+                        failure = e.getCause();
+                    }
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                    throw new MojoExecutionException( "NAR: interrupted", e );
+                }
+            }
+
+            if ( failure instanceof MojoFailureException )
+            {
+                throw (MojoFailureException) failure;
+            }
+            if ( failure instanceof MojoExecutionException )
+            {
+                throw (MojoExecutionException) failure;
+            }
+            if ( failure != null )
+            {
+                throw new MojoExecutionException( "NAR: " + failure.getMessage(), failure );
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void call( Callable task )
+        throws MojoExecutionException, MojoFailureException
+    {
+        try
+        {
+            task.call();
+        }
+        catch ( MojoExecutionException e )
+        {
+            throw e;
+        }
+        catch ( MojoFailureException e )
+        {
+            throw e;
+        }
+        catch ( Exception e )
+        {
+            throw new MojoExecutionException( "NAR: " + e.getMessage(), e );
+        }
+    }
+
+    /**
+     * Returns the lock guarding the given file or directory, shared by all builds (modules) running in this vm.
+     */
+    private static Object getLock( File file )
+    {
+        String key = file.getAbsolutePath();
+        synchronized ( LOCKS )
+        {
+            Object lock = LOCKS.get( key );
+            if ( lock == null )
+            {
+                lock = new Object();
+                LOCKS.put( key, lock );
+            }
+            return lock;
+        }
+    }
 }
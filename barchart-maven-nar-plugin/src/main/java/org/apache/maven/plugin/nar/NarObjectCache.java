@@ -0,0 +1,412 @@
+package org.apache.maven.plugin.nar;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Content addressed cache of compiled object files. The key of an object is made up of the contents of its source
+ * file, the contents of all (transitively) included headers which can be found on the include path, and a
+ * configuration signature (compiler name and version, flags, defines and AOL). Objects found in the cache are
+ * restored into the object directory before CCTask runs, so that the up to date check of cpptasks skips them.
+ */
+public class NarObjectCache
+{
+    private static final Pattern INCLUDE = Pattern.compile( "^\\s*#\\s*(include|import)\\s*([<\"])([^>\"]+)[>\"]" );
+
+    private File cacheDirectory;
+
+    private String signature;
+
+    private String objectExtension;
+
+    private Log log;
+
+    private List/* <File> */includePaths;
+
+    private Map/* <File, String> */digests = new HashMap();
+
+    private Map/* <File, List<String[]>> */includes = new HashMap();
+
+    private Map/* <File, String> */pending = new LinkedHashMap();
+
+    private int hits;
+
+    private int misses;
+
+    /**
+     * @param cacheDirectory root directory of the cache, may be shared between modules and workspaces
+     * @param signature configuration signature, compiler, flags, defines and aol
+     * @param objectExtension extension of the object files produced by the compiler, e.g. ".o"
+     * @param includePaths list of include directories (File) used to resolve headers
+     */
+    public NarObjectCache( File cacheDirectory, String signature, String objectExtension, List/* <File> */includePaths,
+                           Log log )
+    {
+        this.cacheDirectory = cacheDirectory;
+        this.signature = signature;
+        this.objectExtension = objectExtension;
+        this.includePaths = includePaths;
+        this.log = log;
+    }
+
+    /**
+     * Copies the cached objects of the given sources into the object directory. Sources for which no object was found
+     * are remembered to be stored after compilation.
+     */
+    public final void restore( List/* <File> */sources, File objDir )
+        throws MojoExecutionException
+    {
+        for ( Iterator i = sources.iterator(); i.hasNext(); )
+        {
+            File source = (File) i.next();
+            String key = getKey( source );
+            File cached = getCachedObject( key );
+            File object = getObject( source, objDir );
+            if ( cached.exists() )
+            {
+                try
+                {
+                    FileUtils.copyFile( cached, object );
+                    // make sure cpptasks sees the object as newer than its source and headers
+                    object.setLastModified( System.currentTimeMillis() );
+                    hits++;
+                    log.debug( "NAR: object cache hit for " + source + " (" + key + ")" );
+                    continue;
+                }
+                catch ( IOException e )
+                {
+                    log.warn( "NAR: could not restore " + object + " from object cache: " + e.getMessage() );
+                }
+            }
+            misses++;
+            pending.put( object, key );
+        }
+    }
+
+    /**
+     * Stores the objects which were compiled since the last restore into the cache.
+     */
+    public final void store()
+    {
+        for ( Iterator i = pending.entrySet().iterator(); i.hasNext(); )
+        {
+            Map.Entry entry = (Map.Entry) i.next();
+            File object = (File) entry.getKey();
+            if ( !object.exists() )
+            {
+                continue;
+            }
+            File cached = getCachedObject( (String) entry.getValue() );
+            File tmp = new File( cached.getPath() + "." + System.nanoTime() + ".tmp" );
+            try
+            {
+                cached.getParentFile().mkdirs();
+                FileUtils.copyFile( object, tmp );
+                // another build may have stored the same object in the meantime, which is fine
+                if ( !tmp.renameTo( cached ) )
+                {
+                    tmp.delete();
+                }
+            }
+            catch ( IOException e )
+            {
+                tmp.delete();
+                log.warn( "NAR: could not store " + object + " in object cache: " + e.getMessage() );
+            }
+        }
+        pending.clear();
+    }
+
+    public final int getHits()
+    {
+        return hits;
+    }
+
+    public final int getMisses()
+    {
+        return misses;
+    }
+
+    public final String toString()
+    {
+        return "object cache " + cacheDirectory + ": " + hits + " hits, " + misses + " misses";
+    }
+
+    private File getObject( File source, File objDir )
+    {
+        String name = source.getName();
+        int dot = name.lastIndexOf( '.' );
+        if ( dot > 0 )
+        {
+            name = name.substring( 0, dot );
+        }
+        return new File( objDir, name + objectExtension );
+    }
+
+    private File getCachedObject( String key )
+    {
+        return new File( new File( cacheDirectory, key.substring( 0, 2 ) ), key + objectExtension );
+    }
+
+    private String getKey( File source )
+        throws MojoExecutionException
+    {
+        MessageDigest md = newDigest();
+        update( md, signature );
+
+        Set visited = new HashSet();
+        addSource( md, source, visited );
+        return toHex( md.digest() );
+    }
+
+    private void addSource( MessageDigest md, File file, Set visited )
+        throws MojoExecutionException
+    {
+        File canonical = canonical( file );
+        if ( !visited.add( canonical ) )
+        {
+            return;
+        }
+
+        update( md, getDigest( canonical ) );
+
+        for ( Iterator i = getIncludes( canonical ).iterator(); i.hasNext(); )
+        {
+            String[] include = (String[]) i.next();
+            File header = resolve( include[1], include[0].equals( "\"" ) ? canonical.getParentFile() : null );
+            if ( header != null )
+            {
+                addSource( md, header, visited );
+            }
+            else
+            {
+                // system header, covered by the compiler version in the signature
+                update( md, include[1] );
+            }
+        }
+    }
+
+    /*
+     * Adds a string to the key, terminated so that it cannot run into the next one
+     */
+    private static void update( MessageDigest md, String value )
+        throws MojoExecutionException
+    {
+        try
+        {
+            md.update( value.getBytes( "UTF-8" ) );
+        }
+        catch ( UnsupportedEncodingException e )
+        {
+            throw new MojoExecutionException( "NAR: UTF-8 not available", e );
+        }
+        md.update( (byte) 0 );
+    }
+
+    private File resolve( String name, File currentDir )
+    {
+        if ( currentDir != null )
+        {
+            File header = new File( currentDir, name );
+            if ( header.isFile() )
+            {
+                return header;
+            }
+        }
+        for ( Iterator i = includePaths.iterator(); i.hasNext(); )
+        {
+            File header = new File( (File) i.next(), name );
+            if ( header.isFile() )
+            {
+                return header;
+            }
+        }
+        return null;
+    }
+
+    private List/* <String[]> */getIncludes( File file )
+        throws MojoExecutionException
+    {
+        List result = (List) includes.get( file );
+        if ( result == null )
+        {
+            result = scanIncludes( file );
+            includes.put( file, result );
+        }
+        return result;
+    }
+
+    private List/* <String[]> */scanIncludes( File file )
+        throws MojoExecutionException
+    {
+        List result = new ArrayList();
+        BufferedReader reader = null;
+        try
+        {
+            reader = new BufferedReader( new FileReader( file ) );
+            String line;
+            while ( ( line = reader.readLine() ) != null )
+            {
+                if ( line.indexOf( '#' ) < 0 )
+                {
+                    continue;
+                }
+                Matcher m = INCLUDE.matcher( line );
+                if ( m.find() )
+                {
+                    result.add( new String[] { m.group( 2 ), m.group( 3 ) } );
+                }
+            }
+            return result;
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "NAR: could not scan " + file + " for includes", e );
+        }
+        finally
+        {
+            if ( reader != null )
+            {
+                try
+                {
+                    reader.close();
+                }
+                catch ( IOException e )
+                {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private String getDigest( File file )
+        throws MojoExecutionException
+    {
+        String digest = (String) digests.get( file );
+        if ( digest == null )
+        {
+            digest = digest( file );
+            digests.put( file, digest );
+        }
+        return digest;
+    }
+
+    /**
+     * Returns the hex encoded SHA-1 digest of the content of the given file.
+     */
+    public static String digest( File file )
+        throws MojoExecutionException
+    {
+        MessageDigest md = newDigest();
+        InputStream in = null;
+        try
+        {
+            in = new FileInputStream( file );
+            byte[] buffer = new byte[8192];
+            int n;
+            while ( ( n = in.read( buffer ) ) > 0 )
+            {
+                md.update( buffer, 0, n );
+            }
+            return toHex( md.digest() );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "NAR: could not read " + file, e );
+        }
+        finally
+        {
+            if ( in != null )
+            {
+                try
+                {
+                    in.close();
+                }
+                catch ( IOException e )
+                {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static MessageDigest newDigest()
+        throws MojoExecutionException
+    {
+        try
+        {
+            return MessageDigest.getInstance( "SHA-1" );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new MojoExecutionException( "NAR: SHA-1 not available", e );
+        }
+    }
+
+    public static String toHex( byte[] bytes )
+    {
+        StringBuffer sb = new StringBuffer( bytes.length * 2 );
+        for ( int i = 0; i < bytes.length; i++ )
+        {
+            int b = bytes[i] & 0xff;
+            if ( b < 0x10 )
+            {
+                sb.append( '0' );
+            }
+            sb.append( Integer.toHexString( b ) );
+        }
+        return sb.toString();
+    }
+
+    private static File canonical( File file )
+    {
+        try
+        {
+            return file.getCanonicalFile();
+        }
+        catch ( IOException e )
+        {
+            return file.getAbsoluteFile();
+        }
+    }
+}
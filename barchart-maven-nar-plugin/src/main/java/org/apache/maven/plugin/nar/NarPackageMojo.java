@@ -21,11 +21,14 @@ package org.apache.maven.plugin.nar;
 
 import java.io.File;
 import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.project.MavenProjectHelper;
 import org.codehaus.plexus.archiver.manager.ArchiverManager;
+import org.codehaus.plexus.util.StringUtils;
 
 /**
  * Jars up the NAR files.
@@ -53,9 +56,40 @@ public class NarPackageMojo
      */
     private MavenProjectHelper projectHelper;
 
+    /**
+     * Deflate level (1-9) of the nar files, -1 for the default level. Level 0 stores all entries.
+     * 
+     * @parameter expression="${nar.compressionLevel}" default-value="-1"
+     */
+    private int compressionLevel;
+
+    /**
+     * Comma separated list of file extensions which are stored in the nar files rather than deflated, e.g. "so,dll".
+     * 
+     * @parameter expression="${nar.storedExtensions}"
+     */
+    private String storedExtensions;
+
+    /**
+     * Modification time of all entries in the nar files, to make them reproducible. Either an ISO 8601 date
+     * (yyyy-MM-dd'T'HH:mm:ssZ) or seconds since the epoch. Not set, or a single character, keeps the time of the
+     * files.
+     * 
+     * @parameter expression="${nar.outputTimestamp}" default-value="${project.build.outputTimestamp}"
+     */
+    private String outputTimestamp;
+
     public final void narExecute()
         throws MojoExecutionException, MojoFailureException
     {
+        String[] extensions = storedExtensions != null ? StringUtils.split( storedExtensions, ", " ) : null;
+        NarLayout layout = getLayout();
+        if ( layout instanceof AbstractNarLayout )
+        {
+            ( (AbstractNarLayout) layout ).setArchiverSettings( compressionLevel, extensions, getTimestamp(),
+                                                                getMaxCores( getAOL() ) );
+        }
+
         // let the layout decide which nars to attach
         getLayout().attachNars( getTargetDirectory(), archiverManager, projectHelper, getMavenProject(), getNarInfo() );
         
@@ -76,4 +110,28 @@ public class NarPackageMojo
             throw new MojoExecutionException( "Cannot write nar properties file", ioe );
         }
     }
+
+    private long getTimestamp()
+        throws MojoExecutionException
+    {
+        if ( ( outputTimestamp == null ) || ( outputTimestamp.trim().length() < 2 ) )
+        {
+            return -1;
+        }
+        String value = outputTimestamp.trim();
+        if ( value.matches( "\\d+" ) )
+        {
+            return Long.parseLong( value ) * 1000;
+        }
+        // SimpleDateFormat in 1.6 does not know 'Z' and '+hh:mm' as time zones
+        value = value.replaceFirst( "Z$", "+0000" ).replaceFirst( "([+-]\\d\\d):(\\d\\d)$", "$1$2" );
+        try
+        {
+            return new SimpleDateFormat( "yyyy-MM-dd'T'HH:mm:ssZ" ).parse( value ).getTime();
+        }
+        catch ( ParseException e )
+        {
+            throw new MojoExecutionException( "NAR: invalid outputTimestamp '" + outputTimestamp + "'", e );
+        }
+    }
 }
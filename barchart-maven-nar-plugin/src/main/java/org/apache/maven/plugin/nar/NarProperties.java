@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.Enumeration;
 import java.util.Properties;
 
 import org.apache.maven.plugin.MojoFailureException;
@@ -74,4 +75,11 @@ public class NarProperties {
 	public String getProperty(String key) {
 		return properties.getProperty(key);
 	}
+
+	/**
+	 * @return the keys of all properties, including the defaults
+	 */
+	public Enumeration/* <String> */propertyNames() {
+		return properties.propertyNames();
+	}
 }
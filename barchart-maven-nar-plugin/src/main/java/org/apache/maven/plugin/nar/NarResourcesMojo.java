@@ -67,7 +67,9 @@ public class NarResourcesMojo
             {
                 File noarchDstDir = getLayout().getNoArchDirectory( getTargetDirectory(), getMavenProject().getArtifactId(), getMavenProject().getVersion() );
                 getLog().debug( "Copying noarch from " + noarchDir + " to " + noarchDstDir );
-                copied += NarUtil.copyDirectoryStructure( noarchDir, noarchDstDir, null, NarUtil.DEFAULT_EXCLUDES );
+                copied +=
+                    NarUtil.copyDirectoryStructure( noarchDir, noarchDstDir, null, NarUtil.DEFAULT_EXCLUDES,
+                                                    isLinkResources() );
             }
             getLog().info( "Copied " + copied + " resources" );
         }
@@ -24,6 +24,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Iterator;
+import java.util.List;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
@@ -49,6 +50,7 @@ public class NarSystemMojo
         String packageName = null;
         String narSystemName = null;
         File narSystemDirectory = null;
+        List/* <String> */embeddedResources = null;
         boolean jniFound = false;
         for ( Iterator i = getLibraries().iterator(); !jniFound && i.hasNext(); )
         {
@@ -59,6 +61,10 @@ public class NarSystemMojo
                 packageName = library.getNarSystemPackage();
                 narSystemName = library.getNarSystemName();
                 narSystemDirectory = new File(getTargetDirectory(), library.getNarSystemDirectory());
+                if ( library.embedLibrary() )
+                {
+                    embeddedResources = getEmbeddedLibraryResources( library.getType() );
+                }
                 jniFound = true;
             }
         }
@@ -90,44 +96,395 @@ public class NarSystemMojo
             String version = getMavenProject().getVersion();
             FileOutputStream fos = new FileOutputStream( narSystem );
             PrintWriter p = new PrintWriter( fos );
-            p.println( "// DO NOT EDIT: Generated by NarSystemGenerate." );
-            p.println( "package " + packageName + ";" );
-            p.println( "" );
-            p.println( "/**" );
-            p.println( " * Generated class to load the correct version of the jni library" );            
-            p.println( " *" );            
-            p.println( " * @author maven-nar-plugin" );            
-            p.println( " */" );            
-            p.println( "public final class NarSystem" );
-            p.println( "{" );
-            p.println( "" );
-            p.println( "    private NarSystem() " );
-            p.println( "    {" );
-            p.println( "    }" );
-            p.println( "" );
-            p.println( "   /**" );
-            p.println( "    * Load jni library: "+artifactId+"-"+version );            
-            p.println( "    *" );            
-            p.println( "    * @author maven-nar-plugin" );            
-            p.println( "    */" );            
+            writeNarSystem( p, packageName, narSystemName, artifactId + "-" + version, embeddedResources );
+            p.close();
+            fos.close();
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Could not write '" + narSystemName + "'", e );
+        }
+    }
+
+    /**
+     * Writes the source of the NarSystem class.
+     *
+     * @param libraryName name of the library to load from java.library.path
+     * @param embeddedResources classpath resources of the library, the one of the AOL it was built on first, or null if
+     *            the library is not embedded
+     */
+    public static void writeNarSystem( PrintWriter p, String packageName, String narSystemName, String libraryName,
+                                       List/* <String> */embeddedResources )
+    {
+        p.println( "// DO NOT EDIT: Generated by NarSystemGenerate." );
+        p.println( "package " + packageName + ";" );
+        p.println( "" );
+        if ( embeddedResources != null )
+        {
+            printImports( p );
+        }
+        p.println( "/**" );
+        p.println( " * Generated class to load the correct version of the jni library" );            
+        p.println( " *" );            
+        p.println( " * @author maven-nar-plugin" );            
+        p.println( " */" );            
+        p.println( "public final class NarSystem" );
+        p.println( "{" );
+        p.println( "" );
+        p.println( "    private NarSystem() " );
+        p.println( "    {" );
+        p.println( "    }" );
+        p.println( "" );
+        if ( embeddedResources != null )
+        {
+            printEmbeddedFields( p, libraryName, embeddedResources );
+        }
+        p.println( "   /**" );
+        p.println( "    * Load jni library: " + libraryName );            
+        p.println( "    *" );            
+        p.println( "    * @author maven-nar-plugin" );            
+        p.println( "    */" );            
+        if ( embeddedResources != null )
+        {
+            printEmbeddedLoader( p, narSystemName );
+        }
+        else
+        {
             p.println( "    public static void loadLibrary()" );
             p.println( "    {" );
-            p.println( "        System.loadLibrary(\"" + artifactId + "-"
-                + version + "\");" );
+            p.println( "        System.loadLibrary(\"" + libraryName + "\");" );
             p.println( "    }" );
+        }
 	    p.println("");
 	    p.println("    public static int runUnitTests() {");
 	    p.println("	       return new NarSystem().runUnitTestsNative();");
 	    p.println("}");
 	    p.println("");
 	    p.println("    public native int runUnitTestsNative();");
-            p.println( "}" );
-            p.close();
-            fos.close();
-        }
-        catch ( IOException e )
+        p.println( "}" );
+    }
+
+    private static void printImports( PrintWriter p )
+    {
+        p.println( "import java.io.File;" );
+        p.println( "import java.io.FileInputStream;" );
+        p.println( "import java.io.FileOutputStream;" );
+        p.println( "import java.io.IOException;" );
+        p.println( "import java.io.InputStream;" );
+        p.println( "import java.io.OutputStream;" );
+        p.println( "import java.io.RandomAccessFile;" );
+        p.println( "import java.net.URL;" );
+        p.println( "import java.net.URLConnection;" );
+        p.println( "import java.nio.channels.FileLock;" );
+        p.println( "import java.security.MessageDigest;" );
+        p.println( "import java.security.NoSuchAlgorithmException;" );
+        p.println( "" );
+    }
+
+    private static void printEmbeddedFields( PrintWriter p, String libraryName, List/* <String> */resources )
+    {
+        p.println( "    private static final String LIBRARY_NAME = \"" + libraryName + "\";" );
+        p.println( "" );
+        p.println( "    private static final String[] LIBRARY_RESOURCES = {" );
+        for ( Iterator i = resources.iterator(); i.hasNext(); )
         {
-            throw new MojoExecutionException( "Could not write '" + narSystemName + "'", e );
+            p.println( "        \"" + i.next() + "\"," );
         }
+        p.println( "    };" );
+        p.println( "" );
+        p.println( "    private static boolean loaded;" );
+        p.println( "" );
+    }
+
+    /**
+     * Prints a loadLibrary() which looks for the library of the running platform under lib/&lt;aol&gt;/&lt;type&gt; on
+     * the classpath, extracts it into a directory named after its SHA-1 digest below ~/.nar/cache (or the nar.cache
+     * system property) and loads it from there. Extraction goes through a temporary file which is renamed into place
+     * while holding a file lock, so concurrently starting JVMs never see a partial library. The digest of an extracted
+     * library is checked while copying it; as the directory is named after the digest, a library found in the cache is
+     * used without reading it when it has the size of the embedded one. When no library is found for the running
+     * platform, it falls back to java.library.path.
+     */
+    private static void printEmbeddedLoader( PrintWriter p, String className )
+    {
+        p.println( "    public static synchronized void loadLibrary()" );
+        p.println( "    {" );
+        p.println( "        if ( loaded )" );
+        p.println( "        {" );
+        p.println( "            return;" );
+        p.println( "        }" );
+        p.println( "        String resource = findLibraryResource();" );
+        p.println( "        if ( resource == null )" );
+        p.println( "        {" );
+        p.println( "            System.loadLibrary( LIBRARY_NAME );" );
+        p.println( "        }" );
+        p.println( "        else" );
+        p.println( "        {" );
+        p.println( "            try" );
+        p.println( "            {" );
+        p.println( "                System.load( extractLibrary( resource ).getAbsolutePath() );" );
+        p.println( "            }" );
+        p.println( "            catch ( IOException e )" );
+        p.println( "            {" );
+        p.println( "                UnsatisfiedLinkError error =" );
+        p.println( "                    new UnsatisfiedLinkError( \"Could not extract \" + resource + \": \" + e.getMessage() );" );
+        p.println( "                error.initCause( e );" );
+        p.println( "                throw error;" );
+        p.println( "            }" );
+        p.println( "        }" );
+        p.println( "        loaded = true;" );
+        p.println( "    }" );
+        p.println( "" );
+        p.println( "    private static String findLibraryResource()" );
+        p.println( "    {" );
+        p.println( "        String os = System.getProperty( \"os.name\" );" );
+        p.println( "        String name = os.toLowerCase();" );
+        p.println( "        if ( name.startsWith( \"windows\" ) )" );
+        p.println( "        {" );
+        p.println( "            os = \"" + OS.WINDOWS + "\";" );
+        p.println( "        }" );
+        p.println( "        else if ( name.startsWith( \"linux\" ) )" );
+        p.println( "        {" );
+        p.println( "            os = \"" + OS.LINUX + "\";" );
+        p.println( "        }" );
+        p.println( "        else if ( name.equals( \"mac os x\" ) )" );
+        p.println( "        {" );
+        p.println( "            os = \"" + OS.MACOSX + "\";" );
+        p.println( "        }" );
+        p.println( "        String prefix = \"lib/\" + System.getProperty( \"os.arch\" ) + \"-\" + os + \"-\";" );
+        p.println( "        for ( int i = 0; i < LIBRARY_RESOURCES.length; i++ )" );
+        p.println( "        {" );
+        p.println( "            if ( LIBRARY_RESOURCES[i].startsWith( prefix )" );
+        p.println( "                && " + className + ".class.getResource( \"/\" + LIBRARY_RESOURCES[i] ) != null )" );
+        p.println( "            {" );
+        p.println( "                return LIBRARY_RESOURCES[i];" );
+        p.println( "            }" );
+        p.println( "        }" );
+        p.println( "        return null;" );
+        p.println( "    }" );
+        p.println( "" );
+        p.println( "    private static File getCacheDirectory()" );
+        p.println( "    {" );
+        p.println( "        String dir = System.getProperty( \"nar.cache\" );" );
+        p.println( "        if ( dir != null )" );
+        p.println( "        {" );
+        p.println( "            return new File( dir );" );
+        p.println( "        }" );
+        p.println( "        return new File( System.getProperty( \"user.home\" ), \".nar\" + File.separator + \"cache\" );" );
+        p.println( "    }" );
+        p.println( "" );
+        p.println( "    private static void createDirectory( File directory )" );
+        p.println( "        throws IOException" );
+        p.println( "    {" );
+        p.println( "        if ( directory.isDirectory() )" );
+        p.println( "        {" );
+        p.println( "            return;" );
+        p.println( "        }" );
+        p.println( "        if ( !directory.mkdirs() && !directory.isDirectory() )" );
+        p.println( "        {" );
+        p.println( "            throw new IOException( \"could not create \" + directory );" );
+        p.println( "        }" );
+        p.println( "        // only the owner may read or write the libraries in the cache" );
+        p.println( "        directory.setReadable( false, false );" );
+        p.println( "        directory.setWritable( false, false );" );
+        p.println( "        directory.setExecutable( false, false );" );
+        p.println( "        directory.setReadable( true, true );" );
+        p.println( "        directory.setWritable( true, true );" );
+        p.println( "        directory.setExecutable( true, true );" );
+        p.println( "    }" );
+        p.println( "" );
+        p.println( "    private static File extractLibrary( String resource )" );
+        p.println( "        throws IOException" );
+        p.println( "    {" );
+        p.println( "        URL url = " + className + ".class.getResource( \"/\" + resource );" );
+        p.println( "        String fileName = resource.substring( resource.lastIndexOf( '/' ) + 1 );" );
+        p.println( "        File cacheDirectory = getCacheDirectory();" );
+        p.println( "" );
+        p.println( "        // the digest is stored next to the library and names the directory it is extracted to" );
+        p.println( "        String expected = readDigest( new URL( url, fileName + \".sha1\" ) );" );
+        p.println( "        long size = getSize( url );" );
+        p.println( "        if ( expected != null )" );
+        p.println( "        {" );
+        p.println( "            File library = new File( new File( cacheDirectory, expected ), fileName );" );
+        p.println( "            if ( isExtracted( library, expected, size ) )" );
+        p.println( "            {" );
+        p.println( "                return library;" );
+        p.println( "            }" );
+        p.println( "        }" );
+        p.println( "" );
+        p.println( "        createDirectory( cacheDirectory );" );
+        p.println( "        RandomAccessFile lockFile = new RandomAccessFile( new File( cacheDirectory, fileName + \".lock\" ), \"rw\" );" );
+        p.println( "        try" );
+        p.println( "        {" );
+        p.println( "            FileLock lock = lockFile.getChannel().lock();" );
+        p.println( "            try" );
+        p.println( "            {" );
+        p.println( "                if ( expected != null )" );
+        p.println( "                {" );
+        p.println( "                    // another JVM may have extracted it while we were waiting for the lock" );
+        p.println( "                    File library = new File( new File( cacheDirectory, expected ), fileName );" );
+        p.println( "                    if ( isExtracted( library, expected, size ) )" );
+        p.println( "                    {" );
+        p.println( "                        return library;" );
+        p.println( "                    }" );
+        p.println( "                }" );
+        p.println( "" );
+        p.println( "                File tmp = File.createTempFile( fileName, \".tmp\", cacheDirectory );" );
+        p.println( "                try" );
+        p.println( "                {" );
+        p.println( "                    String digest = copy( url, tmp );" );
+        p.println( "                    if ( expected != null && !expected.equals( digest ) )" );
+        p.println( "                    {" );
+        p.println( "                        throw new IOException( \"digest of \" + url + \" is \" + digest + \", expected \" + expected );" );
+        p.println( "                    }" );
+        p.println( "                    File directory = new File( cacheDirectory, digest );" );
+        p.println( "                    createDirectory( directory );" );
+        p.println( "                    File library = new File( directory, fileName );" );
+        p.println( "                    if ( !tmp.renameTo( library ) )" );
+        p.println( "                    {" );
+        p.println( "                        // a library which no longer matches its digest is replaced" );
+        p.println( "                        library.delete();" );
+        p.println( "                        if ( !tmp.renameTo( library ) )" );
+        p.println( "                        {" );
+        p.println( "                            throw new IOException( \"could not rename \" + tmp + \" to \" + library );" );
+        p.println( "                        }" );
+        p.println( "                    }" );
+        p.println( "                    return library;" );
+        p.println( "                }" );
+        p.println( "                finally" );
+        p.println( "                {" );
+        p.println( "                    tmp.delete();" );
+        p.println( "                }" );
+        p.println( "            }" );
+        p.println( "            finally" );
+        p.println( "            {" );
+        p.println( "                lock.release();" );
+        p.println( "            }" );
+        p.println( "        }" );
+        p.println( "        finally" );
+        p.println( "        {" );
+        p.println( "            lockFile.close();" );
+        p.println( "        }" );
+        p.println( "    }" );
+        p.println( "" );
+        p.println( "    private static boolean isExtracted( File library, String expected, long size )" );
+        p.println( "        throws IOException" );
+        p.println( "    {" );
+        p.println( "        if ( !library.isFile() )" );
+        p.println( "        {" );
+        p.println( "            return false;" );
+        p.println( "        }" );
+        p.println( "        // the library was checked against the digest when it was extracted, only hash it if the size is unknown" );
+        p.println( "        return size >= 0 ? library.length() == size : expected.equals( digest( library ) );" );
+        p.println( "    }" );
+        p.println( "" );
+        p.println( "    private static long getSize( URL url )" );
+        p.println( "    {" );
+        p.println( "        try" );
+        p.println( "        {" );
+        p.println( "            URLConnection connection = url.openConnection();" );
+        p.println( "            long size = connection.getContentLength();" );
+        p.println( "            connection.getInputStream().close();" );
+        p.println( "            return size;" );
+        p.println( "        }" );
+        p.println( "        catch ( IOException e )" );
+        p.println( "        {" );
+        p.println( "            return -1;" );
+        p.println( "        }" );
+        p.println( "    }" );
+        p.println( "" );
+        p.println( "    private static String readDigest( URL url )" );
+        p.println( "    {" );
+        p.println( "        try" );
+        p.println( "        {" );
+        p.println( "            InputStream in = url.openStream();" );
+        p.println( "            try" );
+        p.println( "            {" );
+        p.println( "                byte[] buffer = new byte[40];" );
+        p.println( "                int length = 0;" );
+        p.println( "                int n;" );
+        p.println( "                while ( length < buffer.length && ( n = in.read( buffer, length, buffer.length - length ) ) > 0 )" );
+        p.println( "                {" );
+        p.println( "                    length += n;" );
+        p.println( "                }" );
+        p.println( "                return length == buffer.length ? new String( buffer, \"US-ASCII\" ) : null;" );
+        p.println( "            }" );
+        p.println( "            finally" );
+        p.println( "            {" );
+        p.println( "                in.close();" );
+        p.println( "            }" );
+        p.println( "        }" );
+        p.println( "        catch ( IOException e )" );
+        p.println( "        {" );
+        p.println( "            return null;" );
+        p.println( "        }" );
+        p.println( "    }" );
+        p.println( "" );
+        p.println( "    private static String digest( File file )" );
+        p.println( "        throws IOException" );
+        p.println( "    {" );
+        p.println( "        InputStream in = new FileInputStream( file );" );
+        p.println( "        try" );
+        p.println( "        {" );
+        p.println( "            return digest( in, null );" );
+        p.println( "        }" );
+        p.println( "        finally" );
+        p.println( "        {" );
+        p.println( "            in.close();" );
+        p.println( "        }" );
+        p.println( "    }" );
+        p.println( "" );
+        p.println( "    private static String copy( URL url, File file )" );
+        p.println( "        throws IOException" );
+        p.println( "    {" );
+        p.println( "        InputStream in = url.openStream();" );
+        p.println( "        try" );
+        p.println( "        {" );
+        p.println( "            OutputStream out = new FileOutputStream( file );" );
+        p.println( "            try" );
+        p.println( "            {" );
+        p.println( "                return digest( in, out );" );
+        p.println( "            }" );
+        p.println( "            finally" );
+        p.println( "            {" );
+        p.println( "                out.close();" );
+        p.println( "            }" );
+        p.println( "        }" );
+        p.println( "        finally" );
+        p.println( "        {" );
+        p.println( "            in.close();" );
+        p.println( "        }" );
+        p.println( "    }" );
+        p.println( "" );
+        p.println( "    private static String digest( InputStream in, OutputStream out )" );
+        p.println( "        throws IOException" );
+        p.println( "    {" );
+        p.println( "        MessageDigest md;" );
+        p.println( "        try" );
+        p.println( "        {" );
+        p.println( "            md = MessageDigest.getInstance( \"SHA-1\" );" );
+        p.println( "        }" );
+        p.println( "        catch ( NoSuchAlgorithmException e )" );
+        p.println( "        {" );
+        p.println( "            throw new IOException( \"SHA-1 not available\" );" );
+        p.println( "        }" );
+        p.println( "        byte[] buffer = new byte[65536];" );
+        p.println( "        int n;" );
+        p.println( "        while ( ( n = in.read( buffer ) ) > 0 )" );
+        p.println( "        {" );
+        p.println( "            md.update( buffer, 0, n );" );
+        p.println( "            if ( out != null )" );
+        p.println( "            {" );
+        p.println( "                out.write( buffer, 0, n );" );
+        p.println( "            }" );
+        p.println( "        }" );
+        p.println( "        byte[] bytes = md.digest();" );
+        p.println( "        StringBuffer sb = new StringBuffer( bytes.length * 2 );" );
+        p.println( "        for ( int i = 0; i < bytes.length; i++ )" );
+        p.println( "        {" );
+        p.println( "            sb.append( Integer.toHexString( ( bytes[i] & 0xff ) | 0x100 ).substring( 1 ) );" );
+        p.println( "        }" );
+        p.println( "        return sb.toString();" );
+        p.println( "    }" );
     }
 }
@@ -21,7 +21,6 @@ package org.apache.maven.plugin.nar;
 
 import java.io.File;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 
 import net.sf.antcontrib.cpptasks.CCTask;
@@ -36,7 +35,6 @@ import net.sf.antcontrib.cpptasks.types.LibraryTypeEnum;
 import net.sf.antcontrib.cpptasks.types.LinkerArgument;
 import net.sf.antcontrib.cpptasks.types.SystemLibrarySet;
 
-import org.apache.maven.artifact.Artifact;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.tools.ant.BuildException;
@@ -141,19 +139,10 @@ public class NarTestCompileMojo
         getJava().addIncludePaths( task, type );
 
         // add dependency include paths
-        for ( Iterator i = getNarManager().getNarDependencies( "test" ).iterator(); i.hasNext(); )
+        for ( Iterator i = getNarDependencyGraph( "test" ).getNodes().iterator(); i.hasNext(); )
         {
-            Artifact artifact = (Artifact) i.next();
-            
-            // check if it exists in the normal unpack directory
-            File include = 
-                getLayout().getIncludeDirectory( getUnpackDirectory(), artifact.getArtifactId(), artifact.getVersion() );
-            if ( !include.exists() )
-            {
-                // otherwise try the test unpack directory
-                include = 
-                    getLayout().getIncludeDirectory( getTestUnpackDirectory(), artifact.getArtifactId(), artifact.getVersion() );
-            }
+            // look in the normal unpack directory first, then in the test unpack directory
+            File include = ( (NarDependencyGraph.Node) i.next() ).getIncludeDirectory();
             if ( include.exists() )
             {                
                 task.createIncludePath().setPath( include.getPath() );
@@ -213,77 +202,32 @@ public class NarTestCompileMojo
             task.addLibset( libSet );
         }
 
-        // add dependency libraries
-        List depLibOrder = getDependencyLibOrder();
-        List depLibs = getNarManager().getNarDependencies( "test" );
-
-        // reorder the libraries that come from the nar dependencies
-        // to comply with the order specified by the user
-        if ( ( depLibOrder != null ) && !depLibOrder.isEmpty() )
-        {
-
-            List tmp = new LinkedList();
-
-            for ( Iterator i = depLibOrder.iterator(); i.hasNext(); )
-            {
-
-                String depToOrderName = (String) i.next();
-
-                for ( Iterator j = depLibs.iterator(); j.hasNext(); )
-                {
-
-                    NarArtifact dep = (NarArtifact) j.next();
-                    String depName = dep.getGroupId() + ":" + dep.getArtifactId();
-
-                    if ( depName.equals( depToOrderName ) )
-                    {
-
-                        tmp.add( dep );
-                        j.remove();
-                    }
-                }
-            }
-
-            tmp.addAll( depLibs );
-            depLibs = tmp;
-        }
+        // add dependency libraries, the ones named in narDependencyLibOrder first, the others in dependency order
+        List depLibs = getNarDependencyGraph( "test" ).getLinkOrder( getDependencyLibOrder() );
 
         for ( Iterator i = depLibs.iterator(); i.hasNext(); )
         {
-            NarArtifact dependency = (NarArtifact) i.next();
+            NarDependencyGraph.Node dependency = (NarDependencyGraph.Node) i.next();
 
             // FIXME no handling of "local"
 
             // FIXME, no way to override this at this stage
-            String binding = dependency.getNarInfo().getBinding( getAOL(), Library.NONE );
+            String binding = dependency.getBinding( Library.NONE );
             getLog().debug( "Using Binding: " + binding );
-            AOL aol = getAOL();
-            aol = dependency.getNarInfo().getAOL( getAOL() );
-            getLog().debug( "Using Library AOL: " + aol.toString() );
+            getLog().debug( "Using Library AOL: " + dependency.getAOL().toString() );
 
             if ( !binding.equals( Library.JNI ) && !binding.equals( Library.NONE ) )
             {
-                // check if it exists in the normal unpack directory 
-                File dir =
-                    getLayout().getLibDirectory( getUnpackDirectory(), dependency.getArtifactId(),
-                                                  dependency.getVersion(), aol.toString(), binding );
+                // look in the normal unpack directory first, then in the test unpack directory
+                File dir = dependency.getLibDirectory( binding );
                 getLog().debug( "Looking for Library Directory: " + dir );
-                if ( !dir.exists() )
-                {
-                    getLog().debug( "Library Directory " + dir + " does NOT exist." );
-
-                    // otherwise try the test unpack directory
-                    dir = getLayout().getLibDirectory( getTestUnpackDirectory(), dependency.getArtifactId(),
-                                                        dependency.getVersion(), aol.toString(), binding );
-                    getLog().debug( "Looking for Library Directory: " + dir );
-                }
                 if ( dir.exists() )
                 {
                     LibrarySet libSet = new LibrarySet();
                     libSet.setProject( antProject );
 
                     // FIXME, no way to override
-                    String libs = dependency.getNarInfo().getLibs( getAOL() );
+                    String libs = dependency.getLibs();
                     if ( ( libs != null ) && !libs.equals( "" ) )
                     {
                         getLog().debug( "Using LIBS = " + libs );
@@ -298,7 +242,7 @@ public class NarTestCompileMojo
                 }
 
                 // FIXME, look again at this, for multiple dependencies we may need to remove duplicates
-                String options = dependency.getNarInfo().getOptions( getAOL() );
+                String options = dependency.getOptions();
                 if ( ( options != null ) && !options.equals( "" ) )
                 {
                     getLog().debug( "Using OPTIONS = " + options );
@@ -307,7 +251,7 @@ public class NarTestCompileMojo
                     linkerDefinition.addConfiguredLinkerArg( arg );
                 }
 
-                String sysLibs = dependency.getNarInfo().getSysLibs( getAOL() );
+                String sysLibs = dependency.getSysLibs();
                 if ( ( sysLibs != null ) && !sysLibs.equals( "" ) )
                 {
                     getLog().debug( "Using SYSLIBS = " + sysLibs );
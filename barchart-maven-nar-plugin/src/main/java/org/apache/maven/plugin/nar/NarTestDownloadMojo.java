@@ -41,7 +41,7 @@ public class NarTestDownloadMojo
     public final void narExecute()
         throws MojoExecutionException, MojoFailureException
     {
-        List narArtifacts = getNarManager().getNarDependencies( "test" );
+        List narArtifacts = getNarDependencyGraph( "test" ).getArtifacts();
         if ( classifiers == null )
         {
             getNarManager().downloadAttachedNars( narArtifacts, remoteArtifactRepositories, artifactResolver, null );
@@ -20,17 +20,29 @@ package org.apache.maven.plugin.nar;
  */
 
 import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.util.IOUtil;
 import org.codehaus.plexus.util.StringUtils;
+import org.codehaus.plexus.util.WriterFactory;
+import org.codehaus.plexus.util.xml.PrettyPrintXMLWriter;
+import org.codehaus.plexus.util.xml.XMLWriter;
 
 /**
  * Tests NAR files. Runs Native Tests and executables if produced.
@@ -52,13 +64,54 @@ public class NarTestMojo
      */
     private List classpathElements;
 
+    /**
+     * Run the tests concurrently, using at most maxCores threads. Each test runs in its own directory below
+     * test-reports, and its output is logged together once it is done.
+     * 
+     * @parameter expression="${nar.parallelTests}" default-value="false"
+     */
+    private boolean parallelTests;
+
+    /**
+     * Maximum time in seconds a test may run, 0 for no limit. A test is killed and reported as failed when it takes
+     * longer. Can be overridden by the timeout of a test.
+     * 
+     * @parameter expression="${nar.testTimeout}" default-value="0"
+     */
+    private int testTimeout;
+
+    private String[] environment;
+
+    private boolean environmentGenerated;
+
     public final void narExecute()
         throws MojoExecutionException, MojoFailureException
     {
-        // run all tests
+        List tests = new ArrayList();
         for ( Iterator i = getTests().iterator(); i.hasNext(); )
         {
-            runTest( (Test) i.next() );
+            Test test = (Test) i.next();
+            if ( test.shouldRun() )
+            {
+                tests.add( test );
+            }
+        }
+
+        // run all tests
+        if ( parallelTests && ( tests.size() > 1 ) )
+        {
+            runTests( tests );
+        }
+        else
+        {
+            for ( Iterator i = tests.iterator(); i.hasNext(); )
+            {
+                String failure = runTest( (Test) i.next(), getTestReportsDirectory(), getLog() );
+                if ( failure != null )
+                {
+                    throw new MojoFailureException( failure );
+                }
+            }
         }
 
         for ( Iterator i = getLibraries().iterator(); i.hasNext(); )
@@ -67,39 +120,237 @@ public class NarTestMojo
         }
     }
 
-    private void runTest( Test test )
+    private File getTestReportsDirectory()
+    {
+        return new File( getTestTargetDirectory(), "test-reports" );
+    }
+
+    private void runTests( List/* <Test> */tests )
         throws MojoExecutionException, MojoFailureException
     {
-        // run if requested
-        if ( test.shouldRun() )
-        {
-            // NOTE should we use layout here ?
-            String name = test.getName() + (getOS().equals( OS.WINDOWS ) ? ".exe" : "");
-            File path = new File( getTestTargetDirectory(), "bin" );
-            path = new File( path, getAOL().toString() );
-            path = new File( path, name );
-            if ( !path.exists() )
+        // initialize lazy state before going concurrent
+        getAOL();
+        getOS();
+        getEnvironment();
+
+        int threads = getMaxCores( getAOL() );
+        if ( threads <= 0 )
+        {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        threads = Math.max( 1, Math.min( threads, tests.size() ) );
+        getLog().info( "Running " + tests.size() + " tests using " + threads + " threads" );
+
+        ExecutorService executor = Executors.newFixedThreadPool( threads );
+        try
+        {
+            List logs = new ArrayList();
+            List futures = new ArrayList();
+            for ( Iterator i = tests.iterator(); i.hasNext(); )
             {
-                getLog().warn( "Skipping non-existing test " + path );
-                return;
+                final Test test = (Test) i.next();
+                final NarBufferedLog log = new NarBufferedLog( getLog(), "[" + test.getName() + "] " );
+                logs.add( log );
+                futures.add( executor.submit( new Callable()
+                {
+                    public Object call()
+                        throws Exception
+                    {
+                        return runTest( test, new File( getTestReportsDirectory(), test.getName() ), log );
+                    }
+                } ) );
+            }
+
+            List failures = new ArrayList();
+            Exception error = null;
+            for ( int i = 0; i < futures.size(); i++ )
+            {
+                try
+                {
+                    String failure = (String) ( (Future) futures.get( i ) ).get();
+                    if ( failure != null )
+                    {
+                        failures.add( failure );
+                    }
+                }
+                catch ( ExecutionException e )
+                {
+                    if ( error == null )
+                    {
+                        error = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    }
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                    throw new MojoExecutionException( "NAR: interrupted while running tests", e );
+                }
+                finally
+                {
+                    ( (NarBufferedLog) logs.get( i ) ).flush();
+                }
+            }
+
+            if ( error instanceof MojoFailureException )
+            {
+                throw (MojoFailureException) error;
+            }
+            if ( error instanceof MojoExecutionException )
+            {
+                throw (MojoExecutionException) error;
+            }
+            if ( error != null )
+            {
+                throw new MojoExecutionException( "NAR: Test failed", error );
+            }
+            if ( failures.size() > 0 )
+            {
+                throw new MojoFailureException( failures.size() + " of " + tests.size() + " tests failed: "
+                    + StringUtils.join( failures.iterator(), ", " ) );
             }
-            
-            File workingDir = new File( getTestTargetDirectory(), "test-reports" );
-            workingDir.mkdirs();
-            getLog().info( "Running test " + name + " in " + workingDir );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
 
-            List args = test.getArgs();
+    /**
+     * Runs a test in the given directory and writes a JUnit style report for it into test-reports.
+     * 
+     * @return null if the test passed or did not exist, otherwise why it failed
+     */
+    private String runTest( Test test, File workingDir, final Log log )
+        throws MojoExecutionException, MojoFailureException
+    {
+        // NOTE should we use layout here ?
+        String name = test.getName() + (getOS().equals( OS.WINDOWS ) ? ".exe" : "");
+        File path = new File( getTestTargetDirectory(), "bin" );
+        path = new File( path, getAOL().toString() );
+        path = new File( path, name );
+        if ( !path.exists() )
+        {
+            log.warn( "Skipping non-existing test " + path );
+            return null;
+        }
+
+        workingDir.mkdirs();
+        log.info( "Running test " + name + " in " + workingDir );
+
+        final StringBuffer out = new StringBuffer();
+        final StringBuffer err = new StringBuffer();
+        int timeout = test.getTimeout() > 0 ? test.getTimeout() : testTimeout;
+        List args = test.getArgs();
+        String failure = null;
+        long start = System.currentTimeMillis();
+        try
+        {
             int result =
                 NarUtil.runCommand( path.toString(), (String[]) args.toArray( new String[args.size()] ), workingDir,
-                                    generateEnvironment(), getLog() );
+                                    getEnvironment(), new TextStream()
+                                    {
+                                        public void println( String text )
+                                        {
+                                            log.info( text );
+                                            out.append( text ).append( '\n' );
+                                        }
+                                    }, new TextStream()
+                                    {
+                                        public void println( String text )
+                                        {
+                                            log.error( text );
+                                            err.append( text ).append( '\n' );
+                                        }
+                                    }, new TextStream()
+                                    {
+                                        public void println( String text )
+                                        {
+                                            log.debug( text );
+                                        }
+                                    }, timeout * 1000L );
             if ( result != 0 )
             {
-                throw new MojoFailureException( "Test " + name + " failed with exit code: " + result + " 0x"
-                    + Integer.toHexString( result ) );
+                failure = "Test " + name + " failed with exit code: " + result + " 0x" + Integer.toHexString( result );
+            }
+        }
+        catch ( MojoFailureException e )
+        {
+            failure = "Test " + name + " failed: " + e.getMessage();
+        }
+        long time = System.currentTimeMillis() - start;
+        log.info( "Test " + name + ( failure == null ? " passed" : " FAILED" ) + " in " + time + " ms" );
+
+        writeReport( new File( getTestReportsDirectory(), "TEST-" + test.getName() + ".xml" ),
+                     getMavenProject().getArtifactId(), test.getName(), time, failure, out.toString(), err.toString() );
+        return failure;
+    }
+
+    /**
+     * Writes the result of a single test as a JUnit style XML report, with one test suite holding one test case.
+     * 
+     * @param failure null if the test passed, otherwise why it failed
+     */
+    public static void writeReport( File report, String className, String name, long time, String failure,
+                                    String out, String err )
+        throws MojoExecutionException
+    {
+        String seconds = String.valueOf( time / 1000.0 );
+        Writer writer = null;
+        try
+        {
+            report.getParentFile().mkdirs();
+            writer = WriterFactory.newXmlWriter( report );
+            XMLWriter xml = new PrettyPrintXMLWriter( writer, "UTF-8", null );
+            xml.startElement( "testsuite" );
+            xml.addAttribute( "name", name );
+            xml.addAttribute( "tests", "1" );
+            xml.addAttribute( "failures", failure == null ? "0" : "1" );
+            xml.addAttribute( "errors", "0" );
+            xml.addAttribute( "skipped", "0" );
+            xml.addAttribute( "time", seconds );
+            xml.startElement( "testcase" );
+            xml.addAttribute( "classname", className );
+            xml.addAttribute( "name", name );
+            xml.addAttribute( "time", seconds );
+            if ( failure != null )
+            {
+                xml.startElement( "failure" );
+                xml.addAttribute( "message", failure );
+                xml.endElement();
             }
+            xml.endElement();
+            xml.startElement( "system-out" );
+            xml.writeText( stripControlCharacters( out ) );
+            xml.endElement();
+            xml.startElement( "system-err" );
+            xml.writeText( stripControlCharacters( err ) );
+            xml.endElement();
+            xml.endElement();
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "NAR: cannot write test report " + report, e );
+        }
+        finally
+        {
+            IOUtil.close( writer );
         }
     }
 
+    private static String stripControlCharacters( String text )
+    {
+        StringBuffer sb = new StringBuffer( text.length() );
+        for ( int i = 0; i < text.length(); i++ )
+        {
+            char c = text.charAt( i );
+            if ( ( c >= 0x20 ) || ( c == '\n' ) || ( c == '\r' ) || ( c == '\t' ) )
+            {
+                sb.append( c );
+            }
+        }
+        return sb.toString();
+    }
+
     private void runExecutable( Library library )
         throws MojoExecutionException, MojoFailureException
     {
@@ -121,7 +372,7 @@ public class NarTestMojo
             List args = library.getArgs();
             int result =
                 NarUtil.runCommand( executable.getPath(), (String[]) args.toArray( new String[args.size()] ), null,
-                                    generateEnvironment(), getLog() );
+                                    getEnvironment(), getLog() );
             if ( result != 0 )
             {
                 throw new MojoFailureException( "Test " + executable + " failed with exit code: " + result + " 0x"
@@ -130,6 +381,20 @@ public class NarTestMojo
         }
     }
 
+    /**
+     * Returns the environment for the tests and executables, generated when the first one runs.
+     */
+    private String[] getEnvironment()
+        throws MojoExecutionException, MojoFailureException
+    {
+        if ( !environmentGenerated )
+        {
+            environment = generateEnvironment();
+            environmentGenerated = true;
+        }
+        return environment;
+    }
+
     private String[] generateEnvironment()
         throws MojoExecutionException, MojoFailureException
     {
@@ -153,7 +418,7 @@ public class NarTestMojo
 
         // add dependent shared libraries
         String classifier = getAOL() + "-shared";
-        List narArtifacts = getNarManager().getNarDependencies( "compile" );
+        List narArtifacts = getNarDependencyGraph( "compile" ).getArtifacts();
         List dependencies = getNarManager().getAttachedNarDependencies( narArtifacts, classifier );
         for ( Iterator d = dependencies.iterator(); d.hasNext(); )
         {
@@ -43,7 +43,7 @@ public class NarTestUnpackMojo
         throws MojoExecutionException, MojoFailureException
     {
         NarManager mgr = getNarManager();
-        List narArtifacts = mgr.getNarDependencies( "test" );
+        List narArtifacts = getNarDependencyGraph( "test" ).getArtifacts();
         if ( classifiers == null )
         {
             mgr.unpackAttachedNars( narArtifacts, archiverManager, null, getOS(), getLayout(), getTestUnpackDirectory() );
@@ -42,7 +42,7 @@ public class NarUnpackMojo
     public final void narExecute()
         throws MojoExecutionException, MojoFailureException
     {
-        List narArtifacts = getNarManager().getNarDependencies( "compile" );
+        List narArtifacts = getNarDependencyGraph( "compile" ).getArtifacts();
         if ( classifiers == null )
         {
             getNarManager().unpackAttachedNars( narArtifacts, archiverManager, null, getOS(), getLayout(), getUnpackDirectory() );
@@ -21,11 +21,16 @@ package org.apache.maven.plugin.nar;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.lang.reflect.Array;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -39,7 +44,9 @@ import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.project.MavenProject;
-import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.DirectoryScanner;
+import org.codehaus.plexus.util.IOUtil;
+import org.codehaus.plexus.util.StringUtils;
 import org.codehaus.plexus.util.cli.Commandline;
 
 /**
@@ -123,6 +130,29 @@ public final class NarUtil
         return replace( "-", ".", aol );
     }
 
+    /**
+     * Returns the file name of a library of the given type, e.g. "libartifactId-version.so". Some AOLs give the
+     * extension as a pattern, like "so*" to package versioned shared libraries; the wildcards are left out of the name.
+     *
+     * @param aolKey dot separated AOL
+     * @param output base name of the library
+     */
+    public static String getLibraryFileName( NarProperties properties, String aolKey, String type, String output )
+    {
+        String prefix = properties.getProperty( aolKey + ".shared.prefix" );
+        String extension = properties.getProperty( aolKey + "." + type + ".extension" );
+        String name = ( prefix != null ? prefix : "" ) + output;
+        if ( extension != null )
+        {
+            extension = extension.replaceAll( "[*?]", "" );
+            if ( extension.length() > 0 )
+            {
+                name += "." + extension;
+            }
+        }
+        return name;
+    }
+
     public static File getJavaHome( File javaHome, String os )
     {
         File home = javaHome;
@@ -156,6 +186,12 @@ public final class NarUtil
         }
         if ( file.isFile() && file.canRead() && file.canWrite() && !file.isHidden() )
         {
+            // done in process for everybody like chmod +x, chmod only as a fallback
+            if ( file.setExecutable( true, false ) )
+            {
+                return;
+            }
+
             // chmod +x file
             int result = runCommand( "chmod", new String[] { "+x", file.getPath() }, null, null, log );
             if ( result != 0 )
@@ -176,21 +212,47 @@ public final class NarUtil
 
         if ( file.isDirectory() )
         {
+            // ranlib all archives of a directory in one go
+            List archives = new ArrayList();
             File[] files = file.listFiles();
             for ( int i = 0; i < files.length; i++ )
             {
-                runRanlib( files[i], log );
+                if ( files[i].isDirectory() )
+                {
+                    runRanlib( files[i], log );
+                }
+                else if ( isRanlibCandidate( files[i] ) )
+                {
+                    archives.add( files[i].getPath() );
+                }
             }
+            runRanlib( (String[]) archives.toArray( new String[archives.size()] ), log );
         }
-        if ( file.isFile() && file.canWrite() && !file.isHidden() && file.getName().endsWith( ".a" ) )
+        else if ( isRanlibCandidate( file ) )
         {
-            // ranlib file
-            int result = runCommand( "ranlib", new String[] { file.getPath() }, null, null, log );
-            if ( result != 0 )
-            {
-                throw new MojoExecutionException( "Failed to execute 'ranlib " + file.getPath() + "'"
-                    + " return code: \'" + result + "\'." );
-            }
+            runRanlib( new String[] { file.getPath() }, log );
+        }
+    }
+
+    private static boolean isRanlibCandidate( File file )
+    {
+        return file.isFile() && file.canWrite() && !file.isHidden() && file.getName().endsWith( ".a" );
+    }
+
+    private static void runRanlib( String[] archives, final Log log )
+        throws MojoExecutionException, MojoFailureException
+    {
+        if ( archives.length == 0 )
+        {
+            return;
+        }
+
+        // ranlib file...
+        int result = runCommand( "ranlib", archives, null, null, log );
+        if ( result != 0 )
+        {
+            throw new MojoExecutionException( "Failed to execute 'ranlib " + StringUtils.join( archives, " " ) + "'"
+                + " return code: \'" + result + "\'." );
         }
     }
 
@@ -304,7 +366,7 @@ public final class NarUtil
         {
             File sofile =
                 new File( file.getParent(), file.getName().substring( 0, file.getName().indexOf( ".so" ) + 3 ) );
-            if ( !sofile.exists() )
+            if ( !sofile.exists() && !createSymbolicLink( sofile, file.getName() ) )
             {
                 // ln -s lib.so.xx lib.so
                 int result =
@@ -318,6 +380,51 @@ public final class NarUtil
         }
     }
 
+    /**
+     * Creates a symbolic link in process, using java.nio.file if available.
+     * 
+     * @return false if the link could not be created, in which case "ln -s" should be used.
+     */
+    private static boolean createSymbolicLink( File link, String target )
+    {
+        try
+        {
+            // 1.7 only so coded using introspection
+            // Files.createSymbolicLink( link.toPath(), new File( target ).toPath() );
+            Class files = Class.forName( "java.nio.file.Files" );
+            Class path = Class.forName( "java.nio.file.Path" );
+            Class attribute = Class.forName( "java.nio.file.attribute.FileAttribute" );
+            Method toPath = File.class.getMethod( "toPath", new Class[] {} );
+            Method createSymbolicLink =
+                files.getMethod( "createSymbolicLink", new Class[] { path, path,
+                    Array.newInstance( attribute, 0 ).getClass() } );
+            createSymbolicLink.invoke( null, new Object[] { toPath.invoke( link, new Object[] {} ),
+                toPath.invoke( new File( target ), new Object[] {} ), Array.newInstance( attribute, 0 ) } );
+            return true;
+        }
+        catch ( ClassNotFoundException e )
+        {
+            return false;
+        }
+        catch ( NoSuchMethodException e )
+        {
+            return false;
+        }
+        catch ( IllegalAccessException e )
+        {
+            return false;
+        }
+        catch ( InvocationTargetException e )
+        {
+            // e.g. UnsupportedOperationException or IOException
+            return false;
+        }
+        catch ( SecurityException e )
+        {
+            return false;
+        }
+    }
+
     /**
      * Returns the Bcel Class corresponding to the given class filename
      * 
@@ -431,81 +538,212 @@ public final class NarUtil
         "**/*~,**/#*#,**/.#*,**/%*%,**/._*," + "**/CVS,**/CVS/**,**/.cvsignore," + "**/SCCS,**/SCCS/**,**/vssver.scc,"
             + "**/.svn,**/.svn/**,**/.DS_Store";
 
+    /**
+     * Copies the files of sourceDirectory matching includes and excludes to destinationDirectory, in one scan of the
+     * source tree. Files which exist in the destination with the same size and modification time are skipped. The
+     * permissions are copied along.
+     * 
+     * @return the number of files copied
+     */
     public static int copyDirectoryStructure( File sourceDirectory, File destinationDirectory, String includes,
                                               String excludes )
         throws IOException
+    {
+        return copyDirectoryStructure( sourceDirectory, destinationDirectory, includes, excludes, false );
+    }
+
+    /**
+     * Copies the files of sourceDirectory as above. When link is set, files are hard linked instead of copied where
+     * the JDK and the file system allow it, so the destination shares content, modification time and permissions with
+     * the source and must not be modified in place.
+     * 
+     * @return the number of files copied or linked
+     */
+    public static int copyDirectoryStructure( File sourceDirectory, File destinationDirectory, String includes,
+                                              String excludes, boolean link )
+        throws IOException
     {
         if ( !sourceDirectory.exists() )
         {
             throw new IOException( "Source directory doesn't exists (" + sourceDirectory.getAbsolutePath() + ")." );
         }
 
-        List files = FileUtils.getFiles( sourceDirectory, includes, excludes );
-        String sourcePath = sourceDirectory.getAbsolutePath();
+        DirectoryScanner scanner = new DirectoryScanner();
+        scanner.setBasedir( sourceDirectory );
+        if ( includes != null )
+        {
+            scanner.setIncludes( StringUtils.split( includes, "," ) );
+        }
+        if ( excludes != null )
+        {
+            scanner.setExcludes( StringUtils.split( excludes, "," ) );
+        }
+        scanner.addDefaultExcludes();
+        scanner.scan();
 
         int copied = 0;
-        for ( Iterator i = files.iterator(); i.hasNext(); )
+        String[] files = scanner.getIncludedFiles();
+        for ( int i = 0; i < files.length; i++ )
         {
-            File file = (File) i.next();
-            String dest = file.getAbsolutePath();
-            dest = dest.substring( sourcePath.length() + 1 );
-            File destination = new File( destinationDirectory, dest );
-            if ( file.isFile() )
+            File file = new File( sourceDirectory, files[i] );
+            File destination = new File( destinationDirectory, files[i] );
+            if ( !file.isFile() )
+            {
+                throw new IOException( "Unknown file type: " + file.getAbsolutePath() );
+            }
+
+            if ( destination.isFile() && ( destination.length() == file.length() )
+                && ( destination.lastModified() == file.lastModified() ) )
             {
-                // destination = destination.getParentFile();
-                FileUtils.copyFile( file, destination );
-                copied++;
+                continue;
+            }
 
-                // copy executable bit
-                try
-                {
-                    // 1.6 only so coded using introspection
-                    // destination.setExecutable( file.canExecute(), false );
-                    Method canExecute = file.getClass().getDeclaredMethod( "canExecute", new Class[] {} );
-                    Method setExecutable =
-                        destination.getClass().getDeclaredMethod( "setExecutable",
-                                                                  new Class[] { boolean.class, boolean.class } );
-                    setExecutable.invoke( destination, new Object[] {
-                        (Boolean) canExecute.invoke( file, new Object[] {} ), Boolean.FALSE } );
-                }
-                catch ( SecurityException e )
-                {
-                    // ignored
-                }
-                catch ( NoSuchMethodException e )
-                {
-                    // ignored
-                }
-                catch ( IllegalArgumentException e )
-                {
-                    // ignored
-                }
-                catch ( IllegalAccessException e )
-                {
-                    // ignored
-                }
-                catch ( InvocationTargetException e )
-                {
-                    // ignored
-                }
+            File parent = destination.getParentFile();
+            if ( !parent.exists() && !parent.mkdirs() )
+            {
+                throw new IOException( "Could not create destination directory '" + parent.getAbsolutePath() + "'." );
             }
-            else if ( file.isDirectory() )
+
+            // the destination may be a hard link to an older source, it must not be written in place
+            if ( destination.exists() && !destination.delete() )
             {
-                if ( !destination.exists() && !destination.mkdirs() )
-                {
-                    throw new IOException( "Could not create destination directory '" + destination.getAbsolutePath()
-                        + "'." );
-                }
-                copied += copyDirectoryStructure( file, destination, includes, excludes );
+                throw new IOException( "Could not replace '" + destination.getAbsolutePath() + "'." );
             }
-            else
+            if ( !link || !createHardLink( destination, file ) )
             {
-                throw new IOException( "Unknown file type: " + file.getAbsolutePath() );
+                copyFile( file, destination );
             }
+            copied++;
         }
         return copied;
     }
 
+    /**
+     * Copies a file using channel transfer, keeping its modification time and permissions. Without POSIX permissions
+     * only the executable flag is kept.
+     */
+    private static void copyFile( File source, File destination )
+        throws IOException
+    {
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        try
+        {
+            in = new FileInputStream( source );
+            out = new FileOutputStream( destination );
+            FileChannel inChannel = in.getChannel();
+            FileChannel outChannel = out.getChannel();
+            long size = inChannel.size();
+            long position = 0;
+            while ( position < size )
+            {
+                position += inChannel.transferTo( position, size - position, outChannel );
+            }
+        }
+        finally
+        {
+            IOUtil.close( in );
+            IOUtil.close( out );
+        }
+
+        if ( !copyPosixPermissions( source, destination ) && source.canExecute() )
+        {
+            destination.setExecutable( true, false );
+        }
+        destination.setLastModified( source.lastModified() );
+    }
+
+    /**
+     * Creates a hard link in process, using java.nio.file if available.
+     * 
+     * @return false if the link could not be created, e.g. on another file system, in which case the file should be
+     *         copied.
+     */
+    private static boolean createHardLink( File link, File existing )
+    {
+        try
+        {
+            // 1.7 only so coded using introspection
+            // Files.createLink( link.toPath(), existing.toPath() );
+            Class files = Class.forName( "java.nio.file.Files" );
+            Class path = Class.forName( "java.nio.file.Path" );
+            Method toPath = File.class.getMethod( "toPath", new Class[] {} );
+            Method createLink = files.getMethod( "createLink", new Class[] { path, path } );
+            createLink.invoke( null, new Object[] { toPath.invoke( link, new Object[] {} ),
+                toPath.invoke( existing, new Object[] {} ) } );
+            return true;
+        }
+        catch ( ClassNotFoundException e )
+        {
+            return false;
+        }
+        catch ( NoSuchMethodException e )
+        {
+            return false;
+        }
+        catch ( IllegalAccessException e )
+        {
+            return false;
+        }
+        catch ( InvocationTargetException e )
+        {
+            // e.g. UnsupportedOperationException or IOException
+            return false;
+        }
+        catch ( SecurityException e )
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Copies the POSIX permissions of a file, using java.nio.file if available.
+     * 
+     * @return false if the permissions could not be copied, e.g. before 1.7 or on Windows.
+     */
+    private static boolean copyPosixPermissions( File source, File destination )
+    {
+        try
+        {
+            // 1.7 only so coded using introspection
+            // Files.setPosixFilePermissions( destination.toPath(), Files.getPosixFilePermissions( source.toPath() ) );
+            Class files = Class.forName( "java.nio.file.Files" );
+            Class path = Class.forName( "java.nio.file.Path" );
+            Class option = Class.forName( "java.nio.file.LinkOption" );
+            Method toPath = File.class.getMethod( "toPath", new Class[] {} );
+            Method getPermissions =
+                files.getMethod( "getPosixFilePermissions", new Class[] { path,
+                    Array.newInstance( option, 0 ).getClass() } );
+            Method setPermissions = files.getMethod( "setPosixFilePermissions", new Class[] { path, Set.class } );
+            Object permissions =
+                getPermissions.invoke( null, new Object[] { toPath.invoke( source, new Object[] {} ),
+                    Array.newInstance( option, 0 ) } );
+            setPermissions.invoke( null, new Object[] { toPath.invoke( destination, new Object[] {} ), permissions } );
+            return true;
+        }
+        catch ( ClassNotFoundException e )
+        {
+            return false;
+        }
+        catch ( NoSuchMethodException e )
+        {
+            return false;
+        }
+        catch ( IllegalAccessException e )
+        {
+            return false;
+        }
+        catch ( InvocationTargetException e )
+        {
+            // e.g. UnsupportedOperationException or IOException
+            return false;
+        }
+        catch ( SecurityException e )
+        {
+            return false;
+        }
+    }
+
     public static String getEnv( String envKey, String alternateSystemProperty, String defaultValue )
     {
         String envValue = null;
@@ -605,8 +843,22 @@ public final class NarUtil
     public static int runCommand( String cmd, String[] args, File workingDirectory, String[] env, TextStream out,
                                   TextStream err, TextStream dbg )
         throws MojoExecutionException, MojoFailureException
+    {
+        return runCommand( cmd, args, workingDirectory, env, out, err, dbg, 0 );
+    }
+
+    /**
+     * Runs a command, killing it when it takes longer than timeout.
+     * 
+     * @param timeout maximum time in milliseconds the command may run, 0 for no limit
+     * @throws MojoFailureException if the command timed out
+     */
+    public static int runCommand( String cmd, String[] args, File workingDirectory, String[] env, TextStream out,
+                                  TextStream err, TextStream dbg, long timeout )
+        throws MojoExecutionException, MojoFailureException
     {
         Commandline cmdLine = new Commandline();
+        Process process = null;
 
         try
         {
@@ -641,25 +893,84 @@ public final class NarUtil
                 }
             }
 
-            Process process = cmdLine.execute();
+            process = cmdLine.execute();
             StreamGobbler errorGobbler = new StreamGobbler( process.getErrorStream(), err );
             StreamGobbler outputGobbler = new StreamGobbler( process.getInputStream(), out );
+            Watchdog watchdog = timeout > 0 ? new Watchdog( process, timeout ) : null;
 
             errorGobbler.start();
             outputGobbler.start();
+            if ( watchdog != null )
+            {
+                watchdog.start();
+            }
             process.waitFor();
+            if ( watchdog != null )
+            {
+                watchdog.interrupt();
+            }
             dbg.println( "ExitValue: " + process.exitValue() );
-            final int timeout = 5000;
-            errorGobbler.join( timeout );
-            outputGobbler.join( timeout );
+            final int gobblerTimeout = 5000;
+            errorGobbler.join( gobblerTimeout );
+            outputGobbler.join( gobblerTimeout );
+            if ( ( watchdog != null ) && watchdog.isKilled() )
+            {
+                throw new MojoFailureException( cmd + " timed out after " + timeout + " ms" );
+            }
             return process.exitValue();
         }
+        catch ( MojoFailureException e )
+        {
+            throw e;
+        }
+        catch ( InterruptedException e )
+        {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException( "Interrupted while running " + cmdLine, e );
+        }
         catch ( Exception e )
         {
             throw new MojoExecutionException( "Could not launch " + cmdLine, e );
         }
     }
 
+    private static final class Watchdog
+        extends Thread
+    {
+        private Process process;
+
+        private long timeout;
+
+        private volatile boolean killed;
+
+        private Watchdog( Process process, long timeout )
+        {
+            this.process = process;
+            this.timeout = timeout;
+            setDaemon( true );
+        }
+
+        public void run()
+        {
+            try
+            {
+                Thread.sleep( timeout );
+            }
+            catch ( InterruptedException e )
+            {
+                return;
+            }
+            killed = true;
+            process.destroy();
+        }
+
+        private boolean isKilled()
+        {
+            return killed;
+        }
+    }
+
     private static final class StreamGobbler
         extends Thread
     {
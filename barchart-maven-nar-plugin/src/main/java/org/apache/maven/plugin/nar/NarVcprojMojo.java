@@ -3,7 +3,6 @@ package org.apache.maven.plugin.nar;
 import java.io.File;
 import java.io.IOException;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 
 import net.sf.antcontrib.cpptasks.CCTask;
@@ -154,20 +153,16 @@ public class NarVcprojMojo extends AbstractCompileMojo {
 		getJava().addIncludePaths(task, Library.EXECUTABLE);
 		
 		// add dependency include paths
-		for (Iterator i = getNarManager().getNarDependencies("compile")
+		for (Iterator i = getNarDependencyGraph("compile").getNodes()
 				.iterator(); i.hasNext();) {
 			// FIXME, handle multiple includes from one NAR
-			NarArtifact narDependency = (NarArtifact) i.next();
-			String binding = narDependency.getNarInfo().getBinding(getAOL(),
-					Library.STATIC);
+			NarDependencyGraph.Node narDependency = (NarDependencyGraph.Node) i.next();
+			String binding = narDependency.getBinding(Library.STATIC);
 			getLog().debug(
 					"Looking for " + narDependency + " found binding "
 							+ binding);
 			if (!binding.equals(Library.JNI)) {
-                File unpackDirectory = getUnpackDirectory();
-                File include =
-                    getLayout().getIncludeDirectory( unpackDirectory, narDependency.getArtifactId(),
-                                                     narDependency.getVersion() );
+                File include = narDependency.getIncludeDirectory();
                 getLog().debug("Looking for directory: " + include);
 				if (include.exists()) {
 					task.createIncludePath().setPath(include.getPath());
@@ -189,64 +184,32 @@ public class NarVcprojMojo extends AbstractCompileMojo {
 		if (type.equals(Library.SHARED) || type.equals(Library.JNI)
 				|| type.equals(Library.EXECUTABLE)) {
 
-			List depLibOrder = getDependencyLibOrder();
-			List depLibs = getNarManager().getNarDependencies("compile");
-
-			// reorder the libraries that come from the nar dependencies
-			// to comply with the order specified by the user
-			if ((depLibOrder != null) && !depLibOrder.isEmpty()) {
-
-				List tmp = new LinkedList();
-
-				for (Iterator i = depLibOrder.iterator(); i.hasNext();) {
-
-					String depToOrderName = (String) i.next();
-
-					for (Iterator j = depLibs.iterator(); j.hasNext();) {
-
-						NarArtifact dep = (NarArtifact) j.next();
-						String depName = dep.getGroupId() + ":"
-								+ dep.getArtifactId();
-
-						if (depName.equals(depToOrderName)) {
-
-							tmp.add(dep);
-							j.remove();
-						}
-					}
-				}
-
-				tmp.addAll(depLibs);
-				depLibs = tmp;
-			}
+			// the libraries named in narDependencyLibOrder go first, the
+			// others in dependency order
+			List depLibs = getNarDependencyGraph("compile").getLinkOrder(
+					getDependencyLibOrder());
 
 			for (Iterator i = depLibs.iterator(); i.hasNext();) {
 
-				NarArtifact dependency = (NarArtifact) i.next();
+				NarDependencyGraph.Node dependency = (NarDependencyGraph.Node) i.next();
 
 				// FIXME no handling of "local"
 
 				// FIXME, no way to override this at this stage
-				String binding = dependency.getNarInfo().getBinding(getAOL(),
-						Library.STATIC);
+				String binding = dependency.getBinding(Library.STATIC);
 				getLog().debug("Using Binding: " + binding);
-				AOL aol = getAOL();
-				aol = dependency.getNarInfo().getAOL(getAOL());
-				getLog().debug("Using Library AOL: " + aol.toString());
+				getLog().debug("Using Library AOL: " + dependency.getAOL().toString());
 
                 if ( !binding.equals( Library.JNI ) && !binding.equals( Library.NONE ) && !binding.equals( Library.EXECUTABLE) )
                 {
-                    File unpackDirectory = getUnpackDirectory();
-                    File dir =
-                        getLayout().getLibDirectory( unpackDirectory, dependency.getArtifactId(),
-                                                     dependency.getVersion(), aol.toString(), binding );
+                    File dir = dependency.getLibDirectory( binding );
 					getLog().debug("Looking for Library Directory: " + dir);
 					if (dir.exists()) {
 						LibrarySet libSet = new LibrarySet();
 						libSet.setProject(antProject);
 
 						// FIXME, no way to override
-						String libs = dependency.getNarInfo().getLibs(getAOL());
+						String libs = dependency.getLibs();
 						if ((libs != null) && !libs.equals("")) {
 							getLog().debug("Using LIBS = " + libs);
 							libSet.setLibs(new CUtil.StringArrayBuilder(libs));
@@ -262,8 +225,7 @@ public class NarVcprojMojo extends AbstractCompileMojo {
 
 					// FIXME, look again at this, for multiple dependencies we
 					// may need to remove duplicates
-					String options = dependency.getNarInfo().getOptions(
-							getAOL());
+					String options = dependency.getOptions();
 					if ((options != null) && !options.equals("")) {
 						getLog().debug("Using OPTIONS = " + options);
 						LinkerArgument arg = new LinkerArgument();
@@ -271,8 +233,7 @@ public class NarVcprojMojo extends AbstractCompileMojo {
 						linkerDefinition.addConfiguredLinkerArg(arg);
 					}
 
-					String sysLibs = dependency.getNarInfo().getSysLibs(
-							getAOL());
+					String sysLibs = dependency.getSysLibs();
 
 					if ((sysLibs != null) && !sysLibs.equals("")) {
 						getLog().debug("Using SYSLIBS = " + sysLibs);
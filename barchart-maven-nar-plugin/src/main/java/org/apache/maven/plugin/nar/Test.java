@@ -62,6 +62,13 @@ public class Test
      */
     private List/* <String> */args = new ArrayList();
 
+    /**
+     * Maximum time in seconds this test may run. Defaults to 0, which uses the testTimeout of the nar-test goal.
+     * 
+     * @parameter expression=""
+     */
+    private int timeout = 0;
+
     public final String getName()
         throws MojoFailureException
     {
@@ -86,4 +93,9 @@ public class Test
     {
         return args;
     }
+
+    public final int getTimeout()
+    {
+        return timeout;
+    }
 }
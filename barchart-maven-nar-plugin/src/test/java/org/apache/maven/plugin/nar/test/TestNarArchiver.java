@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.maven.plugin.nar.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import junit.framework.TestCase;
+
+import org.apache.maven.plugin.nar.NarArchiver;
+import org.codehaus.plexus.logging.Logger;
+import org.codehaus.plexus.logging.console.ConsoleLogger;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Tests the concurrent nar archiver.
+ */
+public class TestNarArchiver
+    extends TestCase
+{
+    private File dir;
+
+    protected void setUp()
+        throws Exception
+    {
+        dir = File.createTempFile( "nar-archiver", "" );
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        FileUtils.deleteDirectory( dir );
+    }
+
+    public final void testEntriesInNameOrder()
+        throws Exception
+    {
+        NarArchiver archiver = createArchiver( 2 );
+        archiver.setTimestamp( 1000000000000L );
+        archiver.addFile( write( "lib/b.so", "b" ), "lib/b.so" );
+        archiver.addFile( write( "include/a.h", "a" ), "include/a.h" );
+        archiver.addFile( write( "lib/a.so", "a" ), "lib/a.so" );
+        File nar = new File( dir, "test.nar" );
+        archiver.setDestFile( nar );
+        archiver.createArchive();
+
+        List names = new ArrayList();
+        ZipFile zip = new ZipFile( nar );
+        try
+        {
+            for ( Enumeration e = zip.entries(); e.hasMoreElements(); )
+            {
+                ZipEntry entry = (ZipEntry) e.nextElement();
+                names.add( entry.getName() );
+                if ( !entry.isDirectory() )
+                {
+                    InputStream in = zip.getInputStream( entry );
+                    try
+                    {
+                        assertEquals( entry.getName().substring( entry.getName().lastIndexOf( '/' ) + 1,
+                                                                 entry.getName().lastIndexOf( '.' ) ),
+                                      IOUtil.toString( in ) );
+                    }
+                    finally
+                    {
+                        in.close();
+                    }
+                }
+            }
+        }
+        finally
+        {
+            zip.close();
+        }
+        assertEquals( "[include/, include/a.h, lib/, lib/a.so, lib/b.so]", names.toString() );
+    }
+
+    public final void testFailureDoesNotHang()
+        throws Exception
+    {
+        // more entries than the archiver keeps in flight, so some are still queued when the first one fails
+        NarArchiver archiver = createArchiver( 1 );
+        File first = write( "lib/a0.so", "a" );
+        archiver.addFile( first, "lib/a0.so" );
+        for ( int i = 1; i < 10; i++ )
+        {
+            archiver.addFile( write( "lib/a" + i + ".so", "a" ), "lib/a" + i + ".so" );
+        }
+        first.delete();
+        archiver.setDestFile( new File( dir, "test.nar" ) );
+        try
+        {
+            archiver.createArchive();
+            fail( "archive created from a missing file" );
+        }
+        catch ( Exception e )
+        {
+            // expected
+        }
+    }
+
+    private NarArchiver createArchiver( int threads )
+    {
+        NarArchiver archiver = new NarArchiver();
+        archiver.enableLogging( new ConsoleLogger( Logger.LEVEL_DISABLED, "test" ) );
+        archiver.setThreads( threads );
+        return archiver;
+    }
+
+    private File write( String name, String content )
+        throws IOException
+    {
+        File file = new File( dir, name );
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream( file );
+        try
+        {
+            out.write( content.getBytes( "UTF-8" ) );
+        }
+        finally
+        {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.maven.plugin.nar.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugin.nar.NarBufferedLog;
+
+/**
+ * Tests that buffered logs keep the messages of concurrent tasks together and in order.
+ */
+public class TestNarBufferedLog
+    extends TestCase
+{
+    public final void testOrder()
+        throws Exception
+    {
+        RecordingLog target = new RecordingLog( true );
+        NarBufferedLog log = new NarBufferedLog( target, "[shared] " );
+        log.info( "compiling" );
+        log.debug( "command line" );
+        log.warn( "deprecated" );
+        Exception error = new Exception( "failed" );
+        log.error( error );
+        log.info( "done", error );
+        assertTrue( target.messages.isEmpty() );
+
+        log.flush();
+        assertEquals( Arrays.asList( new String[] { "info [shared] compiling", "debug [shared] command line",
+            "warn [shared] deprecated", "error [shared] failed failed", "info [shared] done failed" } ),
+                      target.messages );
+
+        // flushed messages are written only once
+        log.flush();
+        assertEquals( 5, target.messages.size() );
+    }
+
+    public final void testDebugDisabled()
+        throws Exception
+    {
+        RecordingLog target = new RecordingLog( false );
+        NarBufferedLog log = new NarBufferedLog( target, null );
+        log.debug( "hidden" );
+        log.debug( "hidden", new Exception() );
+        log.info( "shown" );
+        log.flush();
+        assertEquals( Arrays.asList( new String[] { "info shown" } ), target.messages );
+    }
+
+    public final void testConcurrentTasks()
+        throws Exception
+    {
+        RecordingLog target = new RecordingLog( true );
+        final NarBufferedLog[] logs = new NarBufferedLog[4];
+        Thread[] threads = new Thread[logs.length];
+        for ( int i = 0; i < logs.length; i++ )
+        {
+            final NarBufferedLog log = new NarBufferedLog( target, "[" + i + "] " );
+            logs[i] = log;
+            threads[i] = new Thread()
+            {
+                public void run()
+                {
+                    for ( int j = 0; j < 100; j++ )
+                    {
+                        log.info( "line " + j );
+                    }
+                }
+            };
+        }
+        for ( int i = threads.length - 1; i >= 0; i-- )
+        {
+            threads[i].start();
+        }
+        for ( int i = 0; i < threads.length; i++ )
+        {
+            threads[i].join();
+        }
+        assertTrue( target.messages.isEmpty() );
+
+        // flushed in task order, the lines of each task stay together whatever order the tasks ran in
+        for ( int i = 0; i < logs.length; i++ )
+        {
+            logs[i].flush();
+        }
+        assertEquals( 400, target.messages.size() );
+        for ( int i = 0; i < target.messages.size(); i++ )
+        {
+            assertEquals( "info [" + ( i / 100 ) + "] line " + ( i % 100 ), target.messages.get( i ) );
+        }
+    }
+
+    private static class RecordingLog
+        implements Log
+    {
+        private final boolean debug;
+
+        private final List messages = new ArrayList();
+
+        RecordingLog( boolean debug )
+        {
+            this.debug = debug;
+        }
+
+        private void add( String level, CharSequence content, Throwable error )
+        {
+            messages.add( level + " " + content + ( error != null ? " " + error.getMessage() : "" ) );
+        }
+
+        public boolean isDebugEnabled()
+        {
+            return debug;
+        }
+
+        public void debug( CharSequence content )
+        {
+            add( "debug", content, null );
+        }
+
+        public void debug( CharSequence content, Throwable error )
+        {
+            add( "debug", content, error );
+        }
+
+        public void debug( Throwable error )
+        {
+            add( "debug", null, error );
+        }
+
+        public boolean isInfoEnabled()
+        {
+            return true;
+        }
+
+        public void info( CharSequence content )
+        {
+            add( "info", content, null );
+        }
+
+        public void info( CharSequence content, Throwable error )
+        {
+            add( "info", content, error );
+        }
+
+        public void info( Throwable error )
+        {
+            add( "info", null, error );
+        }
+
+        public boolean isWarnEnabled()
+        {
+            return true;
+        }
+
+        public void warn( CharSequence content )
+        {
+            add( "warn", content, null );
+        }
+
+        public void warn( CharSequence content, Throwable error )
+        {
+            add( "warn", content, error );
+        }
+
+        public void warn( Throwable error )
+        {
+            add( "warn", null, error );
+        }
+
+        public boolean isErrorEnabled()
+        {
+            return true;
+        }
+
+        public void error( CharSequence content )
+        {
+            add( "error", content, null );
+        }
+
+        public void error( CharSequence content, Throwable error )
+        {
+            add( "error", content, error );
+        }
+
+        public void error( Throwable error )
+        {
+            add( "error", null, error );
+        }
+    }
+}
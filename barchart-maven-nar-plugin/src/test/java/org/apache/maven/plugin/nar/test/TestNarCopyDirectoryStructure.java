@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.maven.plugin.nar.test;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import org.apache.maven.plugin.nar.NarUtil;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Tests copying and linking directory structures.
+ */
+public class TestNarCopyDirectoryStructure
+    extends TestCase
+{
+    private File dir;
+
+    private File source;
+
+    private File destination;
+
+    protected void setUp()
+        throws Exception
+    {
+        dir = File.createTempFile( "nar-copy", "" );
+        dir.delete();
+        dir.mkdirs();
+        source = new File( dir, "source" );
+        destination = new File( dir, "destination" );
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        FileUtils.deleteDirectory( dir );
+    }
+
+    public final void testSkipUnchanged()
+        throws Exception
+    {
+        File a = write( "a.h", "#define A 1\n" );
+        write( "sub/b.h", "#define B 1\n" );
+        write( ".svn/entries", "excluded" );
+
+        assertEquals( 2, copy( false ) );
+        assertEquals( "#define A 1\n", read( "a.h" ) );
+        assertEquals( "#define B 1\n", read( "sub/b.h" ) );
+        assertFalse( new File( destination, ".svn" ).exists() );
+        assertEquals( a.lastModified(), new File( destination, "a.h" ).lastModified() );
+
+        // nothing changed
+        assertEquals( 0, copy( false ) );
+
+        // a changed file is copied again, even with the same size
+        write( "a.h", "#define A 2\n" );
+        a.setLastModified( a.lastModified() - 10000 );
+        assertEquals( 1, copy( false ) );
+        assertEquals( "#define A 2\n", read( "a.h" ) );
+        assertEquals( 0, copy( false ) );
+    }
+
+    public final void testPermissions()
+        throws Exception
+    {
+        File script = write( "bin/run.sh", "#!/bin/sh\n" );
+        script.setExecutable( true, false );
+        File data = write( "bin/run.dat", "data" );
+        data.setExecutable( false, false );
+
+        assertEquals( 2, copy( false ) );
+        assertTrue( new File( destination, "bin/run.sh" ).canExecute() );
+        assertFalse( new File( destination, "bin/run.dat" ).canExecute() );
+
+        // a changed file keeps its executable bit
+        write( "bin/run.sh", "#!/bin/sh\nexit 0\n" );
+        assertEquals( 1, copy( false ) );
+        assertTrue( new File( destination, "bin/run.sh" ).canExecute() );
+    }
+
+    public final void testLink()
+        throws Exception
+    {
+        File a = write( "a.h", "#define A 1\n" );
+        a.setExecutable( true, false );
+
+        assertEquals( 1, copy( true ) );
+        File linked = new File( destination, "a.h" );
+        assertEquals( "#define A 1\n", read( "a.h" ) );
+        assertTrue( linked.canExecute() );
+        assertEquals( 0, copy( true ) );
+        try
+        {
+            Class.forName( "java.nio.file.Files" );
+        }
+        catch ( ClassNotFoundException e )
+        {
+            // copied without hard links before 1.7
+            return;
+        }
+
+        // a hard link follows the source when it is written in place
+        FileUtils.fileWrite( a.getPath(), "#define A 2\n" );
+        assertEquals( "#define A 2\n", read( "a.h" ) );
+
+        // a replaced source is copied over the link without touching the old file
+        File old = new File( dir, "old.h" );
+        assertTrue( a.renameTo( old ) );
+        write( "a.h", "#define A 3 /* new */\n" );
+        assertEquals( 1, copy( false ) );
+        assertEquals( "#define A 3 /* new */\n", read( "a.h" ) );
+        assertEquals( "#define A 2\n", FileUtils.fileRead( old ) );
+    }
+
+    private int copy( boolean link )
+        throws Exception
+    {
+        return NarUtil.copyDirectoryStructure( source, destination, null, NarUtil.DEFAULT_EXCLUDES, link );
+    }
+
+    private File write( String name, String content )
+        throws Exception
+    {
+        File file = new File( source, name );
+        file.getParentFile().mkdirs();
+        FileUtils.fileWrite( file.getPath(), content );
+        return file;
+    }
+
+    private String read( String name )
+        throws Exception
+    {
+        return FileUtils.fileRead( new File( destination, name ) );
+    }
+}
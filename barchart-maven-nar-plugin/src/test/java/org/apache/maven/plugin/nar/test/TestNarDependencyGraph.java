@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.maven.plugin.nar.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.DefaultArtifact;
+import org.apache.maven.artifact.handler.DefaultArtifactHandler;
+import org.apache.maven.artifact.versioning.VersionRange;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.apache.maven.plugin.nar.AOL;
+import org.apache.maven.plugin.nar.NarArtifact;
+import org.apache.maven.plugin.nar.NarDependencyGraph;
+import org.apache.maven.plugin.nar.NarInfo;
+import org.apache.maven.plugin.nar.NarLayout;
+import org.apache.maven.plugin.nar.NarLayout21;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Tests the dependency edges, link order and directories of the nar dependency graph.
+ */
+public class TestNarDependencyGraph
+    extends TestCase
+{
+    private static final AOL AOL = new AOL( "amd64-Linux-gpp" );
+
+    private File dir;
+
+    private NarLayout layout;
+
+    protected void setUp()
+        throws Exception
+    {
+        dir = File.createTempFile( "nar-dependency-graph", "" );
+        dir.delete();
+        dir.mkdirs();
+        layout = new NarLayout21( new SystemStreamLog() );
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        FileUtils.deleteDirectory( dir );
+    }
+
+    public final void testTopologicalOrder()
+        throws Exception
+    {
+        // maven resolves c (a transitive dependency of a) before a
+        List artifacts = new ArrayList();
+        artifacts.add( createArtifact( "c", new String[] { "a", "b", "c" } ) );
+        artifacts.add( createArtifact( "a", new String[] { "a" } ) );
+        artifacts.add( createArtifact( "d", new String[] { "d" } ) );
+        artifacts.add( createArtifact( "b", new String[] { "a", "b" } ) );
+        artifacts.add( createArtifact( "a", new String[] { "d", "a" } ) );
+        NarDependencyGraph graph = createGraph( artifacts );
+
+        assertFalse( graph.isEmpty() );
+        assertEquals( "c a d b", keys( graph.getNodes() ) );
+        assertEquals( 4, graph.getArtifacts().size() );
+        assertEquals( "b", keys( graph.getNode( "test:a" ).getDependencies() ) );
+        assertEquals( "c", keys( graph.getNode( "test:b" ).getDependencies() ) );
+        assertEquals( "", keys( graph.getNode( "test:d" ).getDependencies() ) );
+        assertNull( graph.getNode( "test:x" ) );
+
+        // every node before the ones it depends on, otherwise in maven order
+        assertEquals( "a d b c", keys( graph.getTopologicalOrder() ) );
+        assertEquals( "a d b c", keys( graph.getLinkOrder( null ) ) );
+        assertEquals( "c d a b", keys( graph.getLinkOrder( Arrays.asList( new String[] { "test:c", "test:x",
+            "test:d", "test:c" } ) ) ) );
+    }
+
+    public final void testMavenOrderIsKept()
+        throws Exception
+    {
+        List artifacts = new ArrayList();
+        artifacts.add( createArtifact( "a", new String[] { "a" } ) );
+        artifacts.add( createArtifact( "b", new String[] { "b" } ) );
+        artifacts.add( createArtifact( "c", new String[] { "a", "c" } ) );
+        NarDependencyGraph graph = createGraph( artifacts );
+
+        assertEquals( "a b c", keys( graph.getTopologicalOrder() ) );
+    }
+
+    public final void testCycleKeepsNodes()
+        throws Exception
+    {
+        List artifacts = new ArrayList();
+        artifacts.add( createArtifact( "a", new String[] { "b", "a" } ) );
+        artifacts.add( createArtifact( "b", new String[] { "a", "b" } ) );
+        artifacts.add( createArtifact( "c", new String[] { "c" } ) );
+        NarDependencyGraph graph = createGraph( artifacts );
+
+        assertEquals( "c a b", keys( graph.getTopologicalOrder() ) );
+    }
+
+    public final void testNarInfo()
+        throws Exception
+    {
+        NarArtifact artifact = createArtifact( "a", new String[] { "a" } );
+        artifact.getNarInfo().setBinding( AOL, "static" );
+        NarDependencyGraph graph = createGraph( Arrays.asList( new Object[] { artifact } ) );
+
+        NarDependencyGraph.Node node = graph.getNode( "test:a" );
+        assertSame( artifact, node.getArtifact() );
+        assertEquals( AOL.toString(), node.getAOL().toString() );
+        assertEquals( "static", node.getBinding( "shared" ) );
+        assertEquals( "a-1.0", node.getLibs() );
+        assertNull( node.getSysLibs() );
+        assertNull( node.getOptions() );
+    }
+
+    public final void testDirectories()
+        throws Exception
+    {
+        NarArtifact artifact = createArtifact( "a", new String[] { "a" } );
+        NarDependencyGraph.Node node = createGraph( Arrays.asList( new Object[] { artifact } ) ).getNode( "test:a" );
+        File first = new File( dir, "first" );
+        File second = new File( dir, "second" );
+
+        // nothing unpacked yet, so the first unpack directory
+        assertEquals( layout.getIncludeDirectory( first, "a", "1.0" ), node.getIncludeDirectory() );
+        assertEquals( layout.getLibDirectory( first, "a", "1.0", AOL.toString(), "shared" ),
+                      node.getLibDirectory( "shared" ) );
+
+        // directories are looked up when asked for, after the graph was built
+        File include = layout.getIncludeDirectory( second, "a", "1.0" );
+        include.mkdirs();
+        File lib = layout.getLibDirectory( second, "a", "1.0", AOL.toString(), "shared" );
+        lib.mkdirs();
+        assertEquals( include, node.getIncludeDirectory() );
+        assertEquals( lib, node.getLibDirectory( "shared" ) );
+    }
+
+    private NarDependencyGraph createGraph( List artifacts )
+    {
+        return new NarDependencyGraph( artifacts, AOL, layout, new File[] { new File( dir, "first" ),
+            new File( dir, "second" ) } );
+    }
+
+    /*
+     * Creates a nar dependency of the module test:module, reached through the given artifacts.
+     */
+    private static NarArtifact createArtifact( String artifactId, String[] path )
+        throws Exception
+    {
+        Artifact artifact =
+            new DefaultArtifact( "test", artifactId, VersionRange.createFromVersion( "1.0" ), Artifact.SCOPE_COMPILE,
+                                 "nar", null, new DefaultArtifactHandler( "nar" ), false );
+        List trail = new ArrayList();
+        trail.add( "test:module:jar:1.0" );
+        for ( int i = 0; i < path.length; i++ )
+        {
+            trail.add( "test:" + path[i] + ":nar:1.0" );
+        }
+        artifact.setDependencyTrail( trail );
+        return new NarArtifact( artifact, new NarInfo( "test", artifactId, "1.0", new SystemStreamLog() ) );
+    }
+
+    private static String keys( List nodes )
+    {
+        StringBuffer buffer = new StringBuffer();
+        for ( Iterator i = nodes.iterator(); i.hasNext(); )
+        {
+            buffer.append( ( (NarDependencyGraph.Node) i.next() ).getArtifact().getArtifactId() );
+            if ( i.hasNext() )
+            {
+                buffer.append( ' ' );
+            }
+        }
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.maven.plugin.nar.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.DefaultArtifact;
+import org.apache.maven.artifact.handler.DefaultArtifactHandler;
+import org.apache.maven.artifact.repository.ArtifactRepository;
+import org.apache.maven.artifact.repository.DefaultArtifactRepository;
+import org.apache.maven.artifact.repository.layout.DefaultRepositoryLayout;
+import org.apache.maven.artifact.versioning.VersionRange;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.apache.maven.plugin.nar.Linker;
+import org.apache.maven.plugin.nar.NarInfo;
+import org.apache.maven.plugin.nar.NarManager;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Tests that the NarInfo of dependencies is cached by artifact and file, and read again once the file changes.
+ */
+public class TestNarInfoCache
+    extends TestCase
+{
+    private File dir;
+
+    private ArtifactRepository repository;
+
+    private Map narInfos;
+
+    protected void setUp()
+        throws Exception
+    {
+        dir = File.createTempFile( "nar-info-cache", "" );
+        dir.delete();
+        dir.mkdirs();
+        repository = new DefaultArtifactRepository( "local", dir.toURI().toURL().toString(), new DefaultRepositoryLayout() );
+        narInfos = new HashMap();
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        FileUtils.deleteDirectory( dir );
+    }
+
+    public final void testCached()
+        throws Exception
+    {
+        Artifact artifact = createArtifact( "a", "1.0" );
+        File file = writeJar( artifact, "first" );
+
+        assertEquals( "first", getValue( createManager(), artifact ) );
+        assertEquals( 1, narInfos.size() );
+
+        // served from the cache, also to another manager sharing it
+        getCachedProperties().setProperty( "value", "cached" );
+        assertEquals( "cached", getValue( createManager(), artifact ) );
+        assertEquals( 1, narInfos.size() );
+
+        // the NarInfo returned is a copy, changing it does not change the cache
+        NarInfo info = createManager().getNarInfo( artifact );
+        info.read( properties( "value", "changed" ) );
+        assertEquals( "cached", getValue( createManager(), artifact ) );
+
+        // a file with another modification time is read again
+        assertTrue( file.setLastModified( file.lastModified() - 10000 ) );
+        assertEquals( "first", getValue( createManager(), artifact ) );
+        assertEquals( 2, narInfos.size() );
+
+        // as is a file of another size
+        long lastModified = file.lastModified();
+        writeJar( artifact, "second one" );
+        assertTrue( file.setLastModified( lastModified ) );
+        assertEquals( "second one", getValue( createManager(), artifact ) );
+        assertEquals( 3, narInfos.size() );
+    }
+
+    public final void testArtifacts()
+        throws Exception
+    {
+        Artifact a = createArtifact( "a", "1.0" );
+        Artifact b = createArtifact( "b", "1.0" );
+        Artifact a2 = createArtifact( "a", "2.0" );
+        writeJar( a, "a" );
+        writeJar( b, "b" );
+        writeJar( a2, "a2" );
+
+        NarManager manager = createManager();
+        assertEquals( "a", getValue( manager, a ) );
+        assertEquals( "b", getValue( manager, b ) );
+        assertEquals( "a2", getValue( manager, a2 ) );
+        assertEquals( 3, narInfos.size() );
+        assertEquals( "a", getValue( manager, a ) );
+        assertEquals( 3, narInfos.size() );
+    }
+
+    public final void testNoNarInfo()
+        throws Exception
+    {
+        Artifact artifact = createArtifact( "a", "1.0" );
+        File file = new File( repository.getBasedir(), repository.pathOf( artifact ) );
+        file.getParentFile().mkdirs();
+        JarOutputStream out = new JarOutputStream( new FileOutputStream( file ) );
+        out.putNextEntry( new JarEntry( "META-INF/other.properties" ) );
+        out.close();
+
+        NarManager manager = createManager();
+        assertNull( manager.getNarInfo( artifact ) );
+        assertEquals( 1, narInfos.size() );
+        assertNull( manager.getNarInfo( artifact ) );
+        assertEquals( 1, narInfos.size() );
+
+        // a missing file is not cached
+        assertNull( manager.getNarInfo( createArtifact( "b", "1.0" ) ) );
+        assertEquals( 1, narInfos.size() );
+    }
+
+    private NarManager createManager()
+        throws Exception
+    {
+        NarManager manager =
+            new NarManager( new SystemStreamLog(), repository, null, "amd64", "Linux", new Linker( "g++" ) );
+        manager.setNarInfoCache( narInfos );
+        return manager;
+    }
+
+    private Properties getCachedProperties()
+    {
+        Iterator i = narInfos.values().iterator();
+        Properties properties = (Properties) i.next();
+        assertFalse( i.hasNext() );
+        return properties;
+    }
+
+    private static String getValue( NarManager manager, Artifact artifact )
+        throws Exception
+    {
+        return manager.getNarInfo( artifact ).getProperty( null, "value" );
+    }
+
+    private File writeJar( Artifact artifact, String value )
+        throws Exception
+    {
+        File file = new File( repository.getBasedir(), repository.pathOf( artifact ) );
+        file.getParentFile().mkdirs();
+        JarOutputStream out = new JarOutputStream( new FileOutputStream( file ) );
+        try
+        {
+            out.putNextEntry( new JarEntry( "META-INF/nar/" + artifact.getGroupId() + "/" + artifact.getArtifactId()
+                + "/" + NarInfo.NAR_PROPERTIES ) );
+            properties( "value", value ).store( out, null );
+            out.closeEntry();
+        }
+        finally
+        {
+            out.close();
+        }
+        return file;
+    }
+
+    private static Properties properties( String key, String value )
+    {
+        Properties properties = new Properties();
+        properties.setProperty( key, value );
+        return properties;
+    }
+
+    private static Artifact createArtifact( String artifactId, String version )
+    {
+        return new DefaultArtifact( "test", artifactId, VersionRange.createFromVersion( version ),
+                                    Artifact.SCOPE_COMPILE, "nar", null, new DefaultArtifactHandler( "nar" ), false );
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.maven.plugin.nar.test;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import junit.framework.TestCase;
+
+import org.apache.maven.plugin.nar.NarJavahIndex;
+import org.apache.maven.plugin.nar.NarJniHeaderWriter;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Tests the javah index and the JNI headers written from it against the headers of "javac -h".
+ */
+public class TestNarJavah
+    extends TestCase
+{
+    private static final String FIXTURE =
+        "package fixture;\n"
+        + "public class Natives {\n"
+        + "    public static final int COUNT = 3;\n"
+        + "    public static final long BIG = 1L << 40;\n"
+        + "    public static final double RATIO = 0.5;\n"
+        + "    public static final float LOW = Float.NEGATIVE_INFINITY;\n"
+        + "    public static final String NAME = \"natives\";\n"
+        + "    public final int notStatic = 1;\n"
+        + "    public native int add(int a, int b);\n"
+        + "    public native long add(long a, long b);\n"
+        + "    public static native void fail(IllegalStateException e, Object o, String s, Class c);\n"
+        + "    public native String[] names(byte[] data, int[][] matrix, Exception[] errors);\n"
+        + "    public native Exception last();\n"
+        + "    public native void under_score$dollar();\n"
+        + "    public static class Inner {\n"
+        + "        public static final char C = 'c';\n"
+        + "        public native boolean run(short s, char c, float f, double d);\n"
+        + "    }\n"
+        + "}\n";
+
+    private static final String PLAIN =
+        "package fixture;\n" + "public class Plain {\n" + "    public static final int X = 1;\n" + "}\n";
+
+    private File dir;
+
+    private File classes;
+
+    private File expected;
+
+    protected void setUp()
+        throws Exception
+    {
+        dir = File.createTempFile( "nar-javah", "" );
+        dir.delete();
+        dir.mkdirs();
+        classes = new File( dir, "classes" );
+        expected = new File( dir, "expected" );
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        FileUtils.deleteDirectory( dir );
+    }
+
+    public final void testSignature()
+        throws Exception
+    {
+        if ( !compile() )
+        {
+            return;
+        }
+        NarJavahIndex.Entry entry = NarJavahIndex.index( new File( classes, "fixture/Natives.class" ), null );
+        assertEquals( "fixture.Natives", entry.getClassName() );
+        assertTrue( entry.hasNatives() );
+        assertEquals( "add(II)I add(JJ)J"
+            + " static:fail(Ljava/lang/IllegalStateException;Ljava/lang/Object;Ljava/lang/String;Ljava/lang/Class;)V"
+            + " names([B[[I[Ljava/lang/Exception;)[Ljava/lang/String; last()Ljava/lang/Exception;"
+            + " under_score$dollar()V"
+            + " COUNT:I=3 BIG:J=1099511627776 RATIO:D=0.5 LOW:F=-Infinity", entry.getSignature() );
+
+        NarJavahIndex.Entry resolved = NarJavahIndex.resolve( entry, getClassLoader() );
+        assertEquals( entry.getSignature() + " !java/lang/Exception !java/lang/IllegalStateException",
+                      resolved.getSignature() );
+        assertTrue( resolved.isThrowable( "java/lang/Exception" ) );
+        assertFalse( resolved.isThrowable( "java/lang/Object" ) );
+        // resolving again replaces the types instead of adding them twice
+        assertEquals( resolved.getSignature(), NarJavahIndex.resolve( resolved, getClassLoader() ).getSignature() );
+
+        NarJavahIndex.Entry plain = NarJavahIndex.index( new File( classes, "fixture/Plain.class" ), null );
+        assertEquals( "fixture.Plain", plain.getClassName() );
+        assertFalse( plain.hasNatives() );
+        assertEquals( "", plain.getSignature() );
+    }
+
+    public final void testIndexSaveAndLoad()
+        throws Exception
+    {
+        if ( !compile() )
+        {
+            return;
+        }
+        File classFile = new File( classes, "fixture/Natives.class" );
+        NarJavahIndex.Entry entry = NarJavahIndex.resolve( NarJavahIndex.index( classFile, null ), getClassLoader() );
+        Map entries = new HashMap();
+        entries.put( "fixture/Natives.class", entry );
+
+        File file = new File( dir, "javah.index" );
+        NarJavahIndex index = new NarJavahIndex( file );
+        index.setEntries( entries );
+        index.save();
+
+        NarJavahIndex loaded = new NarJavahIndex( file );
+        loaded.load();
+        NarJavahIndex.Entry reloaded = loaded.get( "fixture/Natives.class" );
+        assertEquals( entry.getClassName(), reloaded.getClassName() );
+        assertEquals( entry.getSignature(), reloaded.getSignature() );
+        assertTrue( reloaded.isUpToDate( classFile ) );
+        assertNull( loaded.get( "fixture/Plain.class" ) );
+
+        // an unchanged class file is not scanned again
+        assertEquals( entry.getSignature(), NarJavahIndex.index( classFile, reloaded ).getSignature() );
+    }
+
+    public final void testHeadersMatchJavac()
+        throws Exception
+    {
+        if ( !compile() )
+        {
+            return;
+        }
+        File headers = new File( dir, "headers" );
+        NarJniHeaderWriter writer = new NarJniHeaderWriter( headers );
+        String[] names = { "Natives", "Natives$Inner" };
+        for ( int i = 0; i < names.length; i++ )
+        {
+            NarJavahIndex.Entry entry =
+                NarJavahIndex.resolve( NarJavahIndex.index( new File( classes, "fixture/" + names[i] + ".class" ),
+                                                            null ), getClassLoader() );
+            assertTrue( writer.write( entry ) );
+            // an unchanged header is not written again
+            assertFalse( writer.write( entry ) );
+        }
+
+        String[] files = { "fixture_Natives.h", "fixture_Natives_Inner.h" };
+        for ( int i = 0; i < files.length; i++ )
+        {
+            assertEquals( files[i], FileUtils.fileRead( new File( expected, files[i] ) ),
+                          FileUtils.fileRead( new File( headers, files[i] ) ) );
+        }
+        assertEquals( files.length, expected.list().length );
+    }
+
+    /*
+     * Compiles the fixture, writing the headers of javac into the expected directory. Returns false when no compiler
+     * is available, e.g. when running on a JRE.
+     */
+    private boolean compile()
+        throws Exception
+    {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if ( compiler == null )
+        {
+            return false;
+        }
+        File sources = new File( dir, "src/fixture" );
+        sources.mkdirs();
+        File natives = new File( sources, "Natives.java" );
+        File plain = new File( sources, "Plain.java" );
+        FileUtils.fileWrite( natives.getPath(), FIXTURE );
+        FileUtils.fileWrite( plain.getPath(), PLAIN );
+        classes.mkdirs();
+        expected.mkdirs();
+        int result =
+            compiler.run( null, null, null, new String[] { "-d", classes.getPath(), "-h", expected.getPath(),
+                natives.getPath(), plain.getPath() } );
+        assertEquals( 0, result );
+        return true;
+    }
+
+    private ClassLoader getClassLoader()
+        throws Exception
+    {
+        return new URLClassLoader( new URL[] { classes.toURI().toURL() }, null );
+    }
+}
@@ -20,6 +20,13 @@
 package org.apache.maven.plugin.nar.test;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import junit.framework.Assert;
 import junit.framework.TestCase;
@@ -28,6 +35,7 @@ import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.apache.maven.plugin.nar.AOL;
 import org.apache.maven.plugin.nar.AbstractNarLayout;
 import org.apache.maven.plugin.nar.Library;
 import org.apache.maven.plugin.nar.NarConstants;
@@ -35,6 +43,9 @@ import org.apache.maven.plugin.nar.NarFileLayout;
 import org.apache.maven.plugin.nar.NarFileLayout10;
 import org.apache.maven.plugin.nar.NarLayout;
 import org.apache.maven.plugin.nar.NarLayout21;
+import org.codehaus.plexus.archiver.manager.ArchiverManager;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
 
 /**
  * @author Mark Donszelmann (Mark.Donszelmann@gmail.com)
@@ -58,6 +69,8 @@ public class TestNarLayout21
 
     private String type;
 
+    private File dir;
+
     /*
      * (non-Javadoc)
      * @see junit.framework.TestCase#setUp()
@@ -76,6 +89,15 @@ public class TestNarLayout21
         layout = new NarLayout21( log );
     }
 
+    protected void tearDown()
+        throws Exception
+    {
+        if ( dir != null )
+        {
+            FileUtils.deleteDirectory( dir );
+        }
+    }
+
     public final void testGetLayout()
         throws MojoExecutionException
     {
@@ -122,4 +144,137 @@ public class TestNarLayout21
         Assert.assertEquals( new File( baseDir, artifactId + "-" + version + "-" + aol + "-" + "executable"
             + File.separator + fileLayout.getBinDirectory( aol ) ), layout.getBinDirectory( baseDir, artifactId, version, aol ) );
     }
+
+    public final void testUnpackNar()
+        throws Exception
+    {
+        dir = File.createTempFile( "nar-layout", "" );
+        dir.delete();
+        dir.mkdirs();
+        File unpackDirectory = new File( dir, "nar" );
+        File nar = new File( dir, "artifactId-version-amd64-Linux-gpp-shared.nar" );
+        AOL linux = new AOL( "amd64-Linux-gpp" );
+        RecordingLayout layout = new RecordingLayout( log );
+
+        writeNar( nar, new String[] { "include/a.h", "#define A 1\n", "include/old.h", "#define OLD\n",
+            "lib/amd64-Linux-gpp/shared/libfoo.so", "library 1" } );
+        layout.unpackNar( unpackDirectory, null, nar, "Linux", "g++", linux );
+        File unpacked = new File( unpackDirectory, "artifactId-version-amd64-Linux-gpp-shared" );
+        assertEquals( 1, layout.unpacked );
+        assertEquals( 1, layout.processed );
+        assertEquals( "#define A 1\n", FileUtils.fileRead( new File( unpacked, "include/a.h" ) ) );
+        assertTrue( new File( unpackDirectory, unpacked.getName() + ".flag" ).isFile() );
+
+        // same length and modification time
+        layout.unpackNar( unpackDirectory, null, nar, "Linux", "g++", linux );
+        assertEquals( 1, layout.unpacked );
+        assertEquals( 1, layout.processed );
+
+        // downloaded again, with the same content
+        nar.setLastModified( nar.lastModified() - 60000 );
+        layout.unpackNar( unpackDirectory, null, nar, "Linux", "g++", linux );
+        assertEquals( 1, layout.unpacked );
+        assertEquals( 1, layout.processed );
+
+        // changed content: only entries which differ in size or CRC are extracted again
+        File header = new File( unpacked, "include/a.h" );
+        long time = header.lastModified() - 120000;
+        header.setLastModified( time );
+        writeNar( nar, new String[] { "include/a.h", "#define A 1\n", "include/b.h", "#define B 1\n",
+            "lib/amd64-Linux-gpp/shared/libfoo.so", "library 2" } );
+        nar.setLastModified( nar.lastModified() - 30000 );
+        layout.unpackNar( unpackDirectory, null, nar, "Linux", "g++", linux );
+        assertEquals( 1, layout.unpacked );
+        assertEquals( 2, layout.processed );
+        assertEquals( time, header.lastModified() );
+        assertEquals( "library 2",
+                      FileUtils.fileRead( new File( unpacked, "lib/amd64-Linux-gpp/shared/libfoo.so" ) ) );
+        assertEquals( "#define B 1\n", FileUtils.fileRead( new File( unpacked, "include/b.h" ) ) );
+        assertFalse( new File( unpacked, "include/old.h" ).exists() );
+
+        // another AOL unpacks from scratch
+        layout.unpackNar( unpackDirectory, null, nar, "Linux", "g++", new AOL( "i386-Linux-gpp" ) );
+        assertEquals( 2, layout.unpacked );
+        assertEquals( 3, layout.processed );
+    }
+
+    private static void writeNar( File nar, String[] entries )
+        throws IOException
+    {
+        ZipOutputStream out = new ZipOutputStream( new FileOutputStream( nar ) );
+        try
+        {
+            for ( int i = 0; i < entries.length; i += 2 )
+            {
+                out.putNextEntry( new ZipEntry( entries[i] ) );
+                out.write( entries[i + 1].getBytes( "US-ASCII" ) );
+                out.closeEntry();
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Unpacks with java.util.zip instead of the archiver, and counts the unpacks and the processing of the binaries.
+     */
+    private static class RecordingLayout
+        extends NarLayout21
+    {
+        private int unpacked;
+
+        private int processed;
+
+        RecordingLayout( Log log )
+        {
+            super( log );
+        }
+
+        protected void unpackNarAndProcess( ArchiverManager archiverManager, File file, File narLocation, String os,
+                                            String linkerName, AOL defaultAOL )
+            throws MojoExecutionException, MojoFailureException
+        {
+            unpacked++;
+            try
+            {
+                ZipFile zip = new ZipFile( file );
+                try
+                {
+                    for ( Enumeration e = zip.entries(); e.hasMoreElements(); )
+                    {
+                        ZipEntry entry = (ZipEntry) e.nextElement();
+                        File target = new File( narLocation, entry.getName() );
+                        target.getParentFile().mkdirs();
+                        InputStream in = zip.getInputStream( entry );
+                        FileOutputStream out = new FileOutputStream( target );
+                        try
+                        {
+                            IOUtil.copy( in, out );
+                        }
+                        finally
+                        {
+                            IOUtil.close( in );
+                            IOUtil.close( out );
+                        }
+                    }
+                }
+                finally
+                {
+                    zip.close();
+                }
+            }
+            catch ( IOException e )
+            {
+                throw new MojoExecutionException( "Error unpacking " + file, e );
+            }
+            processNar( narLocation, os, linkerName, defaultAOL );
+        }
+
+        protected void processNar( File narLocation, String os, String linkerName, AOL defaultAOL )
+        {
+            processed++;
+        }
+    }
 }
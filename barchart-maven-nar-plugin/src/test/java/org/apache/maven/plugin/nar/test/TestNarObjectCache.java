@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.maven.plugin.nar.test;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.apache.maven.plugin.nar.NarObjectCache;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Tests storing and restoring objects with the object cache.
+ */
+public class TestNarObjectCache
+    extends TestCase
+{
+    private static final String SIGNATURE = "amd64-Linux-gpp\nshared\ng++ 4.4.5\n";
+
+    private File dir;
+
+    private File cacheDirectory;
+
+    private File objDir;
+
+    private File source;
+
+    protected void setUp()
+        throws Exception
+    {
+        dir = File.createTempFile( "nar-object-cache", "" );
+        dir.delete();
+        dir.mkdirs();
+        cacheDirectory = new File( dir, "cache" );
+        objDir = new File( dir, "obj" );
+        objDir.mkdirs();
+        source = write( "src/a.c", "#include \"a.h\"\n#include <stdio.h>\nint a() { return A; }\n" );
+        write( "src/a.h", "#define A 1\n" );
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        FileUtils.deleteDirectory( dir );
+    }
+
+    public final void testStoreAndRestore()
+        throws Exception
+    {
+        NarObjectCache cache = createCache( SIGNATURE );
+        cache.restore( Collections.singletonList( source ), objDir );
+        assertEquals( 0, cache.getHits() );
+        assertEquals( 1, cache.getMisses() );
+        // looking up objects does not create directories in the cache
+        assertFalse( cacheDirectory.exists() );
+
+        File object = write( "obj/a.o", "object a" );
+        cache.store();
+        assertTrue( cacheDirectory.exists() );
+
+        object.delete();
+        cache = createCache( SIGNATURE );
+        cache.restore( Collections.singletonList( source ), objDir );
+        assertEquals( 1, cache.getHits() );
+        assertEquals( 0, cache.getMisses() );
+        assertEquals( "object a", FileUtils.fileRead( object ) );
+    }
+
+    public final void testMissingObjectIsNotStored()
+        throws Exception
+    {
+        NarObjectCache cache = createCache( SIGNATURE );
+        cache.restore( Collections.singletonList( source ), objDir );
+        cache.store();
+        assertFalse( cacheDirectory.exists() );
+    }
+
+    public final void testChangedHeaderIsMiss()
+        throws Exception
+    {
+        store( SIGNATURE, "object a" );
+
+        write( "src/a.h", "#define A 2\n" );
+        assertMiss( SIGNATURE );
+    }
+
+    public final void testChangedSignatureIsMiss()
+        throws Exception
+    {
+        store( SIGNATURE, "object a" );
+
+        assertMiss( SIGNATURE + "-O2" );
+        // the signature is terminated, so moving a character into the sources gives another key
+        assertMiss( SIGNATURE.substring( 0, SIGNATURE.length() - 1 ) );
+    }
+
+    public final void testSameNameDifferentSourceIsMiss()
+        throws Exception
+    {
+        store( SIGNATURE, "object a" );
+
+        // another source with the same name does not get the object of the first one
+        source = write( "other/a.c", "int a() { return 3; }\n" );
+        assertMiss( SIGNATURE );
+    }
+
+    public final void testNonAsciiSignature()
+        throws Exception
+    {
+        // characters which the platform encoding may not map must still give different keys
+        String signature = SIGNATURE + "-DNAME=\u00e9\u4e2d";
+        store( signature, "object a" );
+
+        NarObjectCache cache = createCache( signature );
+        cache.restore( Collections.singletonList( source ), objDir );
+        assertEquals( 1, cache.getHits() );
+        new File( objDir, "a.o" ).delete();
+        assertMiss( SIGNATURE + "-DNAME=\u00e9\u4e2e" );
+    }
+
+    private void store( String signature, String content )
+        throws Exception
+    {
+        NarObjectCache cache = createCache( signature );
+        cache.restore( Collections.singletonList( source ), objDir );
+        write( "obj/a.o", content );
+        cache.store();
+        new File( objDir, "a.o" ).delete();
+    }
+
+    private void assertMiss( String signature )
+        throws Exception
+    {
+        NarObjectCache cache = createCache( signature );
+        cache.restore( Collections.singletonList( source ), objDir );
+        assertEquals( 0, cache.getHits() );
+        assertEquals( 1, cache.getMisses() );
+        assertFalse( new File( objDir, "a.o" ).exists() );
+    }
+
+    private NarObjectCache createCache( String signature )
+    {
+        List includePaths = Collections.singletonList( new File( dir, "src" ) );
+        return new NarObjectCache( cacheDirectory, signature, ".o", includePaths, new SystemStreamLog() );
+    }
+
+    private File write( String path, String content )
+        throws Exception
+    {
+        File file = new File( dir, path );
+        file.getParentFile().mkdirs();
+        FileUtils.fileWrite( file.getPath(), content );
+        return file;
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.maven.plugin.nar.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import junit.framework.TestCase;
+
+import org.apache.maven.plugin.nar.Library;
+import org.apache.maven.plugin.nar.NarProperties;
+import org.apache.maven.plugin.nar.NarSystemMojo;
+import org.apache.maven.plugin.nar.NarUtil;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Tests the names of embedded libraries and the loader of the generated NarSystem class.
+ */
+public class TestNarSystem
+    extends TestCase
+{
+    private static final String LIBRARY = "foo-1.0";
+
+    private NarProperties properties;
+
+    private File dir;
+
+    private File classes;
+
+    private File cache;
+
+    protected void setUp()
+        throws Exception
+    {
+        properties = NarProperties.getInstance( null );
+        dir = File.createTempFile( "nar-system", "" );
+        dir.delete();
+        dir.mkdirs();
+        classes = new File( dir, "classes" );
+        cache = new File( dir, "cache" );
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        System.getProperties().remove( "nar.cache" );
+        FileUtils.deleteDirectory( dir );
+    }
+
+    public final void testLibraryFileName()
+        throws Exception
+    {
+        // the extension of shared libraries is "so*" for these AOLs
+        assertEquals( "libfoo-1.0.so", getFileName( "i386.Linux.gpp", Library.SHARED ) );
+        assertEquals( "libfoo-1.0.so", getFileName( "amd64.Linux.icpc", Library.SHARED ) );
+        assertEquals( "libfoo-1.0.so", getFileName( "amd64.Linux.icpc", Library.JNI ) );
+        assertEquals( "foo-1.0.dll", getFileName( "amd64.Windows.msvc", Library.SHARED ) );
+        assertEquals( "libfoo-1.0.jnilib", getFileName( "x86_64.MacOSX.gpp", Library.JNI ) );
+
+        for ( Enumeration e = properties.propertyNames(); e.hasMoreElements(); )
+        {
+            String key = (String) e.nextElement();
+            if ( key.endsWith( ".shared.extension" ) || key.endsWith( ".jni.extension" ) )
+            {
+                String aolKey = key.substring( 0, key.lastIndexOf( '.', key.length() - ".extension".length() - 1 ) );
+                String type = key.substring( aolKey.length() + 1, key.length() - ".extension".length() );
+                String name = getFileName( aolKey, type );
+                assertTrue( key + ": " + name, name.indexOf( '*' ) < 0 && name.indexOf( '?' ) < 0 );
+            }
+        }
+    }
+
+    public final void testEmbeddedLoader()
+        throws Exception
+    {
+        String arch = System.getProperty( "os.arch" );
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if ( !"Linux".equals( System.getProperty( "os.name" ) ) || !Arrays.asList( new String[] { "amd64", "i386" } )
+            .contains( arch ) || compiler == null )
+        {
+            return;
+        }
+
+        // a library for another platform first, as when built on that platform
+        String aol = arch + "-Linux-icpc";
+        String resource = "lib/" + aol + "/shared/" + getFileName( NarUtil.getAOLKey( aol ), Library.SHARED );
+        assertEquals( "lib/" + aol + "/shared/libfoo-1.0.so", resource );
+        List resources =
+            Arrays.asList( new String[] { "lib/amd64-Windows-msvc/shared/foo-1.0.dll", "lib/" + arch
+                + "-MacOSX-gpp/shared/libfoo-1.0.dylib", resource } );
+
+        File sources = new File( dir, "src/fixture" );
+        sources.mkdirs();
+        File source = new File( sources, "NarSystem.java" );
+        PrintWriter p = new PrintWriter( new FileWriter( source ) );
+        NarSystemMojo.writeNarSystem( p, "fixture", "NarSystem", LIBRARY, resources );
+        p.close();
+        String text = FileUtils.fileRead( source );
+        assertTrue( text.indexOf( "\"" + resource + "\"," ) > 0 );
+        assertTrue( text.indexOf( '*' + "\"" ) < 0 );
+
+        classes.mkdirs();
+        assertEquals( 0, compiler.run( null, null, null, new String[] { "-d", classes.getPath(), source.getPath() } ) );
+
+        String content = "not really a library";
+        File library = new File( classes, resource );
+        library.getParentFile().mkdirs();
+        FileUtils.fileWrite( library.getPath(), content );
+        String digest = digest( content );
+        FileUtils.fileWrite( library.getPath() + ".sha1", digest );
+
+        // as in the jar of the project
+        File jar = new File( dir, "foo.jar" );
+        jar( classes, jar );
+
+        System.setProperty( "nar.cache", cache.getPath() );
+        ClassLoader loader = new URLClassLoader( new URL[] { jar.toURI().toURL() }, null );
+        Class narSystem = loader.loadClass( "fixture.NarSystem" );
+        assertEquals( resource, invoke( narSystem, "findLibraryResource", new Class[0], new Object[0] ) );
+
+        File extracted =
+            (File) invoke( narSystem, "extractLibrary", new Class[] { String.class }, new Object[] { resource } );
+        assertEquals( new File( new File( cache, digest ), "libfoo-1.0.so" ), extracted );
+        assertEquals( content, FileUtils.fileRead( extracted ) );
+
+        // a library of the embedded size is used as it is, it is not hashed again
+        String sameSize = content.toUpperCase();
+        FileUtils.fileWrite( extracted.getPath(), sameSize );
+        assertEquals( extracted, invoke( narSystem, "extractLibrary", new Class[] { String.class },
+                                         new Object[] { resource } ) );
+        assertEquals( sameSize, FileUtils.fileRead( extracted ) );
+
+        // a library of another size is extracted again
+        FileUtils.fileWrite( extracted.getPath(), "partial" );
+        assertEquals( extracted, invoke( narSystem, "extractLibrary", new Class[] { String.class },
+                                         new Object[] { resource } ) );
+        assertEquals( content, FileUtils.fileRead( extracted ) );
+    }
+
+    private static void jar( File directory, File file )
+        throws Exception
+    {
+        JarOutputStream out = new JarOutputStream( new FileOutputStream( file ) );
+        try
+        {
+            List names = FileUtils.getFileNames( directory, "**", null, false );
+            Collections.sort( names );
+            for ( Iterator i = names.iterator(); i.hasNext(); )
+            {
+                String name = (String) i.next();
+                out.putNextEntry( new JarEntry( name.replace( File.separatorChar, '/' ) ) );
+                out.write( FileUtils.fileRead( new File( directory, name ), "ISO-8859-1" ).getBytes( "ISO-8859-1" ) );
+                out.closeEntry();
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private String getFileName( String aolKey, String type )
+    {
+        return NarUtil.getLibraryFileName( properties, aolKey, type, LIBRARY );
+    }
+
+    private static Object invoke( Class type, String name, Class[] parameterTypes, Object[] args )
+        throws Exception
+    {
+        Method method = type.getDeclaredMethod( name, parameterTypes );
+        method.setAccessible( true );
+        try
+        {
+            return method.invoke( null, args );
+        }
+        catch ( InvocationTargetException e )
+        {
+            throw (Exception) e.getCause();
+        }
+    }
+
+    private static String digest( String content )
+        throws Exception
+    {
+        byte[] bytes = MessageDigest.getInstance( "SHA-1" ).digest( content.getBytes( "US-ASCII" ) );
+        StringBuffer sb = new StringBuffer();
+        for ( int i = 0; i < bytes.length; i++ )
+        {
+            sb.append( Integer.toHexString( ( bytes[i] & 0xff ) | 0x100 ).substring( 1 ) );
+        }
+        return sb.toString();
+    }
+}
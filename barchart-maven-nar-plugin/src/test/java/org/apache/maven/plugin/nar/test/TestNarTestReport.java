@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.maven.plugin.nar.test;
+
+import java.io.File;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import junit.framework.TestCase;
+
+import org.apache.maven.plugin.nar.NarTestMojo;
+import org.codehaus.plexus.util.FileUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Tests the JUnit style XML reports written for native tests.
+ */
+public class TestNarTestReport
+    extends TestCase
+{
+    private File dir;
+
+    protected void setUp()
+        throws Exception
+    {
+        dir = File.createTempFile( "nar-test-report", "" );
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        FileUtils.deleteDirectory( dir );
+    }
+
+    public final void testPassed()
+        throws Exception
+    {
+        File report = new File( dir, "test-reports/TEST-hello.xml" );
+        NarTestMojo.writeReport( report, "artifactId", "hello", 1234, null, "hello\nworld\n", "" );
+
+        Element suite = parse( report );
+        assertEquals( "testsuite", suite.getTagName() );
+        assertEquals( "hello", suite.getAttribute( "name" ) );
+        assertEquals( "1", suite.getAttribute( "tests" ) );
+        assertEquals( "0", suite.getAttribute( "failures" ) );
+        assertEquals( "0", suite.getAttribute( "errors" ) );
+        assertEquals( "0", suite.getAttribute( "skipped" ) );
+        assertEquals( "1.234", suite.getAttribute( "time" ) );
+
+        NodeList cases = suite.getElementsByTagName( "testcase" );
+        assertEquals( 1, cases.getLength() );
+        Element testCase = (Element) cases.item( 0 );
+        assertEquals( "artifactId", testCase.getAttribute( "classname" ) );
+        assertEquals( "hello", testCase.getAttribute( "name" ) );
+        assertEquals( "1.234", testCase.getAttribute( "time" ) );
+        assertEquals( 0, testCase.getElementsByTagName( "failure" ).getLength() );
+
+        assertEquals( "hello\nworld\n", getText( suite, "system-out" ) );
+        assertEquals( "", getText( suite, "system-err" ) );
+    }
+
+    public final void testFailed()
+        throws Exception
+    {
+        File report = new File( dir, "TEST-broken.xml" );
+        String failure = "Test broken failed with exit code: 1 0x1";
+        // markup, non-ASCII and control characters in the output of the test
+        NarTestMojo.writeReport( report, "artifactId", "broken", 5, failure, "a < b && c > \"d\"\n",
+                                 "\u00e9t\u00e9\u0007\u0000 done\t\n" );
+
+        Element suite = parse( report );
+        assertEquals( "1", suite.getAttribute( "failures" ) );
+        assertEquals( "0.005", suite.getAttribute( "time" ) );
+        NodeList failures = suite.getElementsByTagName( "failure" );
+        assertEquals( 1, failures.getLength() );
+        assertEquals( failure, ( (Element) failures.item( 0 ) ).getAttribute( "message" ) );
+        assertEquals( "testcase", failures.item( 0 ).getParentNode().getNodeName() );
+
+        assertEquals( "a < b && c > \"d\"\n", getText( suite, "system-out" ) );
+        assertEquals( "\u00e9t\u00e9 done\t\n", getText( suite, "system-err" ) );
+    }
+
+    private static Element parse( File report )
+        throws Exception
+    {
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse( report );
+        return document.getDocumentElement();
+    }
+
+    private static String getText( Element suite, String name )
+    {
+        NodeList nodes = suite.getElementsByTagName( name );
+        assertEquals( 1, nodes.getLength() );
+        assertSame( suite, nodes.item( 0 ).getParentNode() );
+        return nodes.item( 0 ).getTextContent();
+    }
+}